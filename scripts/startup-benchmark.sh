@@ -0,0 +1,70 @@
+#!/usr/bin/env bash
+#
+# compare cold start times of tw2md with and without the AppCDS archive, build the jar and archive first with:
+#
+#   mvn clean package -Pappcds
+#
+# usage: scripts/startup-benchmark.sh [runs]
+
+set -euo pipefail
+
+RUNS=${1:-10}
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+JAR="$ROOT/target/tw2md.jar"
+JSA="$ROOT/target/tw2md.jsa"
+
+if [[ ! -f "$JAR" || ! -f "$JSA" ]]; then
+	echo "Missing $JAR or $JSA, run: mvn clean package -Pappcds" >&2
+	exit 1
+fi
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+# an empty wiki and a wiki of 100 small tiddlers
+mkdir -p "$WORK/empty/tiddlers" "$WORK/small/tiddlers"
+for i in $(seq 1 100); do
+	cat > "$WORK/small/tiddlers/Tiddler $i.tid" <<TID
+created: 20210920015946441
+modified: 20210920015946441
+tags: Benchmark [[Tag $((i % 10))]]
+title: Tiddler $i
+type: text/vnd.tiddlywiki
+
+! Tiddler $i
+
+Some ''bold'' and //italic// text with a [[link|Tiddler $(((i % 100) + 1))]].
+
+* item one
+* item two
+
+|!A|!B|
+|1|2|
+TID
+done
+
+now_ms() {
+	date +%s%N | cut -b1-13
+}
+
+# run a conversion RUNS times and print the average wall time
+bench() {
+	local label=$1 wiki=$2
+	shift 2
+	local total=0
+	for _ in $(seq 1 "$RUNS"); do
+		rm -rf "$WORK/out"
+		local start end
+		start=$(now_ms)
+		java "$@" -jar "$JAR" --progress=NONE "$wiki" "$WORK/out" > /dev/null
+		end=$(now_ms)
+		total=$((total + end - start))
+	done
+	printf "%-30s %6d ms\n" "$label" $((total / RUNS))
+}
+
+echo "Average of $RUNS runs"
+bench "empty wiki" "$WORK/empty"
+bench "empty wiki (AppCDS)" "$WORK/empty" "-XX:SharedArchiveFile=$JSA"
+bench "100 tiddlers" "$WORK/small"
+bench "100 tiddlers (AppCDS)" "$WORK/small" "-XX:SharedArchiveFile=$JSA"
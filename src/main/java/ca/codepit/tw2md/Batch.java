@@ -0,0 +1,269 @@
+package ca.codepit.tw2md;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import picocli.CommandLine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static ca.codepit.tw2md.Main.*;
+import static picocli.CommandLine.*;
+
+/**
+ * convert many wikis in one JVM, the wikis are listed in a YAML manifest:
+ * <pre>
+ * options:                  # applied to every job
+ *   space-tag-character: _
+ * jobs:
+ *   - source: wikis/team-a
+ *     output: vaults/team-a
+ *     options:              # long option names without the leading --
+ *       add-titles: true
+ *       map-tag:
+ *         Journal: Journal/Daily
+ * </pre>
+ * all jobs share one worker pool so the JVM, class loading and JIT warmup are only paid for once. a job is run as the
+ * command line would run it, so --plan and --verify-shards work per job. the options of the whole batch (--threads,
+ * --memory-budget, --progress) can't be given to a job.
+ *
+ * @author evan
+ */
+@Command(name = "batch",
+				mixinStandardHelpOptions = true,
+				description = "Convert all the wikis listed in a YAML manifest in one process.")
+public class Batch implements Callable<Integer> {
+
+	private static final Logger log = LoggerFactory.getLogger(Batch.class);
+
+	private static final String OPTIONS_KEY = "options";
+	private static final String JOBS_KEY = "jobs";
+	private static final String SOURCE_KEY = "source";
+	private static final String OUTPUT_KEY = "output";
+
+	/**
+	 * options of a conversion that are set for the whole batch instead
+	 */
+	private static final List<String> BATCH_OPTIONS = Arrays.asList("--threads", "--memory-budget", "--progress");
+
+	@SuppressWarnings("unused")
+	@Parameters(index = "0", description = "YAML manifest listing the source and output directories of each wiki," +
+					" relative paths are resolved against the manifest directory.")
+	private File manifest;
+
+	@Option(names = {"--threads"}, description = "Number of worker threads shared by all the jobs" +
+					" (Default: number of processors).")
+	protected int threads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = {"--parallel-jobs"}, defaultValue = "2", description = "Number of wikis converted at the same time" +
+					" (Default: ${DEFAULT-VALUE}).")
+	protected int parallelJobs;
+
+	@Option(names = {"--memory-budget"}, paramLabel = "<MB>", description = "Memory for the tiddlers being converted at" +
+					" once, shared by all the jobs (Default: half the maximum heap).")
+	protected long memoryBudgetMb;
+
+	@Option(names = {"--progress"}, defaultValue = "TEXT", description = "Progress reporting for the whole batch, valid" +
+					" values: ${COMPLETION-CANDIDATES}")
+	protected PROGRESS_MODE progressMode = PROGRESS_MODE.TEXT;
+
+	/**
+	 * a single wiki conversion and its outcome.
+	 */
+	static class Job {
+
+		private final String source;
+
+		private final String output;
+
+		private final Main main;
+
+		private Progress progress;
+
+		private Exception error;
+
+		private long elapsedMillis;
+
+		Job(String source, String output, Main main) {
+
+			this.source = source;
+			this.output = output;
+			this.main = main;
+		}
+
+		boolean isFailed() {
+
+			return error != null;
+		}
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		final List<Job> jobs = readManifest();
+
+		final MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetMb);
+		for (Job job : jobs) {
+			job.main.setMemoryBudget(memoryBudget);
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		final ExecutorService runner = Executors.newFixedThreadPool(Math.max(1, parallelJobs));
+		final Progress progress = new Progress(progressMode);
+		try {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (Job job : jobs) {
+				futures.add(runner.submit(() -> run(job, pool, progress)));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			runner.shutdown();
+			pool.shutdown();
+		}
+
+		progress.done();
+		printSummary(jobs, progress);
+
+		return jobs.stream().anyMatch(Job::isFailed) ? 1 : 0;
+	}
+
+	private void run(Job job, ForkJoinPool pool, Progress progress) {
+
+		job.progress = new Progress(progress);
+		// a plan or shard report is printed in one piece once the job is done, not mixed with the other jobs' reports
+		final ByteArrayOutputStream report = new ByteArrayOutputStream();
+		job.main.setOut(new PrintStream(report, true, StandardCharsets.UTF_8));
+		try {
+			log.info("Converting {} -> {}", job.source, job.output);
+			final int exitCode = job.main.dispatch(pool, job.progress);
+			if (exitCode != 0) {
+				job.error = new IOException("Exit code " + exitCode + ", see the log");
+			}
+		} catch (Exception e) {
+			log.error("Failed to convert {}, {}", job.source, e.getMessage(), e);
+			job.error = e;
+		} finally {
+			synchronized (System.out) {
+				System.out.print(report.toString(StandardCharsets.UTF_8));
+				System.out.flush();
+			}
+		}
+		job.elapsedMillis = job.progress.getElapsedMillis();
+	}
+
+	List<Job> readManifest() throws IOException {
+
+		final Map<String, Object> yaml;
+		try (Reader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+			yaml = asMap(new Yaml(new SafeConstructor()).load(reader), "manifest");
+		}
+
+		final File baseDir = manifest.getAbsoluteFile().getParentFile();
+		final Map<String, Object> defaults = asMap(yaml.get(OPTIONS_KEY), OPTIONS_KEY);
+		final Object jobList = yaml.get(JOBS_KEY);
+		if (!(jobList instanceof List)) {
+			throw new IOException("Manifest " + manifest + " has no '" + JOBS_KEY + "' list");
+		}
+
+		final List<Job> jobs = new ArrayList<>();
+		for (Object o : (List<?>) jobList) {
+			final Map<String, Object> jobMap = asMap(o, JOBS_KEY);
+			final String source = resolve(baseDir, jobMap.get(SOURCE_KEY), SOURCE_KEY);
+			final String output = resolve(baseDir, jobMap.get(OUTPUT_KEY), OUTPUT_KEY);
+
+			final Map<String, Object> options = new LinkedHashMap<>(defaults);
+			options.putAll(asMap(jobMap.get(OPTIONS_KEY), OPTIONS_KEY));
+
+			// let picocli apply (and validate) the options exactly as it does on the command line
+			final List<String> args = toArgs(options);
+			args.add(source);
+			args.add(output);
+			final Main main = new Main();
+			final ParseResult parsed;
+			try {
+				parsed = new CommandLine(main).parseArgs(args.toArray(new String[0]));
+			} catch (ParameterException e) {
+				throw new IOException("Invalid options for " + source + ": " + e.getMessage(), e);
+			}
+			for (String option : BATCH_OPTIONS) {
+				if (parsed.hasMatchedOption(option)) {
+					throw new IOException("Invalid options for " + source + ": " + option + " is set for the whole batch," +
+									" on the batch command line");
+				}
+			}
+			jobs.add(new Job(source, output, main));
+		}
+
+		return jobs;
+	}
+
+	/**
+	 * turn a map of manifest options into command line arguments.
+	 */
+	static List<String> toArgs(Map<String, Object> options) {
+
+		final List<String> args = new ArrayList<>();
+		options.forEach((name, value) -> {
+			final String option = "--" + name;
+			if (value instanceof Boolean) {
+				if ((Boolean) value) {
+					args.add(option);
+				}
+			} else if (value instanceof Map) {
+				((Map<?, ?>) value).forEach((k, v) -> args.add(option + "=" + k + "=" + v));
+			} else if (value instanceof List) {
+				((List<?>) value).forEach(v -> args.add(option + "=" + v));
+			} else if (value != null) {
+				args.add(option + "=" + value);
+			}
+		});
+		return args;
+	}
+
+	private void printSummary(List<Job> jobs, Progress progress) {
+
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-40s %10s %10s %10s %10s  %s",
+						"Source", "Converted", "Skipped", "Failed", "Seconds", "Status"));
+		for (Job job : jobs) {
+			final Progress p = job.progress;
+			System.out.println(String.format(Locale.ROOT, "%-40s %10d %10d %10d %10.1f  %s",
+							job.source, p.getConverted(), p.getSkipped(), p.getFailed(), job.elapsedMillis / 1000.0,
+							job.isFailed() ? "FAILED: " + job.error.getMessage() : "OK"));
+		}
+		System.out.println(String.format(Locale.ROOT, "%-40s %10d %10d %10d %10.1f",
+						jobs.size() + " wikis", progress.getConverted(), progress.getSkipped(), progress.getFailed(),
+						progress.getElapsedMillis() / 1000.0));
+	}
+
+	private static String resolve(File baseDir, Object path, String key) throws IOException {
+
+		if (path == null) {
+			throw new IOException("Manifest job is missing '" + key + "'");
+		}
+		final File f = new File(path.toString());
+		return (f.isAbsolute() ? f : new File(baseDir, path.toString())).getPath();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> asMap(Object o, String name) throws IOException {
+
+		if (o == null) {
+			return new LinkedHashMap<>();
+		} else if (o instanceof Map) {
+			return (Map<String, Object>) o;
+		}
+		throw new IOException("Manifest '" + name + "' must be a map");
+	}
+}
@@ -0,0 +1,325 @@
+package ca.codepit.tw2md;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * the size and checksum of every output file, computed from the bytes as they are written so the vault doesn't have to
+ * be read again to check or sync it. saved sorted by output as tab separated lines of output path, size, checksum and
+ * source path (relative to the output and wiki directories).
+ * <p>
+ * while the conversion runs new lines are appended to the manifest at every journal checkpoint, so a killed run can be
+ * resumed without losing the checksums of the files it had converted. a later line for an output replaces an earlier
+ * one, the manifest is sorted when the conversion finishes.
+ *
+ * @author evan
+ */
+class Checksums implements Flushable {
+
+	private static final Logger log = LoggerFactory.getLogger(Checksums.class);
+
+	private static final String COMMENT = "#";
+	private static final String TAB = "\t";
+	private static final String NO_SOURCE = "-";
+	private static final String MOVED = "moved";
+	private static final String NEWLINE = "\n";
+
+	private final Main.CHECKSUM algorithm;
+
+	private final Path outputRoot;
+
+	private final Path file;
+
+	/**
+	 * output -> size, checksum and source
+	 */
+	private final Map<Path, String[]> outputs = new ConcurrentHashMap<>();
+
+	/**
+	 * lines not yet appended to the manifest
+	 */
+	private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+
+	Checksums(Main.CHECKSUM algorithm, Path outputRoot, Path file) {
+
+		this.algorithm = algorithm;
+		this.outputRoot = outputRoot;
+		this.file = file;
+	}
+
+	/**
+	 * start the manifest of a run, a resumed run keeps the checksums of the run it carries on
+	 */
+	void start(boolean resume) throws IOException {
+
+		if (resume) {
+			load();
+		}
+		save();
+	}
+
+	/**
+	 * start hashing the bytes of an output
+	 *
+	 * @param source relative to the wiki, null for an output that wasn't converted from a source file
+	 */
+	Hash hash(Path output, String source) {
+
+		return new Hash(algorithm, output, source);
+	}
+
+	/**
+	 * the output has been written, or left alone because it already held the bytes that were hashed
+	 */
+	void record(Hash hash) {
+
+		final String[] r = {Long.toString(hash.size), hash.value(), hash.source == null ? NO_SOURCE : hash.source};
+		outputs.put(hash.output, r);
+		pending.add(line(hash.output, r));
+	}
+
+	void moved(Path from, Path to) {
+
+		final String[] r = outputs.remove(from);
+		if (r != null) {
+			outputs.put(to, r);
+			pending.add(relative(from) + TAB + MOVED);
+			pending.add(line(to, r));
+		}
+	}
+
+	int size() {
+
+		return outputs.size();
+	}
+
+	/**
+	 * append the new lines to the manifest
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+
+		final StringBuilder sb = new StringBuilder();
+		for (String line = pending.poll(); line != null; line = pending.poll()) {
+			sb.append(line).append(NEWLINE);
+		}
+		if (sb.length() == 0) {
+			return;
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * the outputs of the run being carried on. a line cut short by a crash is left out, the file is read leniently as
+	 * it may have been cut in the middle of a character. a manifest of another algorithm is left out.
+	 */
+	private void load() throws IOException {
+
+		if (!Files.exists(file)) {
+			return;
+		}
+		final String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		final List<String> lines = new ArrayList<>(Arrays.asList(text.split(NEWLINE, -1)));
+		// the part after the last newline, empty unless a line was cut short
+		lines.remove(lines.size() - 1);
+		if (lines.isEmpty() || !lines.get(0).equals(header())) {
+			log.warn("Checksums of the previous run not kept, {} wasn't written with {}", file, algorithm);
+			return;
+		}
+		for (String line : lines.subList(1, lines.size())) {
+			final String[] r = line.split(TAB, 4);
+			if (r.length == 4) {
+				outputs.put(outputRoot.resolve(r[0]), Arrays.copyOfRange(r, 1, 4));
+			} else if (r.length == 2 && r[1].equals(MOVED)) {
+				outputs.remove(outputRoot.resolve(r[0]));
+			}
+		}
+	}
+
+	/**
+	 * write the manifest sorted, replacing the lines appended while the conversion ran
+	 */
+	synchronized void save() throws IOException {
+
+		// everything pending is in the outputs
+		pending.clear();
+		final SortedMap<String, String[]> sorted = new TreeMap<>();
+		outputs.forEach((output, r) -> sorted.put(relative(output), r));
+
+		Files.createDirectories(file.getParent());
+		final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			writer.write(header());
+			writer.write(NEWLINE);
+			for (Map.Entry<String, String[]> e : sorted.entrySet()) {
+				writer.write(e.getKey() + TAB + String.join(TAB, e.getValue()));
+				writer.write(NEWLINE);
+			}
+		}
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+			channel.force(false);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private String line(Path output, String[] r) {
+
+		return relative(output) + TAB + String.join(TAB, r);
+	}
+
+	private String relative(Path output) {
+
+		return ConversionRun.relativePath(outputRoot, output);
+	}
+
+	private String header() {
+
+		return COMMENT + " output" + TAB + "size" + TAB + algorithm.name().toLowerCase(Locale.ROOT) + TAB + "source";
+	}
+
+	/**
+	 * the checksum of one output, fed the bytes as they are written or wrapped around the stream they are copied from.
+	 */
+	static class Hash {
+
+		private final MessageDigest digest;
+
+		private final Checksum checksum;
+
+		private final Path output;
+
+		private final String source;
+
+		private long size;
+
+		private Hash(Main.CHECKSUM algorithm, Path output, String source) {
+
+			this.output = output;
+			this.source = source;
+
+			if (algorithm == Main.CHECKSUM.SHA256) {
+				try {
+					digest = MessageDigest.getInstance("SHA-256");
+				} catch (NoSuchAlgorithmException e) {
+					// every JVM has SHA-256
+					throw new IllegalStateException(e);
+				}
+				checksum = null;
+			} else {
+				digest = null;
+				checksum = new CRC32C();
+			}
+		}
+
+		void update(byte[] b, int off, int len) {
+
+			if (digest != null) {
+				digest.update(b, off, len);
+			} else {
+				checksum.update(b, off, len);
+			}
+			size += len;
+		}
+
+		/**
+		 * hash the bytes of a file already on disk, an output that was left alone
+		 */
+		void update(Path file) throws IOException {
+
+			try (InputStream in = wrap(Files.newInputStream(file))) {
+				in.transferTo(OutputStream.nullOutputStream());
+			}
+		}
+
+		/**
+		 * @return the stream, hashing the bytes read from it
+		 */
+		InputStream wrap(InputStream in) {
+
+			return new FilterInputStream(in) {
+
+				@Override
+				public int read() throws IOException {
+
+					final int b = super.read();
+					if (b >= 0) {
+						update(new byte[]{(byte) b}, 0, 1);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+
+					final int n = super.read(b, off, len);
+					if (n > 0) {
+						update(b, off, n);
+					}
+					return n;
+				}
+
+				@Override
+				public long skip(long n) throws IOException {
+
+					// skipped bytes still have to be hashed
+					final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+					long skipped = 0;
+					while (skipped < n) {
+						final int r = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+						if (r < 0) {
+							break;
+						}
+						skipped += r;
+					}
+					return skipped;
+				}
+
+				@Override
+				public boolean markSupported() {
+
+					return false;
+				}
+			};
+		}
+
+		private String value() {
+
+			if (digest == null) {
+				return String.format(Locale.ROOT, "%08x", checksum.getValue());
+			}
+			final StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest()) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		}
+	}
+}
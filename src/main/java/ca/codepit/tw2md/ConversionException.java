@@ -0,0 +1,54 @@
+package ca.codepit.tw2md;
+
+import static ca.codepit.tw2md.Main.*;
+
+/**
+ * a failure converting a single tiddler or asset, records the stage of the conversion that failed.
+ *
+ * @author evan
+ */
+public class ConversionException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * a step of a conversion that may throw anything.
+	 */
+	interface Step<T> {
+
+		T run() throws Exception;
+	}
+
+	private final STAGE stage;
+
+	public ConversionException(STAGE stage, String message) {
+
+		super(message);
+		this.stage = stage;
+	}
+
+	public ConversionException(STAGE stage, Throwable cause) {
+
+		super(cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage(), cause);
+		this.stage = stage;
+	}
+
+	public STAGE getStage() {
+
+		return stage;
+	}
+
+	/**
+	 * run a step, any exception it throws is wrapped with the stage.
+	 */
+	static <T> T at(STAGE stage, Step<T> step) throws ConversionException {
+
+		try {
+			return step.run();
+		} catch (ConversionException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ConversionException(stage, e);
+		}
+	}
+}
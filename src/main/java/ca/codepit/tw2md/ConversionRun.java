@@ -0,0 +1,200 @@
+package ca.codepit.tw2md;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * the state shared by all the files converted in one run, the outcome of every source file is reported here.
+ *
+ * @author evan
+ */
+class ConversionRun {
+
+	private final Path sourceRoot;
+
+	private final Path outputRoot;
+
+	private final File assetDir;
+
+	private final Progress progress;
+
+	private final Failures failures = new Failures();
+
+	private final ShardManifest shardManifest;
+
+	private final Journal journal;
+
+	private final OutputNames outputNames;
+
+	private final LongAdder written = new LongAdder();
+
+	private final LongAdder unchanged = new LongAdder();
+
+	private TagIndex tagIndex;
+
+	private MemoryBudget memoryBudget;
+
+	private Checksums checksums;
+
+	/**
+	 * @param shardManifest records the outcome of every file when the conversion is sharded, may be null
+	 * @param journal       records the files completed so the conversion can be resumed, may be null
+	 */
+	ConversionRun(Path sourceRoot, Path outputRoot, File assetDir, Progress progress, ShardManifest shardManifest,
+								Journal journal) {
+
+		this.sourceRoot = sourceRoot;
+		this.outputRoot = outputRoot;
+		this.assetDir = assetDir;
+		this.progress = progress;
+		this.shardManifest = shardManifest;
+		this.journal = journal;
+		this.outputNames = new OutputNames(outputRoot);
+	}
+
+	File getAssetDir() {
+
+		return assetDir;
+	}
+
+	Progress getProgress() {
+
+		return progress;
+	}
+
+	Failures getFailures() {
+
+		return failures;
+	}
+
+	ShardManifest getShardManifest() {
+
+		return shardManifest;
+	}
+
+	OutputNames getOutputNames() {
+
+		return outputNames;
+	}
+
+	/**
+	 * @return the output a source should be written to, renamed if another source has already claimed it
+	 * @throws ConversionException if the output would be written outside the output directory
+	 */
+	Path claim(Path output, Path source) throws ConversionException {
+
+		try {
+			return outputNames.claim(output, relativeSource(source));
+		} catch (IllegalArgumentException e) {
+			throw new ConversionException(Main.STAGE.WRITE, e.getMessage());
+		}
+	}
+
+	/**
+	 * gather the tags of the converted tiddlers into this index
+	 */
+	void setTagIndex(TagIndex tagIndex) {
+
+		this.tagIndex = tagIndex;
+	}
+
+	/**
+	 * @return the tag index or null if tags aren't being indexed
+	 */
+	TagIndex getTagIndex() {
+
+		return tagIndex;
+	}
+
+	/**
+	 * admit tiddlers against this budget while they are converted
+	 */
+	void setMemoryBudget(MemoryBudget memoryBudget) {
+
+		this.memoryBudget = memoryBudget;
+	}
+
+	MemoryBudget getMemoryBudget() {
+
+		return memoryBudget;
+	}
+
+	/**
+	 * record the checksum of every output as it is written
+	 */
+	void setChecksums(Checksums checksums) {
+
+		this.checksums = checksums;
+	}
+
+	/**
+	 * @return the checksums or null if they aren't being recorded
+	 */
+	Checksums getChecksums() {
+
+		return checksums;
+	}
+
+	/**
+	 * an output file was written, or left alone because it already held the same bytes
+	 */
+	void wrote(boolean changed) {
+
+		(changed ? written : unchanged).increment();
+	}
+
+	long getWritten() {
+
+		return written.sum();
+	}
+
+	long getUnchanged() {
+
+		return unchanged.sum();
+	}
+
+	void converted(Path source, long bytes, Path output) {
+
+		progress.converted(bytes);
+		if (shardManifest != null) {
+			shardManifest.record(relativeSource(source), ShardManifest.CONVERTED, relativePath(outputRoot, output));
+		}
+		if (journal != null) {
+			journal.completed(relativeSource(source), output);
+		}
+	}
+
+	void skipped(Path source) {
+
+		progress.skipped();
+		if (shardManifest != null) {
+			shardManifest.record(relativeSource(source), ShardManifest.SKIPPED, null);
+		}
+		if (journal != null) {
+			journal.completed(relativeSource(source), null);
+		}
+	}
+
+	void failed(Path source, ConversionException e) {
+
+		progress.failed();
+		failures.record(relativeSource(source), e);
+		if (shardManifest != null) {
+			shardManifest.record(relativeSource(source), ShardManifest.FAILED, null);
+		}
+	}
+
+	String relativeSource(Path source) {
+
+		return relativePath(sourceRoot, source);
+	}
+
+	/**
+	 * always uses / so the files written in the state directory can be moved between systems
+	 */
+	static String relativePath(Path root, Path p) {
+
+		return root.relativize(p).toString().replace(p.getFileSystem().getSeparator(), "/");
+	}
+}
@@ -0,0 +1,269 @@
+package ca.codepit.tw2md;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * walk a directory tree in parallel, each directory is listed by its own fork/join task so slow (network) file systems
+ * are not stat'ed one file at a time.
+ * <p>
+ * the attributes read during the walk are handed to the caller so files never need to be stat'ed again, results are
+ * always returned in the same order (depth first, sorted by file name) regardless of thread scheduling. they are
+ * streamed as the walk goes, the entries of a directory can be used as soon as it and the directories before it have
+ * been listed, while the rest of the tree is still being walked.
+ *
+ * @author evan
+ */
+public class DirectoryScanner {
+
+	private static final Logger log = LoggerFactory.getLogger(DirectoryScanner.class);
+
+	private static final Comparator<Path> BY_NAME = Comparator.comparing(p -> p.getFileName().toString());
+
+	private final ForkJoinPool pool;
+
+	public DirectoryScanner(ForkJoinPool pool) {
+
+		this.pool = pool;
+	}
+
+	/**
+	 * a file or directory found during the walk, together with the attributes read for it.
+	 */
+	public static class Entry {
+
+		private final Path path;
+
+		private final BasicFileAttributes attributes;
+
+		/**
+		 * the names in the entry's directory, null when they weren't listed
+		 */
+		private final Set<String> siblings;
+
+		public Entry(Path path, BasicFileAttributes attributes) {
+
+			this(path, attributes, Collections.emptySet());
+		}
+
+		Entry(Path path, BasicFileAttributes attributes, Set<String> siblings) {
+
+			this.path = path;
+			this.attributes = attributes;
+			this.siblings = siblings;
+		}
+
+		public Path getPath() {
+
+			return path;
+		}
+
+		public String getName() {
+
+			return path.getFileName().toString();
+		}
+
+		public BasicFileAttributes getAttributes() {
+
+			return attributes;
+		}
+
+		public boolean isFile() {
+
+			return attributes.isRegularFile();
+		}
+
+		public boolean isDirectory() {
+
+			return attributes.isDirectory();
+		}
+
+		public long size() {
+
+			return attributes.size();
+		}
+
+		/**
+		 * @return the file or directory of that name next to this one, null if the scan didn't find one
+		 */
+		public Path sibling(String name) {
+
+			if (siblings == null) {
+				final Path sibling = path.resolveSibling(name);
+				return Files.exists(sibling) ? sibling : null;
+			}
+			return siblings.contains(name) ? path.resolveSibling(name) : null;
+		}
+
+		@Override
+		public String toString() {
+
+			return path.toString();
+		}
+	}
+
+	/**
+	 * an entry for a path that is already known, read without a scan. its siblings are looked for on disk when asked
+	 * for.
+	 */
+	public static Entry entry(Path path) throws IOException {
+
+		return new Entry(path, readAttributes(path), null);
+	}
+
+	/**
+	 * scan everything below the root directory, the root itself is not included in the results.
+	 */
+	public Stream<Entry> scan(Path root) throws IOException {
+
+		if (!Files.isDirectory(root)) {
+			throw new IOException("Not a directory: " + root);
+		}
+
+		final ScanTask task = new ScanTask(root);
+		try {
+			pool.invoke(task);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new Walk(task),
+						Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	private static BasicFileAttributes readAttributes(Path p) throws IOException {
+
+		final BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		if (attributes.isSymbolicLink()) {
+			// follow links to files, linked directories are not walked to avoid cycles
+			final BasicFileAttributes target = Files.readAttributes(p, BasicFileAttributes.class);
+			return target.isDirectory() ? attributes : target;
+		}
+		return attributes;
+	}
+
+	/**
+	 * lists one directory and forks a task for each of its sub directories
+	 */
+	private static class ScanTask extends RecursiveTask<List<Entry>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient Path dir;
+
+		/**
+		 * sub directory -> the task listing it, read once this task has been joined
+		 */
+		private final transient Map<Path, ScanTask> subdirs = new HashMap<>();
+
+		private ScanTask(Path dir) {
+
+			this.dir = dir;
+		}
+
+		/**
+		 * the entries of the directory, empty if it couldn't be listed
+		 */
+		private List<Entry> entries() {
+
+			try {
+				return join();
+			} catch (UncheckedIOException e) {
+				log.error("Error scanning {}, {}", dir, e.getCause().getMessage(), e);
+				return Collections.emptyList();
+			}
+		}
+
+		@Override
+		protected List<Entry> compute() {
+
+			final List<Path> children = new ArrayList<>();
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+				ds.forEach(children::add);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			children.sort(BY_NAME);
+			final Set<String> names = new HashSet<>();
+			for (Path child : children) {
+				names.add(child.getFileName().toString());
+			}
+
+			// the sub directories are listed by their own tasks while the caller works through this one
+			final List<Entry> results = new ArrayList<>(children.size());
+			for (Path child : children) {
+				try {
+					final Entry entry = new Entry(child, readAttributes(child), names);
+					results.add(entry);
+					if (entry.isDirectory()) {
+						final ScanTask task = new ScanTask(child);
+						task.fork();
+						subdirs.put(child, task);
+					}
+				} catch (IOException e) {
+					log.error("Error reading attributes {}, {}", child, e.getMessage(), e);
+				}
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * walks the scanned tree depth first, each sub directory right after its entry. a directory's task is only joined
+	 * when the walk gets to it, the entries before it can be used in the meantime.
+	 */
+	private static class Walk implements Iterator<Entry> {
+
+		private final Deque<ScanTask> tasks = new ArrayDeque<>();
+
+		private final Deque<Iterator<Entry>> levels = new ArrayDeque<>();
+
+		/**
+		 * the sub directory of the entry returned last
+		 */
+		private ScanTask next;
+
+		private Walk(ScanTask root) {
+
+			next = root;
+		}
+
+		@Override
+		public boolean hasNext() {
+
+			if (next != null) {
+				tasks.push(next);
+				levels.push(next.entries().iterator());
+				next = null;
+			}
+			while (!levels.isEmpty() && !levels.peek().hasNext()) {
+				levels.pop();
+				tasks.pop();
+			}
+			return !levels.isEmpty();
+		}
+
+		@Override
+		public Entry next() {
+
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final Entry entry = levels.peek().next();
+			next = tasks.peek().subdirs.get(entry.getPath());
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package ca.codepit.tw2md;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * collects the tiddlers and assets that failed to convert so they can be retried without converting the whole wiki
+ * again.
+ * <p>
+ * failures are saved as tab separated lines of source path (relative to the wiki directory), stage and reason.
+ *
+ * @author evan
+ */
+public class Failures {
+
+	private static final String COMMENT = "#";
+
+	private static final String TAB = "\t";
+
+	private final Queue<String[]> failures = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param source path relative to the wiki directory
+	 */
+	public void record(String source, ConversionException e) {
+
+		failures.add(new String[]{source, e.getStage().name(), e.getMessage()});
+	}
+
+	public int size() {
+
+		return failures.size();
+	}
+
+	/**
+	 * save the failures sorted by source path, the file is removed when there are none.
+	 */
+	public void save(Path file) throws IOException {
+
+		if (failures.isEmpty()) {
+			Files.deleteIfExists(file);
+			return;
+		}
+
+		final List<String[]> sorted = new ArrayList<>(failures);
+		sorted.sort(Comparator.comparing(f -> f[0]));
+
+		Files.createDirectories(file.getParent());
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write(COMMENT + " source" + TAB + "stage" + TAB + "reason");
+			writer.newLine();
+			for (String[] f : sorted) {
+				writer.write(f[0] + TAB + f[1] + TAB + clean(f[2]));
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * combine the failures files saved by each shard of a conversion.
+	 */
+	public static void merge(List<Path> files, Path merged) throws IOException {
+
+		final Failures failures = new Failures();
+		for (Path file : files) {
+			if (Files.exists(file)) {
+				for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+					if (!line.isBlank() && !line.startsWith(COMMENT)) {
+						final String[] f = line.split(TAB, 3);
+						failures.failures.add(new String[]{f[0], f[1], f.length > 2 ? f[2] : ""});
+					}
+				}
+			}
+		}
+		failures.save(merged);
+	}
+
+	/**
+	 * read the source paths of a saved failures file, resolved against the wiki directory.
+	 */
+	public static List<Path> read(Path file, Path sourceRoot) throws IOException {
+
+		final List<Path> paths = new ArrayList<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (!line.isBlank() && !line.startsWith(COMMENT)) {
+				paths.add(sourceRoot.resolve(line.split(TAB, 2)[0]));
+			}
+		}
+		return paths;
+	}
+
+	private static String clean(String reason) {
+
+		return reason == null ? "" : reason.replaceAll("[\\t\\r\\n]+", " ");
+	}
+}
@@ -0,0 +1,278 @@
+package ca.codepit.tw2md;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * an append only record of the source files that have been completely converted, used by --resume to pick up a
+ * conversion that was killed part way through.
+ * <p>
+ * completed files are checkpointed in groups: the output files are fsynced first and only then are their sources
+ * appended to the journal and the journal fsynced, so a journaled source always has its output on disk. each record is
+ * a CRC32 of the source path, a tab and the source path, a record cut short by a crash fails the check and it and
+ * anything after it is ignored (and truncated) when the journal is reopened.
+ * <p>
+ * state kept alongside the outputs (checksums, renamed outputs) is flushed at each checkpoint before the sources are
+ * journaled, so whatever a journaled source left in it survives a crash too.
+ *
+ * @author evan
+ */
+public class Journal implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+	/**
+	 * checkpoint after this many completed files...
+	 */
+	private static final int CHECKPOINT_RECORDS = 1024;
+
+	/**
+	 * ...or this long, whichever comes first
+	 */
+	private static final long CHECKPOINT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private static final byte TAB = '\t';
+
+	private static final byte NEWLINE = '\n';
+
+	private final Path file;
+
+	private final FileChannel channel;
+
+	private final Set<String> completed;
+
+	private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger pendingCount = new AtomicInteger();
+
+	private final AtomicLong lastCheckpointNanos = new AtomicLong(System.nanoTime());
+
+	private final ReentrantLock checkpointLock = new ReentrantLock();
+
+	private final List<Flushable> state = new CopyOnWriteArrayList<>();
+
+	private static class Record {
+
+		private final String source;
+
+		private final Path output;
+
+		private Record(String source, Path output) {
+
+			this.source = source;
+			this.output = output;
+		}
+	}
+
+	private Journal(Path file, FileChannel channel, Set<String> completed) {
+
+		this.file = file;
+		this.channel = channel;
+		this.completed = completed;
+	}
+
+	/**
+	 * @param resume keep the sources already in the journal, otherwise the journal is started again
+	 */
+	public static Journal open(Path file, boolean resume) throws IOException {
+
+		Files.createDirectories(file.getParent());
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+		try {
+			final Set<String> completed = new HashSet<>();
+			long valid = 0;
+			if (resume) {
+				valid = recover(Files.readAllBytes(file), completed);
+				if (valid < channel.size()) {
+					log.warn("Ignoring {} bytes of incomplete journal records in {}", channel.size() - valid, file);
+				}
+			}
+			channel.truncate(valid);
+			channel.position(valid);
+			return new Journal(file, channel, Collections.unmodifiableSet(completed));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * read the records up to the first torn or corrupt one.
+	 *
+	 * @return the length of the valid part of the journal
+	 */
+	static long recover(byte[] bytes, Set<String> completed) {
+
+		int start = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == NEWLINE) {
+				final String source = parse(bytes, start, i);
+				if (source == null) {
+					break;
+				}
+				completed.add(source);
+				start = i + 1;
+			}
+		}
+		return start;
+	}
+
+	private static String parse(byte[] bytes, int start, int end) {
+
+		final int tab = start + 8;
+		if (end <= tab || bytes[tab] != TAB) {
+			return null;
+		}
+		try {
+			final long crc = Long.parseLong(new String(bytes, start, 8, StandardCharsets.US_ASCII), 16);
+			final CRC32 check = new CRC32();
+			check.update(bytes, tab + 1, end - tab - 1);
+			return check.getValue() == crc ? new String(bytes, tab + 1, end - tab - 1, StandardCharsets.UTF_8) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * sources journaled by earlier runs, relative to the wiki directory.
+	 */
+	public Set<String> getCompleted() {
+
+		return completed;
+	}
+
+	/**
+	 * flush the state at every checkpoint, before the sources are journaled
+	 */
+	public void flushBeforeCheckpoint(Flushable flushable) {
+
+		state.add(flushable);
+	}
+
+	/**
+	 * a source has been converted, it will be journaled at the next checkpoint.
+	 *
+	 * @param output the file written, null if nothing was written
+	 */
+	public void completed(String source, Path output) {
+
+		pending.add(new Record(source, output));
+		final long now = System.nanoTime();
+		if (pendingCount.incrementAndGet() >= CHECKPOINT_RECORDS || now - lastCheckpointNanos.get() >= CHECKPOINT_NANOS) {
+			// only one thread checkpoints at a time, the others carry on converting
+			if (checkpointLock.tryLock()) {
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					log.error("Failed to checkpoint {}, {}", file, e.getMessage(), e);
+				} finally {
+					checkpointLock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * sync the outputs of the pending sources then journal them.
+	 */
+	public void checkpoint() throws IOException {
+
+		checkpointLock.lock();
+		try {
+			final List<Record> records = new ArrayList<>();
+			for (Record r = pending.poll(); r != null; r = pending.poll()) {
+				records.add(r);
+			}
+			pendingCount.addAndGet(-records.size());
+			lastCheckpointNanos.set(System.nanoTime());
+			if (records.isEmpty()) {
+				return;
+			}
+
+			// fsyncs are slow on their own but file systems batch concurrent ones, when called from a conversion thread
+			// the parallel stream runs on the conversion pool
+			final Set<Path> dirs = ConcurrentHashMap.newKeySet();
+			final StringBuilder sb = new StringBuilder();
+			records.parallelStream()
+							.filter(r -> r.output == null || sync(r.output, dirs))
+							.collect(Collectors.toList())
+							.forEach(r -> append(sb, r.source));
+			dirs.forEach(Journal::syncDirectory);
+			for (Flushable f : state) {
+				f.flush();
+			}
+
+			final ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	private static boolean sync(Path output, Set<Path> dirs) {
+
+		try (FileChannel fc = FileChannel.open(output, StandardOpenOption.WRITE)) {
+			fc.force(true);
+			dirs.add(output.toAbsolutePath().getParent());
+			return true;
+		} catch (IOException e) {
+			// not journaled so it is converted again on resume
+			log.warn("Failed to sync {}, {}", output, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * make new directory entries durable, not every platform can open a directory so this is best effort.
+	 */
+	private static void syncDirectory(Path dir) {
+
+		try (FileChannel fc = FileChannel.open(dir, StandardOpenOption.READ)) {
+			fc.force(true);
+		} catch (IOException e) {
+			log.debug("Can't sync directory {}, {}", dir, e.getMessage());
+		}
+	}
+
+	private static void append(StringBuilder sb, String source) {
+
+		final CRC32 crc = new CRC32();
+		crc.update(source.getBytes(StandardCharsets.UTF_8));
+		sb.append(String.format(Locale.ROOT, "%08x", crc.getValue())).append((char) TAB).append(source)
+						.append((char) NEWLINE);
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		try {
+			checkpoint();
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package ca.codepit.tw2md;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * reads a TiddlyWiki JSON export (an array of tiddler objects) one tiddler at a time, only the tiddler being read is
+ * ever held in memory.
+ * <p>
+ * field values are returned the way they appear in a .tid file: strings as they are, numbers and booleans as their
+ * text and arrays as a TiddlyWiki list (items containing spaces wrapped in [[ ]]). nested objects are skipped.
+ *
+ * @author evan
+ */
+public class JsonTiddlerReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Reader in;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	private int pos;
+
+	private int limit;
+
+	/**
+	 * characters read before the buffer, used for error messages
+	 */
+	private long offset;
+
+	private boolean started;
+
+	private boolean finished;
+
+	public JsonTiddlerReader(Reader in) {
+
+		this.in = in;
+	}
+
+	public static JsonTiddlerReader open(Path file) throws IOException {
+
+		return new JsonTiddlerReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return true when the file starts with a JSON array
+	 */
+	public static boolean isJson(Path file) throws IOException {
+
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			int c = in.read();
+			if (c == 0xef) {
+				// UTF-8 byte order mark
+				in.skip(2);
+				c = in.read();
+			}
+			while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+				c = in.read();
+			}
+			return c == '[';
+		}
+	}
+
+	/**
+	 * @return the fields of the next tiddler or null when there are no more
+	 */
+	public Map<String, String> next() throws IOException {
+
+		if (finished) {
+			return null;
+		}
+		if (!started) {
+			skipWhitespace();
+			if (peek() == '\uFEFF') {
+				read();
+				skipWhitespace();
+			}
+			expect('[');
+			started = true;
+			skipWhitespace();
+			if (peek() == ']') {
+				read();
+				finished = true;
+				return null;
+			}
+		} else {
+			skipWhitespace();
+			final int c = read();
+			if (c == ']') {
+				finished = true;
+				return null;
+			} else if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+			skipWhitespace();
+		}
+
+		return readObject();
+	}
+
+	private Map<String, String> readObject() throws IOException {
+
+		expect('{');
+		final Map<String, String> fields = new LinkedHashMap<>();
+		skipWhitespace();
+		if (peek() == '}') {
+			read();
+			return fields;
+		}
+		while (true) {
+			skipWhitespace();
+			final String name = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			final String value = readValue();
+			if (value != null) {
+				fields.put(name, value);
+			}
+			skipWhitespace();
+			final int c = read();
+			if (c == '}') {
+				return fields;
+			} else if (c != ',') {
+				throw error("Expected ',' or '}'");
+			}
+		}
+	}
+
+	/**
+	 * @return the value as field text, null for null and nested objects
+	 */
+	private String readValue() throws IOException {
+
+		final int c = peek();
+		if (c == '"') {
+			return readString();
+		} else if (c == '[') {
+			return toList(readArray());
+		} else if (c == '{') {
+			skipObject();
+			return null;
+		}
+		final String literal = readLiteral();
+		return "null".equals(literal) ? null : literal;
+	}
+
+	private List<String> readArray() throws IOException {
+
+		expect('[');
+		final List<String> items = new ArrayList<>();
+		skipWhitespace();
+		if (peek() == ']') {
+			read();
+			return items;
+		}
+		while (true) {
+			skipWhitespace();
+			final String item = readValue();
+			if (item != null) {
+				items.add(item);
+			}
+			skipWhitespace();
+			final int c = read();
+			if (c == ']') {
+				return items;
+			} else if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+		}
+	}
+
+	private void skipObject() throws IOException {
+
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			read();
+			return;
+		}
+		while (true) {
+			skipWhitespace();
+			readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			readValue();
+			skipWhitespace();
+			final int c = read();
+			if (c == '}') {
+				return;
+			} else if (c != ',') {
+				throw error("Expected ',' or '}'");
+			}
+		}
+	}
+
+	/**
+	 * a TiddlyWiki list, the format used by the tags field
+	 */
+	private static String toList(List<String> items) {
+
+		final StringBuilder sb = new StringBuilder();
+		for (String item : items) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			if (item.indexOf(' ') >= 0) {
+				sb.append("[[").append(item).append("]]");
+			} else {
+				sb.append(item);
+			}
+		}
+		return sb.toString();
+	}
+
+	private String readString() throws IOException {
+
+		expect('"');
+		final StringBuilder sb = new StringBuilder();
+		while (true) {
+			// copy runs of plain characters straight from the buffer
+			if (pos >= limit && !fill()) {
+				throw error("Unterminated string");
+			}
+			int start = pos;
+			while (pos < limit && buffer[pos] != '"' && buffer[pos] != '\\') {
+				pos++;
+			}
+			sb.append(buffer, start, pos - start);
+			if (pos >= limit) {
+				continue;
+			}
+			final char c = buffer[pos++];
+			if (c == '"') {
+				return sb.toString();
+			}
+			final int e = read();
+			switch (e) {
+				case '"':
+				case '\\':
+				case '/':
+					sb.append((char) e);
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; i++) {
+						final int digit = Character.digit(read(), 16);
+						if (digit < 0) {
+							throw error("Invalid unicode escape");
+						}
+						code = (code << 4) + digit;
+					}
+					sb.append((char) code);
+					break;
+				default:
+					throw error("Invalid escape");
+			}
+		}
+	}
+
+	private String readLiteral() throws IOException {
+
+		final StringBuilder sb = new StringBuilder();
+		while (true) {
+			final int c = peek();
+			if (c < 0 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+				break;
+			}
+			sb.append((char) read());
+		}
+		if (sb.length() == 0) {
+			throw error("Expected a value");
+		}
+		return sb.toString();
+	}
+
+	private void skipWhitespace() throws IOException {
+
+		while (true) {
+			if (pos >= limit && !fill()) {
+				return;
+			}
+			final char c = buffer[pos];
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	private void expect(char expected) throws IOException {
+
+		if (read() != expected) {
+			throw error("Expected '" + expected + "'");
+		}
+	}
+
+	private int peek() throws IOException {
+
+		if (pos >= limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos];
+	}
+
+	private int read() throws IOException {
+
+		if (pos >= limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos++];
+	}
+
+	private boolean fill() throws IOException {
+
+		offset += limit;
+		pos = 0;
+		limit = Math.max(in.read(buffer), 0);
+		return limit > 0;
+	}
+
+	private IOException error(String message) {
+
+		return new IOException(message + " at character " + (offset + pos) + " of the JSON tiddlers");
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		in.close();
+	}
+}
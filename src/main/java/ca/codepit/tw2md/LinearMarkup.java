@@ -0,0 +1,490 @@
+package ca.codepit.tw2md;
+
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * linear time versions of the link, transclusion and macro regular expressions used by {@link Main}.
+ * <p>
+ * each method gives the same result as the regex replaceAll it mirrors (noted on the method) but instead of letting
+ * the regex engine scan ahead from every candidate position it looks up the next/previous delimiter in tables built
+ * once per pass, so long runs of unbalanced <code>[[</code>, <code>{{</code> or <code>&lt;&lt;</code> cost O(n) rather
+ * than O(n^2). Replacement text is always used literally.
+ *
+ * @author evan
+ */
+final class LinearMarkup {
+
+	private LinearMarkup() {
+
+	}
+
+	/**
+	 * try to match a rule at a position, the replacement is appended to rep.
+	 */
+	private interface Rule {
+
+		/**
+		 * @return the end of the match or -1 if the rule doesn't match at i
+		 */
+		int match(Text t, int i, StringBuilder rep);
+	}
+
+	/**
+	 * the text being scanned plus lazily built delimiter lookup tables.
+	 */
+	private static final class Text {
+
+		private final String s;
+
+		private final int n;
+
+		private final int[][] next = new int[128][];
+
+		private final int[][] lastPair = new int[128][];
+
+		private int[] nextLineEnd;
+
+		private Text(String s) {
+
+			this.s = s;
+			this.n = s.length();
+		}
+
+		/**
+		 * the index of the first c at or after from, or the text length.
+		 */
+		private int next(char c, int from) {
+
+			if (from >= n) {
+				return n;
+			}
+			int[] table = next[c];
+			if (table == null) {
+				table = new int[n + 1];
+				table[n] = n;
+				for (int i = n - 1; i >= 0; i--) {
+					table[i] = s.charAt(i) == c ? i : table[i + 1];
+				}
+				next[c] = table;
+			}
+			return table[from];
+		}
+
+		/**
+		 * the largest r <= upTo that starts a pair of c characters, or -1.
+		 */
+		private int lastPair(char c, int upTo) {
+
+			if (upTo < 0 || n < 2) {
+				return -1;
+			}
+			int[] table = lastPair[c];
+			if (table == null) {
+				table = new int[n];
+				int last = -1;
+				for (int i = 0; i < n; i++) {
+					if (i + 1 < n && s.charAt(i) == c && s.charAt(i + 1) == c) {
+						last = i;
+					}
+					table[i] = last;
+				}
+				lastPair[c] = table;
+			}
+			return table[Math.min(upTo, n - 1)];
+		}
+
+		/**
+		 * the index of the first line terminator (as matched by regex '.') at or after from, or the text length.
+		 */
+		private int nextLineEnd(int from) {
+
+			if (from >= n) {
+				return n;
+			}
+			if (nextLineEnd == null) {
+				nextLineEnd = new int[n + 1];
+				nextLineEnd[n] = n;
+				for (int i = n - 1; i >= 0; i--) {
+					final char c = s.charAt(i);
+					final boolean end = c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+					nextLineEnd[i] = end ? i : nextLineEnd[i + 1];
+				}
+			}
+			return nextLineEnd[from];
+		}
+
+		private char at(int i) {
+
+			return i < n ? s.charAt(i) : 0;
+		}
+
+		private boolean startsWith(String prefix, int i) {
+
+			return s.startsWith(prefix, i);
+		}
+
+		private int spaces(int i) {
+
+			while (i < n && s.charAt(i) == ' ') {
+				i++;
+			}
+			return i;
+		}
+
+		private int digits(int i) {
+
+			while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+				i++;
+			}
+			return i;
+		}
+	}
+
+	/**
+	 * replace every non overlapping match of the rule, matches always start with the prefix.
+	 */
+	private static String replace(String s, String prefix, Rule rule) {
+
+		int i = s.indexOf(prefix);
+		if (i < 0) {
+			return s;
+		}
+
+		final Text t = new Text(s);
+		final StringBuilder out = new StringBuilder(s.length() + 16);
+		final StringBuilder rep = new StringBuilder();
+		int last = 0;
+		while (i >= 0) {
+			rep.setLength(0);
+			final int end = rule.match(t, i, rep);
+			if (end >= 0) {
+				out.append(s, last, i).append(rep);
+				last = end;
+				i = s.indexOf(prefix, end);
+			} else {
+				i = s.indexOf(prefix, i + 1);
+			}
+		}
+
+		return last == 0 ? s : out.append(s, last, s.length()).toString();
+	}
+
+	/**
+	 * <code>\[\[([^|]+)\|(http[^]]+)]]</code> -> <code>[$1]($2)</code>
+	 */
+	static String externalLinks(String s) {
+
+		return replace(s, "[[", (t, i, rep) -> {
+			final int p = t.next('|', i + 2);
+			if (p == t.n || p == i + 2 || !t.startsWith("http", p + 1)) {
+				return -1;
+			}
+			final int q = t.next(']', p + 5);
+			if (q == p + 5 || t.at(q) != ']' || t.at(q + 1) != ']') {
+				return -1;
+			}
+			rep.append('[').append(t.s, i + 2, p).append("](").append(t.s, p + 1, q).append(')');
+			return q + 2;
+		});
+	}
+
+	/**
+	 * <code>\[\[(http[^]]*)]]</code> -> <code>$1</code>
+	 */
+	static String bareExternalLinks(String s) {
+
+		return replace(s, "[[", (t, i, rep) -> {
+			if (!t.startsWith("http", i + 2)) {
+				return -1;
+			}
+			final int q = t.next(']', i + 6);
+			if (t.at(q) != ']' || t.at(q + 1) != ']') {
+				return -1;
+			}
+			rep.append(t.s, i + 2, q);
+			return q + 2;
+		});
+	}
+
+	/**
+	 * <code>\[\[([^|]*)\|([^]]*)]]</code> -> <code>[[$2{esc}|$1]]</code>
+	 */
+	static String internalLinks(String s, String esc) {
+
+		return replace(s, "[[", (t, i, rep) -> {
+			final int p = t.next('|', i + 2);
+			if (p == t.n) {
+				return -1;
+			}
+			final int q = t.next(']', p + 1);
+			if (t.at(q) != ']' || t.at(q + 1) != ']') {
+				return -1;
+			}
+			rep.append("[[").append(t.s, p + 1, q).append(esc).append('|').append(t.s, i + 2, p).append("]]");
+			return q + 2;
+		});
+	}
+
+	/**
+	 * in order:
+	 * <ul>
+	 * <li><code>\[img *width=(\d+) +height=(\d+) +\[([^]]*)]]</code> -> <code>![[$3{esc}|$1x$2]]</code></li>
+	 * <li><code>\[img *height=(\d+) +width=(\d+) +\[([^]]*)]]</code> -> <code>![[$3{esc}|$2x$1]]</code></li>
+	 * <li><code>\[img *width=(\d+) +\[([^]]*)]]</code> -> <code>![[$2{esc}|$1]]</code></li>
+	 * <li><code>\[img *\[([^]]*)]]</code> -> <code>![[$1]]</code></li>
+	 * </ul>
+	 */
+	static String images(String s, String esc) {
+
+		s = replace(s, "[img", (t, i, rep) -> sizedImage(t, i, rep, esc, "width=", "height=", false));
+		s = replace(s, "[img", (t, i, rep) -> sizedImage(t, i, rep, esc, "height=", "width=", true));
+		s = replace(s, "[img", (t, i, rep) -> {
+			final int j = t.spaces(i + 4);
+			if (!t.startsWith("width=", j)) {
+				return -1;
+			}
+			final int w = j + 6;
+			final int we = t.digits(w);
+			final int b = t.spaces(we);
+			if (we == w || b == we) {
+				return -1;
+			}
+			return imageLink(t, b, rep, "|" + t.s.substring(w, we), esc);
+		});
+		return replace(s, "[img", (t, i, rep) -> imageLink(t, t.spaces(i + 4), rep, "", ""));
+	}
+
+	private static int sizedImage(Text t, int i, StringBuilder rep, String esc, String first, String second, boolean swap) {
+
+		final int j = t.spaces(i + 4);
+		if (!t.startsWith(first, j)) {
+			return -1;
+		}
+		final int a = j + first.length();
+		final int ae = t.digits(a);
+		final int k = t.spaces(ae);
+		if (ae == a || k == ae || !t.startsWith(second, k)) {
+			return -1;
+		}
+		final int b = k + second.length();
+		final int be = t.digits(b);
+		final int l = t.spaces(be);
+		if (be == b || l == be) {
+			return -1;
+		}
+		final String x = t.s.substring(a, ae);
+		final String y = t.s.substring(b, be);
+		return imageLink(t, l, rep, "|" + (swap ? y + "x" + x : x + "x" + y), esc);
+	}
+
+	/**
+	 * match <code>\[([^]]*)]]</code> at b
+	 */
+	private static int imageLink(Text t, int b, StringBuilder rep, String size, String esc) {
+
+		if (t.at(b) != '[') {
+			return -1;
+		}
+		final int q = t.next(']', b + 1);
+		if (t.at(q) != ']' || t.at(q + 1) != ']') {
+			return -1;
+		}
+		rep.append("![[").append(t.s, b + 1, q);
+		if (!size.isEmpty()) {
+			rep.append(esc).append(size);
+		}
+		rep.append("]]");
+		return q + 2;
+	}
+
+	/**
+	 * <code>\{\{!!([^]]*)}}</code> -> f($0, $1)
+	 */
+	static String headerTransclusions(String s, BiFunction<String, String, String> f) {
+
+		return replace(s, "{{!!", (t, i, rep) -> {
+			final int r = lastDoubleBrace(t, i + 4);
+			if (r < 0) {
+				return -1;
+			}
+			rep.append(f.apply(t.s.substring(i, r + 2), t.s.substring(i + 4, r)));
+			return r + 2;
+		});
+	}
+
+	/**
+	 * <code>\{\{([^]]*)}}</code> -> <code>![[$1]]</code>
+	 */
+	static String transclusions(String s) {
+
+		return transclusions(s, target -> "![[" + target + "]]");
+	}
+
+	/**
+	 * <code>\{\{([^]]*)}}</code> -> f($1)
+	 */
+	static String transclusions(String s, Function<String, String> f) {
+
+		return replace(s, "{{", (t, i, rep) -> {
+			final int r = lastDoubleBrace(t, i + 2);
+			if (r < 0) {
+				return -1;
+			}
+			rep.append(f.apply(t.s.substring(i + 2, r)));
+			return r + 2;
+		});
+	}
+
+	/**
+	 * <code>[^]]*}}</code> from j, greedy so it's the last <code>}}</code> before the next <code>]</code>
+	 */
+	private static int lastDoubleBrace(Text t, int j) {
+
+		final int q = t.next(']', j);
+		final int r = t.lastPair('}', q - 2);
+		return r >= j ? r : -1;
+	}
+
+	/**
+	 * <code>\{\{\{([^}]*)}}}</code> -> <code>`$0`</code>
+	 */
+	static String tripleBraces(String s) {
+
+		return replace(s, "{{{", (t, i, rep) -> {
+			final int q = t.next('}', i + 3);
+			if (t.at(q) != '}' || t.at(q + 1) != '}' || t.at(q + 2) != '}') {
+				return -1;
+			}
+			rep.append('`').append(t.s, i, q + 3).append('`');
+			return q + 3;
+		});
+	}
+
+	/**
+	 * <code>&lt;&lt;tag +([^&gt;]+)&gt;&gt;</code> -> f($1)
+	 */
+	static String tagMacros(String s, Function<String, String> f) {
+
+		return replace(s, "<<tag", (t, i, rep) -> {
+			final int j0 = i + 5;
+			final int j = t.spaces(j0);
+			if (j == j0) {
+				return -1;
+			}
+			final int q = t.next('>', j);
+			int start = j;
+			if (q == j) {
+				// only spaces, the last one becomes the tag
+				if (j - j0 < 2) {
+					return -1;
+				}
+				start = j - 1;
+			}
+			if (t.at(q) != '>' || t.at(q + 1) != '>') {
+				return -1;
+			}
+			rep.append(f.apply(t.s.substring(start, q)));
+			return q + 2;
+		});
+	}
+
+	/**
+	 * in order:
+	 * <ul>
+	 * <li><code>&lt;&lt;tkt +([^ ]+) +'([^']+)'&gt;&gt;</code> -> <code>[[$1]] - $2</code></li>
+	 * <li><code>&lt;&lt;tkt +([^ ]+) *&gt;&gt;</code> -> <code>[[$1]]</code></li>
+	 * </ul>
+	 */
+	static String tktMacros(String s) {
+
+		s = replace(s, "<<tkt", (t, i, rep) -> {
+			final int j = t.spaces(i + 5);
+			final int k = t.next(' ', j);
+			final int m = t.spaces(k);
+			if (j == i + 5 || k == j || m == k || t.at(m) != '\'') {
+				return -1;
+			}
+			final int r = t.next('\'', m + 1);
+			if (r == m + 1 || r == t.n || !t.startsWith(">>", r + 1)) {
+				return -1;
+			}
+			rep.append("[[").append(t.s, j, k).append("]] - ").append(t.s, m + 1, r);
+			return r + 3;
+		});
+		return replace(s, "<<tkt", (t, i, rep) -> {
+			final int j = t.spaces(i + 5);
+			final int k = t.next(' ', j);
+			if (j == i + 5 || k == j) {
+				return -1;
+			}
+			final int m = t.spaces(k);
+			if (t.startsWith(">>", m)) {
+				rep.append("[[").append(t.s, j, k).append("]]");
+				return m + 2;
+			}
+			// backtrack into the macro argument
+			final int r = t.lastPair('>', k - 2);
+			if (r <= j) {
+				return -1;
+			}
+			rep.append("[[").append(t.s, j, r).append("]]");
+			return r + 2;
+		});
+	}
+
+	/**
+	 * <code>&lt;&lt;richlink +"([^"]+)" *&gt;&gt;</code> -> f($1)
+	 */
+	static String richlinkMacros(String s, Function<String, String> f) {
+
+		return replace(s, "<<richlink", (t, i, rep) -> {
+			final int j = t.spaces(i + 10);
+			if (j == i + 10 || t.at(j) != '"') {
+				return -1;
+			}
+			final int r = t.next('"', j + 1);
+			if (r == j + 1 || r == t.n) {
+				return -1;
+			}
+			final int m = t.spaces(r + 1);
+			if (!t.startsWith(">>", m)) {
+				return -1;
+			}
+			rep.append(f.apply(t.s.substring(j + 1, r)));
+			return m + 2;
+		});
+	}
+
+	/**
+	 * in order:
+	 * <ul>
+	 * <li><code>&lt;&lt;.*&gt;&gt;</code> -> <code>`$0`</code></li>
+	 * <li><code>&lt;\$[^&gt;]*&gt;</code> -> <code>`$0`</code></li>
+	 * <li><code>&lt;/\$[^&gt;]*&gt;</code> -> <code>`$0`</code></li>
+	 * </ul>
+	 */
+	static String unknownMacros(String s) {
+
+		s = replace(s, "<<", (t, i, rep) -> {
+			final int r = t.lastPair('>', t.nextLineEnd(i + 2) - 2);
+			if (r < i + 2) {
+				return -1;
+			}
+			rep.append('`').append(t.s, i, r + 2).append('`');
+			return r + 2;
+		});
+		s = replace(s, "<$", (t, i, rep) -> widgetTag(t, i, i + 2, rep));
+		return replace(s, "</$", (t, i, rep) -> widgetTag(t, i, i + 3, rep));
+	}
+
+	private static int widgetTag(Text t, int i, int j, StringBuilder rep) {
+
+		final int q = t.next('>', j);
+		if (q == t.n) {
+			return -1;
+		}
+		rep.append('`').append(t.s, i, q + 1).append('`');
+		return q + 1;
+	}
+}
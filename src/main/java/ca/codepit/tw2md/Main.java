@@ -6,16 +6,25 @@ import org.yaml.snakeyaml.Yaml;
 import picocli.CommandLine;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static ca.codepit.tw2md.Main.BLOCK_TYPE.*;
@@ -27,32 +36,114 @@ import static picocli.CommandLine.*;
 @Command(name = "tw2md",
 				mixinStandardHelpOptions = true,
 				version = "tw2md 1.0",
+				subcommands = {Batch.class, Serve.class},
 				description = "Convert TiddlyWiki files to Obsidian compatible markdown files.")
 public class Main implements Callable<Integer> {
 
-	private static final Logger log = LoggerFactory.getLogger(Main.class);
+	/**
+	 * logback is configured on first use, so printing help or the version never pays for it.
+	 */
+	private static final class LogHolder {
+
+		private static final Logger LOG = LoggerFactory.getLogger(Main.class);
+	}
 
 	private static final String TAGS_HEADER = "tags";
 	private static final String TYPE_HEADER = "type";
 	private static final String TITLE_HEADER = "title";
+	private static final String TEXT_FIELD = "text";
 
 	private static final String ALIASES_FRONTMATTER = "aliases";
 	private static final String TAGS_FRONTMATTER = "tags";
-	private static final String TIDDLERS_DIR = "/tiddlers";
-	private static final String TIDDLYWIKI_TYPE = "text/vnd.tiddlywiki";
+	private static final String TIDDLERS = "tiddlers";
+	static final String TIDDLYWIKI_TYPE = "text/vnd.tiddlywiki";
 	private static final String OSX_DS_STORE_DIR = ".DS_Store";
 	private static final String TIDDLER_EXT = ".tid";
 	private static final String MARKDOWN_EXT = ".md";
+	private static final String STATE_DIR = ".tw2md";
+	private static final String FAILURES_FILE = "failures.tsv";
+	private static final String SOURCES_FILE = "sources.tsv";
+	private static final String JOURNAL_FILE = "journal.log";
+	private static final String COLLISIONS_FILE = "collisions.tsv";
+	private static final String TAG_SUMMARY_NOTE = "Tags";
+	private static final String CHECKSUMS_FILE = "checksums.tsv";
+
+	/**
+	 * the most rendered markdown of transcluded tiddlers kept in memory, in characters
+	 */
+	private static final long TRANSCLUSION_CACHE_CHARS = 16 * 1024 * 1024;
+
+	/**
+	 * binary tiddlers larger than this are decoded as they are read instead of in memory
+	 */
+	private static final long STREAM_BINARY_BYTES = 1024 * 1024;
+
+	/**
+	 * roughly the most memory converting a tiddler takes, as a multiple of its size. the file's bytes, its lines, the
+	 * tiddler's text and the markdown are all held at once, a binary tiddler held in memory takes a little less.
+	 */
+	private static final long TIDDLER_COST_FACTOR = 8;
+
+	/**
+	 * the memory taken by a file that is copied or decoded as it is read, its buffers
+	 */
+	private static final long STREAM_COST = 256 * 1024;
+
+	/**
+	 * the most of a tar entry read while looking for the end of its header, so it can be read again as a text tiddler
+	 */
+	private static final int MAX_HEADER_BYTES = 1024 * 1024;
+
+	/**
+	 * stands in for inlined markdown until the other markup in the fragment has been rendered
+	 */
+	private static final char INLINED_START = '\uE000';
+	private static final char INLINED_END = '\uE001';
+	private final static Pattern INLINED_REGEX = Pattern.compile(INLINED_START + "(\\d+)" + INLINED_END);
 
 	private static final String NL = System.lineSeparator();
 	private static final String PATH_CHAR = File.separator;
 
+	private final static Pattern TIDDLER_FILE_NAME_REGEX = Pattern.compile("[<>~:\"/\\\\|?*^]");
+	private final static int MAX_TIDDLER_FILE_NAME = 200;
 	private final static Pattern UNDERLINE_REGEX = Pattern.compile("__");
 	private final static Pattern SUPER_REGEX = Pattern.compile("\\^\\^");
 	private final static Pattern SUB_REGEX = Pattern.compile(",,");
 	private final static Pattern TITLE_REGEX = Pattern.compile("^(!+) *");
 	private final static Pattern BULLET_LIST_REGEX = Pattern.compile("^ *([-*]+) *");
 	private final static Pattern NUMBER_LIST_REGEX = Pattern.compile("^ *(#+) *");
+	private final static Pattern BOLD_REGEX = Pattern.compile("''");
+	private final static Pattern ITALIC_REGEX = Pattern.compile("([^:])//");
+	private final static Pattern LEADING_ITALIC_REGEX = Pattern.compile("^//");
+	private final static Pattern EXTERNAL_LINK_REGEX = Pattern.compile("\\[\\[([^|]+)\\|(http[^]]+)]]");
+	private final static Pattern BARE_EXTERNAL_LINK_REGEX = Pattern.compile("\\[\\[(http[^]]*)]]");
+	private final static Pattern INTERNAL_LINK_REGEX = Pattern.compile("\\[\\[([^|]*)\\|([^]]*)]]");
+	private final static Pattern IMAGE_WIDTH_HEIGHT_REGEX = Pattern.compile("\\[img *width=(\\d+) +height=(\\d+) +\\[([^]]*)]]");
+	private final static Pattern IMAGE_HEIGHT_WIDTH_REGEX = Pattern.compile("\\[img *height=(\\d+) +width=(\\d+) +\\[([^]]*)]]");
+	private final static Pattern IMAGE_WIDTH_REGEX = Pattern.compile("\\[img *width=(\\d+) +\\[([^]]*)]]");
+	private final static Pattern IMAGE_REGEX = Pattern.compile("\\[img *\\[([^]]*)]]");
+	private final static Pattern HEADER_TRANSCLUSION_REGEX = Pattern.compile("\\{\\{!!([^]]*)}}");
+	private final static Pattern TRANSCLUSION_REGEX = Pattern.compile("\\{\\{([^]]*)}}");
+	private final static Pattern TRIPLE_BRACE_REGEX = Pattern.compile("\\{\\{\\{([^}]*)}}}");
+	private final static Pattern TAG_MACRO_REGEX = Pattern.compile("<<tag +([^>]+)>>");
+	private final static Pattern TKT_MACRO_WITH_TEXT_REGEX = Pattern.compile("<<tkt +([^ ]+) +'([^']+)'>>");
+	private final static Pattern TKT_MACRO_REGEX = Pattern.compile("<<tkt +([^ ]+) *>>");
+	private final static Pattern RICHLINK_MACRO_REGEX = Pattern.compile("<<richlink +\"([^\"]+)\" *>>");
+	private final static Pattern UNKNOWN_MACRO_REGEX = Pattern.compile("<<.*>>");
+	private final static Pattern WIDGET_OPEN_REGEX = Pattern.compile("<\\$[^>]*>");
+	private final static Pattern WIDGET_CLOSE_REGEX = Pattern.compile("</\\$[^>]*>");
+	private final static Pattern STRUCK_OUT_ROW_REGEX = Pattern.compile("^( *[#-*]+ *)~~(.*)~~$");
+	private final static Pattern CHECKED_ROW_REGEX = Pattern.compile("^ *([#-*]+) *~~.*~~$");
+	private final static Pattern ROW_INDENT_REGEX = Pattern.compile("^ *([#*\\-]+).*$");
+	private final static Pattern SPLIT_TAGS_REGEX = Pattern.compile("\\[\\[([^]]+)]]|([^ ]+)");
+	private final static Pattern NUMERIC_TAG_REGEX = Pattern.compile("\\d+");
+
+	/**
+	 * Yaml instances are not thread safe but are expensive to create, keep one per conversion thread. SnakeYAML is only
+	 * loaded when the first front matter is rendered.
+	 */
+	@SuppressWarnings("Convert2MethodRef")
+	private final static ThreadLocal<Yaml> YAML = ThreadLocal.withInitial(() -> new Yaml());
 
 	enum BLOCK_TYPE {
 		BLOCK_END,
@@ -66,220 +157,1876 @@ public class Main implements Callable<Integer> {
 		NUMBER_LIST
 	}
 
-	enum CASE_CONVERTER {
-		PASCAL(Main::pascalCaseConversion),
-		CAMEL(Main::camelCaseConversion),
-		UPPER(Main::upperCaseConversion),
-		LOWER(Main::lowerCaseConversion),
-		NONE(Main::noCaseConversion);
+	enum PROGRESS_MODE {
+		TEXT,
+		JSON,
+		NONE
+	}
+
+	/**
+	 * conversion stages, used to report where a tiddler failed.
+	 */
+	enum STAGE {
+		READ,
+		RENDER,
+		DECODE,
+		WRITE,
+		COPY
+	}
+
+	enum SOURCE_TYPE {
+		DIRECTORY,
+		ZIP,
+		TAR,
+		JSON
+	}
+
+	enum WRITE_MODE {
+		ALWAYS,
+		CHANGED
+	}
+
+	enum RENDER_MODE {
+		REGEX,
+		LINEAR
+	}
+
+	enum CHECKSUM {
+		SHA256,
+		CRC32C
+	}
+
+	enum CASE_CONVERTER {
+		PASCAL(Main::pascalCaseConversion),
+		CAMEL(Main::camelCaseConversion),
+		UPPER(Main::upperCaseConversion),
+		LOWER(Main::lowerCaseConversion),
+		NONE(Main::noCaseConversion);
+
+		private final Function<String, String> f;
+
+		CASE_CONVERTER(Function<String, String> f) {
+
+			this.f = f;
+		}
+
+		private String convert(String s) {
+
+			return f.apply(s);
+		}
+	}
+
+//	CONFIGURATION PARAMETERS
+//	================================================================================================================
+
+	/**
+	 * tiddlywiki wiki root directory, a zip or tar archive of it or a JSON tiddler export
+	 */
+	@SuppressWarnings("unused")
+	@Parameters(index = "0", arity = "0..1", description = "The root directory containing the tiddlyWiki 'tiddlers' directory," +
+					" a .zip, .tar or .tar.gz archive of it, or a JSON export of its tiddlers.")
+	private File sourceDirectory;
+
+	/**
+	 * output root directory
+	 */
+	@SuppressWarnings("unused")
+	@Parameters(index = "1", arity = "0..1", description = "The output directory were the Obsidian markdown files will be saved.")
+	private File outputDirectory;
+
+	/**
+	 * additional assets to move into the output directory
+	 */
+	@SuppressWarnings({"unused", "OptionalUsedAsFieldOrParameterType"})
+	@Option(names = {"--tiddlywiki-assets-path"}, description = "Include assets from another directory into the Obsidian vault" +
+					" subdirectory, path is relative to the tiddlywiki home directory.")
+	private Optional<String> tiddlyWikiAssetsPath;
+
+	/**
+	 * collect assets to a directory
+	 */
+	@SuppressWarnings({"unused", "OptionalUsedAsFieldOrParameterType"})
+	@Option(names = {"--assets-path"}, description = "Collect assets into an Obsidian vault subdirectory, path is relative" +
+					" to the output directory.")
+	private Optional<String> assetPath;
+
+	/**
+	 * write tag index notes to a directory
+	 */
+	@SuppressWarnings({"unused", "OptionalUsedAsFieldOrParameterType"})
+	@Option(names = {"--tag-index"}, description = "Write an index note listing the notes filed under each tag, and a" +
+					" summary of all the tags, into an Obsidian vault subdirectory, path is relative to the output directory." +
+					" The index of a tag mapped with --map-tag is written to the mapped folder.")
+	private Optional<String> tagIndexPath = Optional.empty();
+
+	@Option(names = {"--inline-transclusions"}, description = "Replace {{Title}} transclusions with the transcluded" +
+					" tiddler's markdown instead of an embed, for vaults that have to stand on their own. Each tiddler is" +
+					" rendered once, cycles and transclusions more than " + Transclusions.MAX_DEPTH + " deep are left as" +
+					" embeds. Only wiki directories and zips, not tar archives or JSON exports.")
+	protected boolean inlineTransclusions;
+
+	@Option(names = {"--illegal-tag-character"}, defaultValue = "_", description = "Character used to replace illegal Obsidian" +
+					" tag characters (Default: ${DEFAULT-VALUE}).")
+	protected String illegalTagCharacterReplacement;
+
+	@Option(names = {"--numeric-tag-prefix"}, defaultValue = "t", description = "Prefix added in front of numeric tiddlywiki" +
+					" tags (Default: ${DEFAULT-VALUE}).")
+	protected String numericTagPrefix;
+
+	@Option(names = {"--space-tag-character"}, defaultValue = "-", description = "Character used to replace space characters" +
+					" used in tiddlywiki tags (Default: ${DEFAULT-VALUE}).")
+	protected String spaceTagCharacterReplacement;
+
+	@Option(names = {"--tag-case-conversion"}, defaultValue = "NONE", description = "Convert tag case, can be combined with" +
+					" `--space-tag-character`, valid values: ${COMPLETION-CANDIDATES}")
+	protected CASE_CONVERTER tagCaseConversion;
+
+	@Option(names = {"--detect-checklists"}, description = "Treat lists that contain a struck out item as todo lists.")
+	protected boolean detectChecklists;
+
+	@Option(names = {"--detect-checklist-headers"}, description = "Do not add checkboxes to todo list items that have indented sub-items.")
+	protected boolean detectChecklistHeaders;
+
+	@Option(names = {"--include-system-tiddlers"}, description = "Include system tiddlers in the output directory.")
+	protected boolean includeSystemTiddlers;
+
+	@Option(names = {"--add-titles"}, description = "Add the TiddlyWiki title as a header to the top of all output documents.")
+	protected boolean addTitles;
+
+	@Option(names = {"--add-titles-tag"}, description = "Add the TiddlyWiki title as a header to the top of documents when" +
+					" tagged with this tag.")
+	protected List<String> addTitlesForTags = new ArrayList<>();
+
+	@Option(names = {"-m", "--map-tag"}, description = "Map tiddlywiki tags into Obsidian vault subdirectories.")
+	protected Map<String, String> tagToFolderMap = new HashMap<>();
+
+	@Option(names = {"--progress"}, defaultValue = "TEXT", description = "Progress reporting to stderr, TEXT updates a" +
+					" status line, JSON writes JSON lines, valid values: ${COMPLETION-CANDIDATES}")
+	protected PROGRESS_MODE progressMode = PROGRESS_MODE.TEXT;
+
+	@Option(names = {"--render-mode"}, defaultValue = "REGEX", description = "How links, transclusions and macros are" +
+					" matched, LINEAR is guaranteed to run in linear time on pathological tiddlers, valid values:" +
+					" ${COMPLETION-CANDIDATES} (Default: ${DEFAULT-VALUE}).")
+	protected RENDER_MODE renderMode = RENDER_MODE.REGEX;
+
+	@Option(names = {"--render-budget"}, defaultValue = "10000", description = "CPU time budget in milliseconds for" +
+					" rendering a tiddler, a tiddler over budget is saved as raw text in a code block, 0 disables the" +
+					" budget (Default: ${DEFAULT-VALUE}).")
+	protected long renderBudgetMillis = 10000;
+
+	@Option(names = {"--write-mode"}, defaultValue = "ALWAYS", description = "ALWAYS writes every output file, CHANGED" +
+					" leaves files that already hold the same bytes untouched so rerunning into a vault only updates what" +
+					" changed, valid values: ${COMPLETION-CANDIDATES} (Default: ${DEFAULT-VALUE}).")
+	protected WRITE_MODE writeMode = WRITE_MODE.ALWAYS;
+
+	@Option(names = {"--checksums"}, description = "Write the size and checksum of every output file, hashed as it is" +
+					" written, to the output directory '.tw2md/checksums.tsv' so the vault can be checked or synced without" +
+					" reading it again. CRC32C is much faster than SHA256, valid values: ${COMPLETION-CANDIDATES}.")
+	protected CHECKSUM checksums;
+
+	@Option(names = {"--retry-failed"}, description = "Only convert the files that failed in the previous run, failures" +
+					" are listed in the output directory '.tw2md/failures.tsv' file.")
+	protected boolean retryFailed;
+
+	@Option(names = {"--resume"}, description = "Carry on from where an interrupted run stopped, files recorded in the" +
+					" output directory '.tw2md/journal.log' are not converted again.")
+	protected boolean resume;
+
+	@Option(names = {"--shard"}, converter = Shard.Converter.class, description = "Only convert this slice (i/N) of the" +
+					" wiki, e.g. 3/16, so a conversion can be split across processes or machines writing the same output" +
+					" directory.")
+	protected Shard shard;
+
+	@Option(names = {"--verify-shards"}, description = "Check that the N shards of a sharded conversion converted every" +
+					" file exactly once, and merge their failures so --retry-failed can be used.")
+	protected int verifyShards;
+
+	@Option(names = {"--plan"}, description = "Report what a conversion would do and estimate how long it would take," +
+					" from the directory walk, the tiddler headers and a sample of tiddlers rendered in memory. Nothing is" +
+					" written.")
+	protected boolean plan;
+
+	@Option(names = {"--threads"}, description = "Number of worker threads used to scan and convert the wiki, use 1 for" +
+					" reproducible logs (Default: number of processors).")
+	protected int threads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = {"--memory-budget"}, paramLabel = "<MB>", description = "Memory for the tiddlers being converted at" +
+					" once, estimated from their size and type, the rest wait until there is room. Binary tiddlers over 1 MB" +
+					" are decoded as they are read (Default: half the maximum heap).")
+	protected long memoryBudgetMb;
+
+//	INTERNAL STATE
+//	================================================================================================================
+
+	/**
+	 * shared with other conversions, e.g. the jobs of a batch, instead of a budget of its own
+	 */
+	private MemoryBudget memoryBudget;
+
+	/**
+	 * where the plan and the shard verification are reported, stdout if null
+	 */
+	private PrintStream out;
+
+	@SuppressWarnings("unused")
+	@Spec
+	private Model.CommandSpec spec;
+
+	/**
+	 * open/close state of the inline markup that toggles, kept per thread so tiddlers can be converted in parallel.
+	 */
+	private static class RenderState {
+
+		private final RenderBudget budget;
+
+		private boolean openUnderline = true;
+
+		private boolean openSub = true;
+
+		private boolean openSup = true;
+
+		/**
+		 * the markdown of the transclusions inlined in the fragment being rendered
+		 */
+		private final List<String> inlined = new ArrayList<>();
+
+		private RenderState(RenderBudget budget) {
+
+			this.budget = budget;
+		}
+	}
+
+	private final ThreadLocal<RenderState> renderState = ThreadLocal.withInitial(() -> new RenderState(RenderBudget.UNLIMITED));
+
+	/**
+	 * renders transcluded tiddlers for --inline-transclusions, null when they are embedded
+	 */
+	private Transclusions transclusions;
+
+	private static Logger log() {
+
+		return LogHolder.LOG;
+	}
+
+	public static void main(String[] args) {
+
+		int exitCode = new CommandLine(new Main()).execute(args);
+		System.exit(exitCode);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		// the directories are optional so subcommands can be used without them, they are required for a conversion
+		if (sourceDirectory == null || outputDirectory == null) {
+			throw new ParameterException(spec.commandLine(), "Missing required parameters: '<sourceDirectory>', '<outputDirectory>'");
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		final Progress progress = new Progress(progressMode);
+		final int exitCode;
+		try {
+			exitCode = dispatch(pool, progress);
+		} finally {
+			pool.shutdown();
+		}
+
+		if (verifyShards == 0 && !plan) {
+			progress.done();
+			System.out.println("Done!");
+		}
+
+		return exitCode;
+	}
+
+	/**
+	 * do what the options ask for, verify the shards, print the plan or convert the wiki, on a pool which may be shared
+	 * with other conversions.
+	 *
+	 * @return the exit code
+	 */
+	int dispatch(ForkJoinPool pool, Progress progress) throws IOException, InterruptedException, ExecutionException {
+
+		if (verifyShards > 0) {
+			return verifyShards(pool, verifyShards) == 0 ? 0 : 1;
+		}
+		if (plan) {
+			printPlan(pool);
+			return 0;
+		}
+		convert(pool, progress);
+		return 0;
+	}
+
+	/**
+	 * admit tiddlers against a budget shared with other conversions, --memory-budget is ignored
+	 */
+	void setMemoryBudget(MemoryBudget memoryBudget) {
+
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * report the plan or the shard verification to this stream instead of stdout
+	 */
+	void setOut(PrintStream out) {
+
+		this.out = out;
+	}
+
+	private PrintStream report() {
+
+		return out == null ? System.out : out;
+	}
+
+	/**
+	 * convert the wiki, scanning and conversion work is run on the pool which may be shared with other conversions.
+	 */
+	void convert(ForkJoinPool pool, Progress progress) throws IOException, InterruptedException, ExecutionException {
+
+		// nothing is made outside the vault
+		final File assetDir = assetPath.map(p -> vaultDirectory("--assets-path", p)).orElse(outputDirectory);
+		final List<File> mapDirs = new ArrayList<>();
+		for (String mapFolders : tagToFolderMap.values()) {
+			mapDirs.add(vaultDirectory("--map-tag", mapFolders));
+		}
+		tagIndexPath.ifPresent(p -> vaultDirectory("--tag-index", p));
+
+		// make directories
+		if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+			log().warn("Failed to create output directory: {}", outputDirectory);
+		}
+		if (!assetDir.exists() && !assetDir.mkdirs()) {
+			log().warn("Failed to create asset directory: {}", assetDir);
+		}
+		for (File outDir : mapDirs) {
+			if (!outDir.exists() && !outDir.mkdirs()) {
+				log().warn("Failed to create output map directory: {}", outDir);
+			}
+		}
+
+		final SOURCE_TYPE sourceType = sourceType();
+		// a retry adds to the journal of the run it is retrying
+		try (FileSystem zip = sourceType == SOURCE_TYPE.ZIP ? openZip() : null;
+				 Journal journal = Journal.open(stateFile(stateFileName(JOURNAL_FILE, shard)), resume || retryFailed)) {
+			// streamed sources are identified by their (relative) path in the wiki
+			final boolean streamed = sourceType == SOURCE_TYPE.TAR || sourceType == SOURCE_TYPE.JSON;
+			final Path sourceRoot = streamed ? Paths.get("") : sourceRoot(zip);
+			final ConversionRun run = new ConversionRun(sourceRoot, outputDirectory.toPath(), assetDir, progress,
+							shard == null ? null : new ShardManifest(stateFile(ShardManifest.fileName(shard))), journal);
+			if (shard != null) {
+				// the sources journaled by the run being carried on keep their records
+				run.getShardManifest().start(resume || retryFailed);
+				journal.flushBeforeCheckpoint(run.getShardManifest());
+			}
+
+			final Path collisionsFile = stateFile(stateFileName(COLLISIONS_FILE, shard));
+			if (resume || retryFailed) {
+				run.getOutputNames().load(collisionsFile);
+			}
+			// the collisions of an earlier run are dropped by a new one before any of its sources are journaled
+			run.getOutputNames().save(collisionsFile);
+			journal.flushBeforeCheckpoint(() -> run.getOutputNames().update(collisionsFile));
+
+			final MemoryBudget budget = memoryBudget != null ? memoryBudget : new MemoryBudget(memoryBudgetMb);
+			run.setMemoryBudget(budget);
+
+			final Path checksumsFile = stateFile(stateFileName(CHECKSUMS_FILE, shard));
+			if (checksums != null) {
+				// the outputs of the run being carried on are kept, anything converted again replaces its line
+				run.setChecksums(new Checksums(checksums, outputDirectory.toPath(), checksumsFile));
+				run.getChecksums().start(resume || retryFailed);
+				journal.flushBeforeCheckpoint(run.getChecksums());
+			}
+
+			if (tagIndexPath.isPresent()) {
+				if (shard != null || resume || retryFailed) {
+					// the index has to see every tiddler
+					log().warn("Tag index not written, --tag-index needs a full conversion without --shard, --resume or --retry-failed");
+				} else {
+					run.setTagIndex(new TagIndex());
+				}
+			}
+
+			Predicate<String> selected = selection(journal);
+			List<Path> retry = null;
+			if (retryFailed) {
+				final Path failuresFile = failuresFile();
+				if (!Files.exists(failuresFile)) {
+					log().info("No failures to retry: {}", failuresFile);
+					return;
+				}
+				retry = Failures.read(failuresFile, sourceRoot);
+				final Set<String> failed = new HashSet<>();
+				for (Path p : retry) {
+					failed.add(run.relativeSource(p));
+				}
+				selected = selected.and(failed::contains);
+			}
+
+			if (inlineTransclusions && streamed) {
+				// a streamed tiddler can't be looked up when another one transcludes it
+				log().warn("Transclusions are embedded, --inline-transclusions needs a wiki directory or zip");
+			}
+
+			if (sourceType == SOURCE_TYPE.TAR) {
+				convertTar(pool, run, selected);
+			} else if (sourceType == SOURCE_TYPE.JSON) {
+				convertJson(pool, run, selected);
+			} else {
+				convertTree(pool, run, sourceRoot, selected, retry);
+			}
+
+			log().debug("Memory budget {} MB, peak {} MB, {} tiddlers waited for memory", budget.getBudget() >> 20,
+							budget.getPeak() >> 20, budget.getWaits());
+
+			if (run.getTagIndex() != null) {
+				writeTagIndex(run);
+			}
+			if (run.getChecksums() != null) {
+				run.getChecksums().save();
+				log().info("Checksums of {} files written to {}", run.getChecksums().size(), checksumsFile);
+			}
+			saveFailures(run.getFailures());
+			if (writeMode == WRITE_MODE.CHANGED) {
+				log().info("{} files written, {} unchanged", run.getWritten(), run.getUnchanged());
+			}
+			run.getOutputNames().save(collisionsFile);
+			if (run.getOutputNames().size() > 0) {
+				log().warn("{} files were renamed so they don't overwrite each other, see {}", run.getOutputNames().size(),
+								collisionsFile);
+			}
+			if (shard != null) {
+				run.getShardManifest().save();
+			}
+		}
+	}
+
+	/**
+	 * a directory given by an option, relative to the output directory
+	 *
+	 * @throws ParameterException if it is outside the output directory
+	 */
+	private File vaultDirectory(String option, String path) {
+
+		final File dir = new File(outputDirectory, path);
+		if (!dir.toPath().toAbsolutePath().normalize().startsWith(outputDirectory.toPath().toAbsolutePath().normalize())) {
+			throw new ParameterException(spec.commandLine(), "Option " + option + " must be a path inside the vault: " + path);
+		}
+		return dir;
+	}
+
+	/**
+	 * which of the wiki's source files to convert, given by their path relative to the wiki.
+	 */
+	private Predicate<String> selection(Journal journal) {
+
+		Predicate<String> selected = source -> true;
+		if (shard != null) {
+			// the whole wiki is scanned so anything derived from it is the same on every shard, only the files converted
+			// are limited to this shard
+			log().info("Converting shard {}", shard);
+			selected = selected.and(shard::owns);
+		}
+		final Set<String> completed = journal.getCompleted();
+		if (resume && !completed.isEmpty()) {
+			log().info("Resuming, {} files were converted by the previous run", completed.size());
+			selected = selected.and(source -> !completed.contains(source));
+		}
+		return selected;
+	}
+
+	/**
+	 * convert a wiki directory, on disk or in a zip. files are handed to the pool as the scan finds them, all the tiddlers
+	 * are converted before the assets so they are the first to claim their output names.
+	 *
+	 * @param retry the files to convert again, read straight from their paths instead of scanning the wiki. null to
+	 *              convert the files the scan finds
+	 */
+	private void convertTree(ForkJoinPool pool, ConversionRun run, Path sourceRoot, Predicate<String> selected,
+													 List<Path> retry) throws IOException, InterruptedException {
+
+		final DirectoryScanner scanner = new DirectoryScanner(pool);
+		final Semaphore inFlight = new Semaphore(maxInFlight(pool));
+		final Path tiddlersDir = sourceRoot.resolve(TIDDLERS);
+
+		try {
+			if (inlineTransclusions) {
+				// any tiddler may be transcluded by the first one rendered, they all have to be found before
+				final List<DirectoryScanner.Entry> tiddlerFiles;
+				try (Stream<DirectoryScanner.Entry> entries = tiddlerEntries(scanner, sourceRoot)) {
+					tiddlerFiles = entries.collect(Collectors.toList());
+				}
+				transclusions = new Transclusions(tiddlerLookup(tiddlerFiles), TRANSCLUSION_CACHE_CHARS);
+				convertTiddlerFiles(pool, inFlight,
+								retry == null ? tiddlerFiles.iterator() : retried(retry, tiddlersDir, false).iterator(), run, selected);
+			} else if (retry != null) {
+				convertTiddlerFiles(pool, inFlight, retried(retry, tiddlersDir, false).iterator(), run, selected);
+			} else {
+				try (Stream<DirectoryScanner.Entry> entries = tiddlerEntries(scanner, sourceRoot)) {
+					convertTiddlerFiles(pool, inFlight, entries.iterator(), run, selected);
+				}
+			}
+
+			// wait for the tiddlers before the assets
+			inFlight.acquire(maxInFlight(pool));
+			inFlight.release(maxInFlight(pool));
+
+			if (tiddlyWikiAssetsPath.isPresent()) {
+				final Path sap = sourceRoot.resolve(relativeName(tiddlyWikiAssetsPath.get()));
+				if (retry != null) {
+					copyTiddlyWikiAssets(pool, inFlight, retried(retry, sap, true).iterator(), sap, run, selected);
+				} else {
+					try (Stream<DirectoryScanner.Entry> entries = assetEntries(scanner, sap)) {
+						copyTiddlyWikiAssets(pool, inFlight, entries.iterator(), sap, run, selected);
+					} catch (IOException e) {
+						log().error("{}", e.getMessage(), e);
+					}
+				}
+			}
+		} finally {
+			inFlight.acquire(maxInFlight(pool));
+		}
+
+		if (transclusions != null) {
+			log().info("{} transclusions inlined, {} tiddlers rendered for them", transclusions.getInlined(),
+							transclusions.getRendered());
+		}
+	}
+
+	private void convertTiddlerFiles(ForkJoinPool pool, Semaphore inFlight, Iterator<DirectoryScanner.Entry> entries,
+																	 ConversionRun run, Predicate<String> selected) throws InterruptedException {
+
+		while (entries.hasNext()) {
+			final DirectoryScanner.Entry entry = entries.next();
+			if (selected.test(run.relativeSource(entry.getPath()))) {
+				run.getProgress().addTotal(1);
+				final Runnable task = run.getOutputNames().ordered(entry.getName(), () -> processTiddlerFile(entry, run));
+				execute(pool, inFlight, task);
+			}
+		}
+	}
+
+	/**
+	 * copy the tiddlywiki assets, each directory is made when the scan gets to it so its files can be copied in parallel
+	 */
+	private void copyTiddlyWikiAssets(ForkJoinPool pool, Semaphore inFlight, Iterator<DirectoryScanner.Entry> entries,
+																		Path sap, ConversionRun run, Predicate<String> selected)
+					throws InterruptedException {
+
+		while (entries.hasNext()) {
+			final DirectoryScanner.Entry entry = entries.next();
+			if (entry.isDirectory()) {
+				final File outDir = new File(run.getAssetDir(), sap.relativize(entry.getPath()).toString());
+				if (outDir.exists() || outDir.mkdirs()) {
+					log().debug("MKDIR: {}", outDir.getAbsolutePath());
+				} else {
+					log().warn("Failed to MKDIR: {}", outDir.getAbsolutePath());
+				}
+			} else if (selected.test(run.relativeSource(entry.getPath()))) {
+				run.getProgress().addTotal(1);
+				final Runnable task = run.getOutputNames().ordered(entry.getName(), () -> copyTiddlyWikiAsset(entry, sap, run));
+				execute(pool, inFlight, task);
+			}
+		}
+	}
+
+	/**
+	 * finds a wiki text tiddler by the file name TiddlyWiki gives its title, the file is read each time it is asked for.
+	 */
+	private Function<String, Tiddler> tiddlerLookup(List<DirectoryScanner.Entry> tiddlerFiles) {
+
+		final Map<String, Path> byName = new HashMap<>();
+		for (DirectoryScanner.Entry e : tiddlerFiles) {
+			if (e.getName().endsWith(TIDDLER_EXT)) {
+				byName.putIfAbsent(e.getName(), e.getPath());
+			}
+		}
+		return title -> {
+			final Path p = byName.get(tiddlerFileName(title));
+			if (p == null) {
+				return null;
+			}
+			try {
+				final Tiddler t = parseTiddler(p);
+				return title.equals(t.getHeader(TITLE_HEADER)) && TIDDLYWIKI_TYPE.equals(t.getHeader(TYPE_HEADER)) ? t : null;
+			} catch (IOException e) {
+				log().warn("Can't inline {}, {}", p, e.getMessage());
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * convert a wiki straight out of a tar archive. the archive can only be read in order, tiddlers are read into memory
+	 * and converted on the pool while the reader moves on, anything else is copied from the archive as it is read. the
+	 * reader waits when the tiddlers in memory would go over the memory budget.
+	 */
+	private void convertTar(ForkJoinPool pool, ConversionRun run, Predicate<String> selected)
+					throws IOException, InterruptedException {
+
+		final Semaphore inFlight = new Semaphore(maxInFlight(pool));
+		final ArchiveLayout layout = new ArchiveLayout();
+		final SidecarJoin<PendingAsset> sidecars = new SidecarJoin<>();
+		final Progress progress = run.getProgress();
+
+		try (TarStream tar = TarStream.open(sourceDirectory.toPath())) {
+			for (TarStream.Entry entry = tar.next(); entry != null; entry = tar.next()) {
+				final String name = layout.wikiName(entry.getName());
+				if (!entry.isFile() || name == null) {
+					continue;
+				}
+				final Path source = Paths.get(name);
+				final long size = entry.getSize();
+				// names are claimed in archive order, after the tiddlers of the same group still being converted
+				run.getOutputNames().await(source.getFileName().toString());
+
+				if (name.endsWith(SidecarJoin.META_EXT) && !layout.isAsset(name)) {
+					// joined whether or not it is selected, its asset may be
+					readArchiveSidecar(source, tar, sidecars, selected.test(name), run);
+					continue;
+				} else if (!selected.test(name)) {
+					continue;
+				}
+				progress.addTotal(1);
+
+				if (layout.isAsset(name)) {
+					copyArchiveAsset(source, layout.assetName(name), size, tar.getInputStream(), run);
+				} else if (name.endsWith(TIDDLER_EXT)) {
+					convertArchiveTiddler(pool, inFlight, source, size, tar, run);
+				} else {
+					saveArchiveAsset(source, size, streamContent(tar.getInputStream()), sidecars, run);
+				}
+			}
+		} finally {
+			// wait for the tiddlers still being converted
+			inFlight.acquire(maxInFlight(pool));
+		}
+
+		for (PendingAsset asset : sidecars.unmatched()) {
+			run.converted(asset.source, asset.size, asset.output);
+		}
+	}
+
+	/**
+	 * read a tiddler from a tar archive once there is memory for it and convert it on the pool, a large binary tiddler
+	 * is decoded as it is read instead.
+	 */
+	private void convertArchiveTiddler(ForkJoinPool pool, Semaphore inFlight, Path source, long size, TarStream tar,
+																		 ConversionRun run) throws IOException, InterruptedException {
+
+		BufferedInputStream in = null;
+		if (isLargeTiddler(source, size)) {
+			in = new BufferedInputStream(tar.getInputStream());
+			in.mark(MAX_HEADER_BYTES);
+			if (streamBinaryTiddler(source, size, in, run)) {
+				return;
+			}
+			try {
+				in.reset();
+			} catch (IOException e) {
+				log().error("Failed to read {}, the header is over {} bytes", source, MAX_HEADER_BYTES);
+				run.failed(source, new ConversionException(STAGE.READ, e));
+				return;
+			}
+		}
+
+		final MemoryBudget budget = run.getMemoryBudget();
+		final long held = budget.acquire(tiddlerCost(source, size));
+		final SourceContent content;
+		try {
+			content = bytesContent(in == null ? tar.readAll() : in.readAllBytes());
+		} catch (IOException e) {
+			budget.release(held);
+			throw e;
+		}
+		final Runnable task = run.getOutputNames().ordered(source.getFileName().toString(),
+						() -> processTiddler(source, size, content, null, run));
+		execute(pool, inFlight, budget, held, task);
+	}
+
+	private void readArchiveSidecar(Path source, TarStream tar, SidecarJoin<PendingAsset> sidecars, boolean selected,
+																	ConversionRun run) throws IOException {
+
+		if (selected) {
+			run.getProgress().addTotal(1);
+		}
+		final SourceContent content = bytesContent(tar.readAll());
+		try {
+			final Tiddler meta = ConversionException.at(STAGE.READ, () -> parseTiddler(content.lines(), source));
+			final PendingAsset waiting = sidecars.meta(SidecarJoin.assetPath(source.toString()), meta);
+			if (waiting != null) {
+				applySidecar(waiting, meta, run);
+			}
+			if (selected) {
+				run.skipped(source);
+			}
+		} catch (ConversionException e) {
+			log().error("Failed to read {}, {}", source, e.getMessage(), e);
+			if (selected) {
+				run.failed(source, e);
+			}
+		}
+	}
+
+	/**
+	 * save a file from the tiddlers directory of a tar archive, if its sidecar hasn't been read yet the asset is saved to
+	 * the asset directory and moved if the sidecar says otherwise.
+	 */
+	private void saveArchiveAsset(Path source, long size, SourceContent content, SidecarJoin<PendingAsset> sidecars,
+																ConversionRun run) {
+
+		try {
+			final Tiddler meta = sidecars.asset(source.toString());
+			final Path output = saveAsset(source, content, meta, run);
+			if (meta == null) {
+				sidecars.await(source.toString(), new PendingAsset(source, size, output));
+			} else {
+				run.converted(source, size, output);
+			}
+		} catch (ConversionException e) {
+			log().error("Failed to convert {} ({}), {}", source, e.getStage(), e.getMessage(), e);
+			run.failed(source, e);
+		}
+	}
+
+	/**
+	 * convert the tiddlers in a JSON export, tiddlers are converted on the pool while the next ones are read.
+	 */
+	private void convertJson(ForkJoinPool pool, ConversionRun run, Predicate<String> selected)
+					throws IOException, InterruptedException {
+
+		final Semaphore inFlight = new Semaphore(maxInFlight(pool));
+		final Progress progress = run.getProgress();
+
+		try (JsonTiddlerReader json = JsonTiddlerReader.open(sourceDirectory.toPath())) {
+			for (Map<String, String> fields = json.next(); fields != null; fields = json.next()) {
+				final String title = fields.get(TITLE_HEADER);
+				if (title == null) {
+					log().warn("Skipping JSON tiddler without a title: {}", fields.keySet());
+					continue;
+				}
+				// named after the file TiddlyWiki would save it as, so it converts exactly like the .tid file
+				final Path source = Paths.get(TIDDLERS, tiddlerFileName(title));
+				if (!selected.test(run.relativeSource(source))) {
+					continue;
+				}
+				progress.addTotal(1);
+				final Tiddler tiddler = jsonTiddler(fields);
+				final Runnable task = run.getOutputNames().ordered(source.getFileName().toString(),
+								() -> processTiddler(source, tiddler.getTextLength(), tiddler, run));
+				// the export has already been read this far, waiting for memory holds back the rest
+				final long held = run.getMemoryBudget().acquire(tiddlerCost(source, tiddler.getTextLength()));
+				execute(pool, inFlight, run.getMemoryBudget(), held, task);
+			}
+		} finally {
+			inFlight.acquire(maxInFlight(pool));
+		}
+	}
+
+	/**
+	 * a tiddler from a JSON export, the text is a field like any other
+	 */
+	static Tiddler jsonTiddler(Map<String, String> fields) {
+
+		final Map<String, String> headers = new HashMap<>(fields);
+		final String text = headers.remove(TEXT_FIELD);
+		// the export leaves out the default type
+		headers.putIfAbsent(TYPE_HEADER, TIDDLYWIKI_TYPE);
+		return Tiddler.withText(headers, text);
+	}
+
+	/**
+	 * how many streamed tiddlers can be waiting for, or being, converted
+	 */
+	private static int maxInFlight(ForkJoinPool pool) {
+
+		return pool.getParallelism() * 4;
+	}
+
+	/**
+	 * run a task on the pool once one of the in flight permits is free, on a single threaded pool the task is run in
+	 * place to keep the order.
+	 */
+	private static void execute(ForkJoinPool pool, Semaphore inFlight, Runnable task) throws InterruptedException {
+
+		if (pool.getParallelism() == 1) {
+			task.run();
+			return;
+		}
+		inFlight.acquire();
+		pool.execute(() -> {
+			try {
+				task.run();
+			} finally {
+				inFlight.release();
+			}
+		});
+	}
+
+	/**
+	 * run a task on the pool, the memory held for it is released when it is done
+	 */
+	private static void execute(ForkJoinPool pool, Semaphore inFlight, MemoryBudget budget, long held, Runnable task)
+					throws InterruptedException {
+
+		try {
+			execute(pool, inFlight, () -> {
+				try {
+					task.run();
+				} finally {
+					budget.release(held);
+				}
+			});
+		} catch (InterruptedException e) {
+			budget.release(held);
+			throw e;
+		}
+	}
+
+	/**
+	 * the file name TiddlyWiki gives a tiddler, characters that aren't allowed in file names are replaced by _
+	 */
+	static String tiddlerFileName(String title) {
+
+		String name = TIDDLER_FILE_NAME_REGEX.matcher(title).replaceAll("_");
+		if (name.length() > MAX_TIDDLER_FILE_NAME) {
+			name = name.substring(0, MAX_TIDDLER_FILE_NAME);
+		}
+		return name + TIDDLER_EXT;
+	}
+
+	/**
+	 * finds the wiki in an archive, the archive may hold the wiki directory itself or its contents.
+	 */
+	private class ArchiveLayout {
+
+		private final String assetsPrefix = tiddlyWikiAssetsPath.map(ap -> relativeName(ap) + "/").orElse(null);
+
+		/**
+		 * the directory holding the wiki, once found every entry must be in it
+		 */
+		private String root;
+
+		/**
+		 * @return the entry name relative to the wiki, null if the entry isn't a tiddler or asset, or would be saved outside
+		 * the vault
+		 */
+		String wikiName(String entryName) {
+
+			final String name = normalizedName(entryName);
+			if (name == null) {
+				log().warn("Skipping archive entry with an absolute path or .. in it: {}", entryName);
+				return null;
+			}
+			return wikiFile(name);
+		}
+
+		/**
+		 * the entry name without . and empty segments, null if it is absolute or has a .. segment
+		 */
+		private String normalizedName(String entryName) {
+
+			if (entryName.startsWith("/") || entryName.contains("\\") || entryName.matches("^[A-Za-z]:.*")) {
+				return null;
+			}
+			final StringJoiner name = new StringJoiner("/");
+			for (String segment : entryName.split("/")) {
+				if (segment.equals("..")) {
+					return null;
+				} else if (!segment.isEmpty() && !segment.equals(".")) {
+					name.add(segment);
+				}
+			}
+			return name.toString();
+		}
+
+		private String wikiFile(String name) {
+
+			if (root == null) {
+				if (isWikiFile(name)) {
+					root = "";
+				} else {
+					final int slash = name.indexOf('/');
+					if (slash < 0 || !isWikiFile(name.substring(slash + 1))) {
+						return null;
+					}
+					root = name.substring(0, slash + 1);
+				}
+			}
+			if (!name.startsWith(root)) {
+				return null;
+			}
+			final String relative = name.substring(root.length());
+			return isWikiFile(relative) ? relative : null;
+		}
+
+		private boolean isWikiFile(String name) {
+
+			return name.startsWith(TIDDLERS + "/") || isAsset(name);
+		}
+
+		boolean isAsset(String name) {
+
+			return assetsPrefix != null && name.startsWith(assetsPrefix)
+							&& !name.substring(name.lastIndexOf('/') + 1).equals(OSX_DS_STORE_DIR);
+		}
+
+		String assetName(String name) {
+
+			return name.substring(assetsPrefix.length());
+		}
+	}
+
+	/**
+	 * walk the tiddlers directory and the optional tiddlywiki assets directory.
+	 */
+	private void scanSources(ForkJoinPool pool, Path sourceRoot, List<DirectoryScanner.Entry> tiddlerFiles,
+													 List<DirectoryScanner.Entry> assetFiles) throws IOException {
+
+		final DirectoryScanner scanner = new DirectoryScanner(pool);
+
+		try (Stream<DirectoryScanner.Entry> entries = tiddlerEntries(scanner, sourceRoot)) {
+			entries.forEach(tiddlerFiles::add);
+		}
+
+		if (tiddlyWikiAssetsPath.isPresent()) {
+			try (Stream<DirectoryScanner.Entry> entries = assetEntries(scanner,
+							sourceRoot.resolve(relativeName(tiddlyWikiAssetsPath.get())))) {
+				entries.forEach(assetFiles::add);
+			} catch (IOException e) {
+				log().error("{}", e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * the files in the tiddlers directory, in scan order
+	 */
+	private static Stream<DirectoryScanner.Entry> tiddlerEntries(DirectoryScanner scanner, Path sourceRoot)
+					throws IOException {
+
+		return scanner.scan(sourceRoot.resolve(TIDDLERS)).filter(DirectoryScanner.Entry::isFile);
+	}
+
+	/**
+	 * the entries of the failed files below a directory, in the order of the failures file. the directories between
+	 * them and the directory can be included so they are made in the vault before the files are copied into them.
+	 */
+	private static List<DirectoryScanner.Entry> retried(List<Path> failed, Path dir, boolean withDirectories) {
+
+		final List<DirectoryScanner.Entry> entries = new ArrayList<>();
+		final Set<Path> dirs = new HashSet<>();
+		for (Path p : failed) {
+			if (!p.startsWith(dir)) {
+				continue;
+			}
+			try {
+				final Path relative = dir.relativize(p);
+				Path parent = dir;
+				for (int i = 0; withDirectories && i < relative.getNameCount() - 1; i++) {
+					parent = parent.resolve(relative.getName(i).toString());
+					if (dirs.add(parent)) {
+						entries.add(DirectoryScanner.entry(parent));
+					}
+				}
+				entries.add(DirectoryScanner.entry(p));
+			} catch (NoSuchFileException e) {
+				log().info("Not retried, {} no longer exists", p);
+			} catch (IOException e) {
+				log().error("{}", e.getMessage(), e);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * the files and directories in the tiddlywiki assets directory, in scan order
+	 */
+	private static Stream<DirectoryScanner.Entry> assetEntries(DirectoryScanner scanner, Path assetRoot)
+					throws IOException {
+
+		return scanner.scan(assetRoot).filter(e -> !e.getName().equals(OSX_DS_STORE_DIR));
+	}
+
+	/**
+	 * how many tiddlers are rendered to calibrate the --plan time estimate
+	 */
+	private static final int PLAN_SAMPLE_SIZE = 64;
+
+	/**
+	 * the sample is rendered this many times and only the last is timed, a conversion spends most of its time in
+	 * compiled code
+	 */
+	private static final int PLAN_SAMPLE_PASSES = 10;
+
+	/**
+	 * scan the wiki and print what converting it would do, nothing is written.
+	 */
+	void printPlan(ForkJoinPool pool) throws IOException, InterruptedException, ExecutionException {
+
+		final File assetDir = assetPath.map(p -> new File(outputDirectory, p)).orElse(outputDirectory);
+		final Plan plan = new Plan();
+		final Map<String, Tiddler> sample = new TreeMap<>();
+
+		final SOURCE_TYPE sourceType = sourceType();
+		if (sourceType == SOURCE_TYPE.JSON) {
+			try (JsonTiddlerReader json = JsonTiddlerReader.open(sourceDirectory.toPath())) {
+				for (Map<String, String> fields = json.next(); fields != null; fields = json.next()) {
+					if (fields.containsKey(TITLE_HEADER)) {
+						final Tiddler tiddler = jsonTiddler(fields);
+						planTiddler(plan, tiddlerFileName(fields.get(TITLE_HEADER)), tiddler, tiddler.getTextLength(), assetDir, sample);
+					}
+				}
+			}
+		} else if (sourceType == SOURCE_TYPE.TAR) {
+			final ArchiveLayout layout = new ArchiveLayout();
+			try (TarStream tar = TarStream.open(sourceDirectory.toPath())) {
+				for (TarStream.Entry entry = tar.next(); entry != null; entry = tar.next()) {
+					final String name = layout.wikiName(entry.getName());
+					if (!entry.isFile() || name == null || name.endsWith(SidecarJoin.META_EXT)) {
+						continue;
+					}
+					final Path source = Paths.get(name);
+					if (layout.isAsset(name)) {
+						final File outFile = new File(assetDir, layout.assetName(name));
+						plan.asset(outputFolder(outFile.getParentFile()), entry.getSize(), outFile.exists());
+					} else if (name.endsWith(TIDDLER_EXT)) {
+						try {
+							final Tiddler tiddler = parseTiddler(bytesContent(tar.readAll()).lines(), source);
+							planTiddler(plan, source.getFileName().toString(), tiddler, tiddler.getTextLength(), assetDir, sample);
+						} catch (IOException e) {
+							log().error("Failed to read {}, {}", source, e.getMessage());
+							plan.unreadable();
+						}
+					} else {
+						plan.asset(outputFolder(assetDir), entry.getSize(), false);
+					}
+				}
+			}
+		} else {
+			try (FileSystem zip = sourceType == SOURCE_TYPE.ZIP ? openZip() : null) {
+				planTree(pool, plan, sourceRoot(zip), assetDir, sample);
+			}
+		}
+
+		// warm up then time, a cold JVM would make the estimate far too pessimistic
+		for (int pass = 0; pass < PLAN_SAMPLE_PASSES; pass++) {
+			for (Map.Entry<String, Tiddler> e : sample.entrySet()) {
+				final long start = System.nanoTime();
+				final String md = toMarkdown(e.getValue(), e.getKey());
+				if (pass == PLAN_SAMPLE_PASSES - 1) {
+					plan.sample(e.getValue().getTextLength(), md.getBytes(StandardCharsets.UTF_8).length, System.nanoTime() - start);
+				}
+			}
+		}
+
+		report().println("Plan for " + sourceDirectory + " -> " + outputDirectory);
+		plan.print(report(), pool.getParallelism());
+	}
+
+	private void planTree(ForkJoinPool pool, Plan plan, Path sourceRoot, File assetDir, Map<String, Tiddler> sample)
+					throws IOException, InterruptedException, ExecutionException {
+
+		final List<DirectoryScanner.Entry> tiddlerFiles = new ArrayList<>();
+		final List<DirectoryScanner.Entry> assetFiles = new ArrayList<>();
+		scanSources(pool, sourceRoot, tiddlerFiles, assetFiles);
+
+		final Map<Path, Path> sidecars = new HashMap<>();
+		for (DirectoryScanner.Entry e : tiddlerFiles) {
+			if (e.getName().endsWith(SidecarJoin.META_EXT)) {
+				sidecars.put(e.getPath().resolveSibling(SidecarJoin.assetPath(e.getName())), e.getPath());
+			}
+		}
+
+		final Queue<Path> textFiles = new ConcurrentLinkedQueue<>();
+		forEach(pool, tiddlerFiles, entry -> {
+			final Path file = entry.getPath();
+			try {
+				if (entry.getName().endsWith(TIDDLER_EXT)) {
+					// only the header is read, the text size comes from the file size
+					final List<String> header = new ArrayList<>();
+					long headerBytes = 0;
+					try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+						for (String line = reader.readLine(); line != null && !line.isBlank(); line = reader.readLine()) {
+							header.add(line);
+							headerBytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+						}
+					}
+					final Tiddler tiddler = parseTiddler(header, file);
+					if (planTiddler(plan, entry.getName(), tiddler, Math.max(entry.size() - headerBytes - 1, 0), assetDir, null)
+									&& TIDDLYWIKI_TYPE.equals(tiddler.getHeader(TYPE_HEADER))) {
+						textFiles.add(file);
+					}
+				} else if (!entry.getName().endsWith(SidecarJoin.META_EXT)) {
+					final Path metaFile = sidecars.get(file);
+					final File dir = metaFile == null ? assetDir : calculateOutputDirectory(parseTiddler(metaFile), assetDir);
+					plan.asset(outputFolder(dir), entry.size(), false);
+				}
+			} catch (IOException e) {
+				log().error("Failed to read {}, {}", file, e.getMessage());
+				plan.unreadable();
+			}
+		});
+
+		// spread the sample across the wiki
+		final List<Path> sorted = new ArrayList<>(textFiles);
+		Collections.sort(sorted);
+		final int step = Math.max(sorted.size() / PLAN_SAMPLE_SIZE, 1);
+		for (int i = 0; i < sorted.size() && sample.size() < PLAN_SAMPLE_SIZE; i += step) {
+			final Path file = sorted.get(i);
+			sample.put(file.getFileName().toString(), parseTiddler(file));
+		}
+
+		if (tiddlyWikiAssetsPath.isPresent()) {
+			final Path sap = sourceRoot.resolve(relativeName(tiddlyWikiAssetsPath.get()));
+			for (DirectoryScanner.Entry entry : assetFiles) {
+				if (entry.isFile()) {
+					final File outFile = new File(assetDir, sap.relativize(entry.getPath()).toString());
+					plan.asset(outputFolder(outFile.getParentFile()), entry.size(), outFile.exists());
+				}
+			}
+		}
+	}
+
+	/**
+	 * add a tiddler to the plan, streamed tiddlers are added to the sample until it is full.
+	 *
+	 * @return true if the tiddler would be converted
+	 */
+	private boolean planTiddler(Plan plan, String fileName, Tiddler tiddler, long textBytes, File assetDir,
+															Map<String, Tiddler> sample) {
+
+		final String type = tiddler.getHeader(TYPE_HEADER);
+		if (!plan.tiddler(type, fileName.startsWith("$_"), includeSystemTiddlers || !fileName.startsWith("$_"))) {
+			return false;
+		}
+		if (TIDDLYWIKI_TYPE.equals(type)) {
+			plan.text(outputFolder(calculateOutputDirectory(tiddler)), textBytes);
+			if (sample != null && sample.size() < PLAN_SAMPLE_SIZE) {
+				sample.put(fileName, tiddler);
+			}
+		} else {
+			// base64 is 4 characters for every 3 bytes
+			plan.binary(outputFolder(assetDir), textBytes * 3 / 4);
+		}
+		return true;
+	}
+
+	private String outputFolder(File dir) {
+
+		return ConversionRun.relativePath(outputDirectory.toPath(), dir.toPath());
+	}
+
+	/**
+	 * the wiki can be a directory, a zip file, a (gzipped) tar file or a JSON export of its tiddlers.
+	 */
+	private SOURCE_TYPE sourceType() throws IOException {
+
+		final Path source = sourceDirectory.toPath();
+		if (Files.isDirectory(source)) {
+			return SOURCE_TYPE.DIRECTORY;
+		} else if (!Files.isRegularFile(source)) {
+			throw new IOException("Source directory not found: " + source);
+		} else if (TarStream.isTar(source)) {
+			return SOURCE_TYPE.TAR;
+		} else if (JsonTiddlerReader.isJson(source)) {
+			return SOURCE_TYPE.JSON;
+		}
+		return SOURCE_TYPE.ZIP;
+	}
+
+	private FileSystem openZip() throws IOException {
+
+		try {
+			return FileSystems.newFileSystem(sourceDirectory.toPath(), (ClassLoader) null);
+		} catch (ProviderNotFoundException e) {
+			throw new IOException("Not a directory, zip or tar archive: " + sourceDirectory, e);
+		}
+	}
+
+	/**
+	 * the wiki directory, a zip can hold the wiki directory or its contents.
+	 */
+	private Path sourceRoot(FileSystem zip) throws IOException {
+
+		if (zip == null) {
+			return sourceDirectory.toPath();
+		}
+		final Path top = zip.getPath("/");
+		if (Files.isDirectory(top.resolve(TIDDLERS))) {
+			return top;
+		}
+		try (Stream<Path> children = Files.list(top)) {
+			final List<Path> wikis = children.filter(p -> Files.isDirectory(p.resolve(TIDDLERS)))
+							.collect(Collectors.toList());
+			if (wikis.size() != 1) {
+				throw new IOException("No '" + TIDDLERS + "' directory found in " + sourceDirectory);
+			}
+			return wikis.get(0);
+		}
+	}
+
+	/**
+	 * a path relative to the wiki directory without any leading or trailing /
+	 */
+	private static String relativeName(String path) {
+
+		String name = path.replace('\\', '/');
+		while (name.startsWith("/")) {
+			name = name.substring(1);
+		}
+		while (name.endsWith("/")) {
+			name = name.substring(0, name.length() - 1);
+		}
+		return name;
+	}
+
+	/**
+	 * check the manifests left by every shard of a sharded conversion and merge their failures.
+	 *
+	 * @return the number of problems found
+	 */
+	int verifyShards(ForkJoinPool pool, int count) throws IOException {
+
+		final List<String> sources = new ArrayList<>();
+		final SOURCE_TYPE sourceType = sourceType();
+		if (sourceType == SOURCE_TYPE.JSON) {
+			try (JsonTiddlerReader json = JsonTiddlerReader.open(sourceDirectory.toPath())) {
+				for (Map<String, String> fields = json.next(); fields != null; fields = json.next()) {
+					if (fields.containsKey(TITLE_HEADER)) {
+						sources.add(TIDDLERS + "/" + tiddlerFileName(fields.get(TITLE_HEADER)));
+					}
+				}
+			}
+		} else if (sourceType == SOURCE_TYPE.TAR) {
+			final ArchiveLayout layout = new ArchiveLayout();
+			try (TarStream tar = TarStream.open(sourceDirectory.toPath())) {
+				for (TarStream.Entry entry = tar.next(); entry != null; entry = tar.next()) {
+					final String name = layout.wikiName(entry.getName());
+					if (entry.isFile() && name != null) {
+						sources.add(name);
+					}
+				}
+			}
+		} else {
+			try (FileSystem zip = sourceType == SOURCE_TYPE.ZIP ? openZip() : null) {
+				final Path sourceRoot = sourceRoot(zip);
+				final List<DirectoryScanner.Entry> tiddlerFiles = new ArrayList<>();
+				final List<DirectoryScanner.Entry> assetFiles = new ArrayList<>();
+				scanSources(pool, sourceRoot, tiddlerFiles, assetFiles);
+				for (DirectoryScanner.Entry e : tiddlerFiles) {
+					sources.add(ConversionRun.relativePath(sourceRoot, e.getPath()));
+				}
+				for (DirectoryScanner.Entry e : assetFiles) {
+					if (e.isFile()) {
+						sources.add(ConversionRun.relativePath(sourceRoot, e.getPath()));
+					}
+				}
+			}
+		}
+
+		final List<String> problems = ShardManifest.verify(sources, stateFile(""), count, outputDirectory.toPath(),
+						stateFile(SOURCES_FILE));
+		problems.forEach(p -> log().error("{}", p));
+
+		final List<Path> shardFailures = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			shardFailures.add(stateFile(stateFileName(FAILURES_FILE, new Shard(i, count))));
+		}
+		Failures.merge(shardFailures, stateFile(FAILURES_FILE));
+
+		report().println(String.format(Locale.ROOT, "Verified %d source files across %d shards, %d problems",
+						sources.size(), count, problems.size()));
+		return problems.size();
+	}
+
+	private void saveFailures(Failures failures) throws IOException {
+
+		final Path failuresFile = stateFile(stateFileName(FAILURES_FILE, shard));
+		failures.save(failuresFile);
+		if (failures.size() > 0) {
+			log().warn("{} files failed to convert, see {} and rerun with --retry-failed", failures.size(), failuresFile);
+		}
+	}
+
+	private Path failuresFile() {
+
+		return stateFile(stateFileName(FAILURES_FILE, shard));
+	}
+
+	/**
+	 * each shard keeps its own copy of the state files, e.g. failures-3-of-16.tsv
+	 */
+	private static String stateFileName(String name, Shard shard) {
+
+		if (shard == null) {
+			return name;
+		}
+		final int dot = name.lastIndexOf('.');
+		return name.substring(0, dot) + "-" + shard.getName() + name.substring(dot);
+	}
+
+	/**
+	 * a file in the output directory used to keep track of conversions
+	 */
+	private Path stateFile(String name) {
+
+		return new File(outputDirectory, STATE_DIR + PATH_CHAR + name).toPath();
+	}
+
+	/**
+	 * run the action for every item on the pool, a single threaded pool processes the items in order so logs are
+	 * reproducible.
+	 */
+	private static <T> void forEach(ForkJoinPool pool, List<T> items, Consumer<T> action)
+					throws InterruptedException, ExecutionException {
+
+		if (pool.getParallelism() == 1) {
+			items.forEach(action);
+		} else {
+			pool.submit(() -> items.parallelStream().forEach(action)).get();
+		}
+	}
+
+	/**
+	 * the content of a source file, read from disk, a zip or straight out of a tar stream.
+	 */
+	interface SourceContent {
+
+		List<String> lines() throws IOException;
+
+		/**
+		 * @param compare leave the output alone if it already holds the content
+		 * @param hash    fed the content as it is copied, may be null
+		 * @return true if the output was written
+		 */
+		boolean copyTo(Path out, boolean compare, Checksums.Hash hash) throws IOException;
+	}
+
+	private static SourceContent fileContent(Path file) {
+
+		return new SourceContent() {
+
+			@Override
+			public List<String> lines() throws IOException {
+
+				return Files.readAllLines(file, StandardCharsets.UTF_8);
+			}
+
+			@Override
+			public boolean copyTo(Path out, boolean compare, Checksums.Hash hash) throws IOException {
+
+				if (hash == null) {
+					return OutputFiles.copy(file, out, compare);
+				}
+				try (InputStream in = hash.wrap(Files.newInputStream(file))) {
+					return OutputFiles.copy(in, out, compare);
+				}
+			}
+		};
+	}
+
+	private static SourceContent bytesContent(byte[] bytes) {
+
+		return new SourceContent() {
+
+			@Override
+			public List<String> lines() throws IOException {
+
+				// strict decoding so bad UTF-8 fails the same way it does for files
+				final String text = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+				return text.lines().collect(Collectors.toList());
+			}
+
+			@Override
+			public boolean copyTo(Path out, boolean compare, Checksums.Hash hash) throws IOException {
+
+				if (hash != null) {
+					hash.update(bytes, 0, bytes.length);
+				}
+				return OutputFiles.write(out, bytes, compare);
+			}
+		};
+	}
+
+	private static SourceContent streamContent(InputStream in) {
+
+		return new SourceContent() {
+
+			@Override
+			public List<String> lines() throws IOException {
+
+				return bytesContent(in.readAllBytes()).lines();
+			}
+
+			@Override
+			public boolean copyTo(Path out, boolean compare, Checksums.Hash hash) throws IOException {
+
+				return OutputFiles.copy(hash == null ? in : hash.wrap(in), out, compare);
+			}
+		};
+	}
+
+	/**
+	 * convert a file from the tiddlers directory once there is memory for it, a large binary tiddler is decoded as it is
+	 * read instead.
+	 */
+	private void processTiddlerFile(DirectoryScanner.Entry entry, ConversionRun run) {
+
+		final Path inFile = entry.getPath();
+		final long size = entry.size();
+		if (isLargeTiddler(inFile, size)) {
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(inFile))) {
+				if (streamBinaryTiddler(inFile, size, in, run)) {
+					return;
+				}
+			} catch (IOException e) {
+				log().error("Failed to read {}, {}", inFile, e.getMessage(), e);
+				run.failed(inFile, new ConversionException(STAGE.READ, e));
+				return;
+			}
+		}
+
+		final MemoryBudget budget = run.getMemoryBudget();
+		final long held = budget.acquire(tiddlerCost(inFile, size));
+		try {
+			processTiddler(inFile, size, fileContent(inFile), entry.sibling(entry.getName() + SidecarJoin.META_EXT), run);
+		} finally {
+			budget.release(held);
+		}
+	}
+
+	/**
+	 * a tiddler that may be binary and too large to decode in memory, its header is read before it is admitted
+	 */
+	private boolean isLargeTiddler(Path inFile, long size) {
+
+		final String inFileName = inFile.getFileName().toString();
+		return size > STREAM_BINARY_BYTES && inFileName.endsWith(TIDDLER_EXT)
+						&& (includeSystemTiddlers || !inFileName.startsWith("$_"));
+	}
+
+	/**
+	 * the memory converting a file from the tiddlers directory is estimated to take, anything but a tiddler is copied
+	 */
+	private static long tiddlerCost(Path inFile, long size) {
+
+		return inFile.getFileName().toString().endsWith(TIDDLER_EXT) ? size * TIDDLER_COST_FACTOR : STREAM_COST;
+	}
+
+	/**
+	 * decode a binary tiddler straight from its source to the output, it only takes the memory of the buffers.
+	 *
+	 * @param in the tiddler, buffered, it is left at the start of the text when the tiddler isn't binary
+	 * @return false if the tiddler is TiddlyWiki text and still has to be converted
+	 */
+	private boolean streamBinaryTiddler(Path inFile, long size, InputStream in, ConversionRun run) {
+
+		final MemoryBudget budget = run.getMemoryBudget();
+		final long held = budget.acquire(STREAM_COST);
+		try {
+			final Tiddler tiddler = ConversionException.at(STAGE.READ, () -> parseTiddler(readHeader(in), inFile));
+			if (TIDDLYWIKI_TYPE.equals(tiddler.getHeader(TYPE_HEADER))) {
+				return false;
+			}
+			final File outFile = binaryTiddlerFile(tiddler, inFile, run);
+			log().debug("Streaming binary tiddler {} -> {}", inFile, outFile);
+			final Checksums.Hash hash = checksum(outFile.toPath(), inFile, run);
+			final boolean written = ConversionException.at(STAGE.DECODE,
+							() -> streamContent(Base64.getMimeDecoder().wrap(in)).copyTo(outFile.toPath(), compareBeforeWrite(), hash));
+			recordChecksum(hash, run);
+			savedTiddler(tiddler, outFile, written, run);
+			run.converted(inFile, size, outFile.toPath());
+		} catch (ConversionException e) {
+			log().error("Failed to convert {} ({}), {}", inFile, e.getStage(), e.getMessage(), e);
+			run.failed(inFile, e);
+		} finally {
+			budget.release(held);
+		}
+		return true;
+	}
+
+	/**
+	 * the header lines of a tiddler, read up to the blank line that ends them so the stream is left at the text
+	 */
+	private static List<String> readHeader(InputStream in) throws IOException {
+
+		final List<String> lines = new ArrayList<>();
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		for (int b = in.read(); b >= 0; b = in.read()) {
+			if (b != '\n') {
+				line.write(b);
+				continue;
+			}
+			final String s = line.toString(StandardCharsets.UTF_8);
+			line.reset();
+			if (s.isBlank()) {
+				return lines;
+			}
+			lines.add(s.endsWith("\r") ? s.substring(0, s.length() - 1) : s);
+		}
+		if (line.size() > 0) {
+			lines.add(line.toString(StandardCharsets.UTF_8));
+		}
+		return lines;
+	}
+
+	/**
+	 * convert a file from the tiddlers directory, tiddlers are converted and anything else copied to the assets.
+	 *
+	 * @param metaFile the .meta sidecar of an asset, null if it has none
+	 */
+	private void processTiddler(Path inFile, long size, SourceContent content, Path metaFile, ConversionRun run) {
+
+		final String inFileName = inFile.getFileName().toString();
+		try {
+			if (!includeSystemTiddlers && inFileName.startsWith("$_")) {
+				log().debug("Skipping system tiddler file: {}", inFile);
+				run.skipped(inFile);
+			} else if (inFileName.endsWith(SidecarJoin.META_EXT)) {
+				// read along with its asset
+				log().debug("Skipping meta file: {}", inFile);
+				run.skipped(inFile);
+			} else if (inFileName.endsWith(TIDDLER_EXT)) {
+				final Tiddler tiddler = ConversionException.at(STAGE.READ, () -> parseTiddler(content.lines(), inFile));
+				final File outFile = convertTiddler(tiddler, inFile, run);
+				run.converted(inFile, size, outFile.toPath());
+			} else {
+				final Tiddler meta = metaFile == null ? null : ConversionException.at(STAGE.READ, () -> parseTiddler(metaFile));
+				run.converted(inFile, size, saveAsset(inFile, content, meta, run));
+			}
+		} catch (ConversionException e) {
+			log().error("Failed to convert {} ({}), {}", inFile, e.getStage(), e.getMessage(), e);
+			run.failed(inFile, e);
+		}
+	}
+
+	/**
+	 * save a file from the tiddlers directory to the assets directory, or the folder its tags are mapped to, with the
+	 * timestamps from its .meta sidecar.
+	 */
+	private Path saveAsset(Path inFile, SourceContent content, Tiddler meta, ConversionRun run) throws ConversionException {
+
+		final File dir = meta == null ? run.getAssetDir() : calculateOutputDirectory(meta, run.getAssetDir());
+		final Path savePath = run.claim(new File(dir, inFile.getFileName().toString()).toPath(), inFile);
+		log().debug("Saving asset {} -> {}", inFile, savePath);
+		final Checksums.Hash hash = checksum(savePath, inFile, run);
+		final boolean written = ConversionException.at(STAGE.COPY, () -> content.copyTo(savePath, compareBeforeWrite(), hash));
+		recordChecksum(hash, run);
+		run.wrote(written);
+		if (meta != null && written) {
+			setTiddlerTimestamps(meta, savePath);
+		}
+		return savePath;
+	}
+
+	/**
+	 * an asset from a tar archive that was saved before its .meta sidecar was read
+	 */
+	private static class PendingAsset {
 
-		private final Function<String, String> f;
+		private final Path source;
 
-		CASE_CONVERTER(Function<String, String> f) {
+		private final long size;
 
-			this.f = f;
+		private final Path output;
+
+		private PendingAsset(Path source, long size, Path output) {
+
+			this.source = source;
+			this.size = size;
+			this.output = output;
 		}
+	}
 
-		private String convert(String s) {
+	/**
+	 * the sidecar of an asset that has already been saved has turned up, move the asset to its tag folder and set its
+	 * timestamps. an asset the tag folder already holds is left alone under --write-mode=CHANGED, timestamps included.
+	 */
+	private void applySidecar(PendingAsset asset, Tiddler meta, ConversionRun run) {
 
-			return f.apply(s);
+		try {
+			final File dir = calculateOutputDirectory(meta, run.getAssetDir());
+			Path output = asset.output;
+			boolean written = true;
+			if (!dir.toPath().equals(output.getParent())) {
+				output = run.claim(dir.toPath().resolve(output.getFileName()), asset.source);
+				log().debug("Moving asset {} -> {}", asset.output, output);
+				written = OutputFiles.move(asset.output, output, compareBeforeWrite());
+				if (run.getChecksums() != null) {
+					run.getChecksums().moved(asset.output, output);
+				}
+			}
+			if (written) {
+				setTiddlerTimestamps(meta, output);
+			}
+			run.converted(asset.source, asset.size, output);
+		} catch (ConversionException e) {
+			log().error("Failed to apply {}{}, {}", asset.source, SidecarJoin.META_EXT, e.getMessage(), e);
+			run.failed(asset.source, e);
+		} catch (IOException e) {
+			log().error("Failed to apply {}{}, {}", asset.source, SidecarJoin.META_EXT, e.getMessage(), e);
+			run.failed(asset.source, new ConversionException(STAGE.COPY, e));
 		}
 	}
 
-//	CONFIGURATION PARAMETERS
-//	================================================================================================================
+	/**
+	 * convert a tiddler that has already been read, e.g. from a JSON export.
+	 */
+	private void processTiddler(Path inFile, long size, Tiddler tiddler, ConversionRun run) {
+
+		try {
+			if (!includeSystemTiddlers && inFile.getFileName().toString().startsWith("$_")) {
+				log().debug("Skipping system tiddler: {}", inFile);
+				run.skipped(inFile);
+			} else {
+				final File outFile = convertTiddler(tiddler, inFile, run);
+				run.converted(inFile, size, outFile.toPath());
+			}
+		} catch (ConversionException e) {
+			log().error("Failed to convert {} ({}), {}", inFile, e.getStage(), e.getMessage(), e);
+			run.failed(inFile, e);
+		}
+	}
 
 	/**
-	 * tiddlywiki wiki root directory
+	 * copy a file from the tiddlywiki assets directory of an archive, existing files are left alone as they are when
+	 * copying from a directory.
 	 */
-	@SuppressWarnings("unused")
-	@Parameters(index = "0", description = "The root directory containing the tiddlyWiki 'tiddlers' directory.")
-	private File sourceDirectory;
+	private void copyArchiveAsset(Path source, String assetName, long size, InputStream in, ConversionRun run) {
+
+		try {
+			final Path outFile = run.claim(new File(run.getAssetDir(), assetName).toPath(), source);
+			log().debug("COPY: {} -> {}", source, outFile);
+			Files.createDirectories(outFile.getParent());
+			final Checksums.Hash hash = checksum(outFile, source, run);
+			try {
+				Files.copy(hash == null ? in : hash.wrap(in), outFile);
+			} catch (FileAlreadyExistsException e) {
+				existingAsset(e, hash, outFile, source, run);
+				return;
+			}
+			recordChecksum(hash, run);
+			run.wrote(true);
+			run.converted(source, size, outFile);
+		} catch (Exception e) {
+			log().error("{}", e.getMessage(), e);
+			run.failed(source, new ConversionException(STAGE.COPY, e));
+		}
+	}
+
+	private void copyTiddlyWikiAsset(DirectoryScanner.Entry entry, Path sourceAssetPath, ConversionRun run) {
+
+		final Path file = entry.getPath();
+		try {
+			final File outFile = run.claim(new File(run.getAssetDir(), sourceAssetPath.relativize(file).toString()).toPath(),
+							file).toFile();
+			log().debug("COPY: {} -> {}", file, outFile.getAbsolutePath());
+			final Checksums.Hash hash = checksum(outFile.toPath(), file, run);
+			try {
+				if (hash == null) {
+					Files.copy(file, outFile.toPath());
+				} else {
+					try (InputStream in = hash.wrap(Files.newInputStream(file))) {
+						Files.copy(in, outFile.toPath());
+					}
+					recordChecksum(hash, run);
+				}
+			} catch (FileAlreadyExistsException e) {
+				existingAsset(e, hash, outFile.toPath(), file, run);
+				return;
+			}
+			run.wrote(true);
+			run.converted(file, entry.size(), outFile.toPath());
+		} catch (Exception e) {
+			log().error("{}", e.getMessage(), e);
+			run.failed(file, new ConversionException(STAGE.COPY, e));
+		}
+	}
 
 	/**
-	 * output root directory
+	 * an asset that is already in the vault is left alone, its checksum is that of the file already there so the
+	 * checksums still cover every output.
 	 */
-	@SuppressWarnings("unused")
-	@Parameters(index = "1", description = "The output directory were the Obsidian markdown files will be saved.")
-	private File outputDirectory;
+	private static void existingAsset(FileAlreadyExistsException e, Checksums.Hash hash, Path outFile, Path source,
+																		ConversionRun run) throws IOException {
+
+		log().debug("FILE EXISTS: {}", e.getMessage());
+		if (hash != null) {
+			hash.update(outFile);
+			recordChecksum(hash, run);
+		}
+		run.skipped(source);
+	}
 
 	/**
-	 * additional assets to move into the output directory
+	 * save a tiddler to the output directory, TiddlyWiki text is rendered as markdown anything else is treated as a
+	 * base64 encoded binary. the output is renamed if another tiddler has already been saved under the same name.
 	 */
-	@SuppressWarnings({"unused", "OptionalUsedAsFieldOrParameterType"})
-	@Option(names = {"--tiddlywiki-assets-path"}, description = "Include assets from another directory into the Obsidian vault" +
-					" subdirectory, path is relative to the tiddlywiki home directory.")
-	private Optional<String> tiddlyWikiAssetsPath;
+	private File convertTiddler(Tiddler tiddler, Path inFile, ConversionRun run) throws ConversionException {
+
+		final File outFile;
+		final boolean written;
+		if (TIDDLYWIKI_TYPE.equals(tiddler.getHeader(TYPE_HEADER))) {
+			String inFileName = inFile.getFileName().toString();
+			String md = ConversionException.at(STAGE.RENDER, () -> toMarkdown(tiddler, inFileName));
+			String outFileName = inFileName.substring(0, inFileName.length() - TIDDLER_EXT.length()) + MARKDOWN_EXT;
+			outFile = run.claim(new File(calculateOutputDirectory(tiddler), outFileName).toPath(), inFile).toFile();
+			log().debug("Saving tiddler {} -> {}", inFile, outFile);
+			written = ConversionException.at(STAGE.WRITE,
+							() -> writeOutput(outFile.toPath(), md.getBytes(StandardCharsets.UTF_8), inFile, run));
+		} else {
+			outFile = binaryTiddlerFile(tiddler, inFile, run);
+			log().debug("Saving binary tiddler {} -> {}", inFile, outFile);
+			written = saveBinaryTiddler(tiddler, outFile.toPath(), inFile, run);
+		}
+		savedTiddler(tiddler, outFile, written, run);
+
+		return outFile;
+	}
 
 	/**
-	 * collect assets to a directory
+	 * the asset a binary tiddler is saved as, named after its title
 	 */
-	@SuppressWarnings({"unused", "OptionalUsedAsFieldOrParameterType"})
-	@Option(names = {"--assets-path"}, description = "Collect assets into an Obsidian vault subdirectory, path is relative" +
-					" to the output directory.")
-	private Optional<String> assetPath;
+	private File binaryTiddlerFile(Tiddler tiddler, Path inFile, ConversionRun run) throws ConversionException {
 
-	@Option(names = {"--illegal-tag-character"}, defaultValue = "_", description = "Character used to replace illegal Obsidian" +
-					" tag characters (Default: ${DEFAULT-VALUE}).")
-	protected String illegalTagCharacterReplacement;
+		final String header = tiddler.getHeader(TITLE_HEADER);
+		if (header == null) {
+			throw new ConversionException(STAGE.READ, "Binary tiddler has no title header");
+		}
+		return run.claim(new File(run.getAssetDir(), OutputNames.fileName(header)).toPath(), inFile).toFile();
+	}
 
-	@Option(names = {"--numeric-tag-prefix"}, defaultValue = "t", description = "Prefix added in front of numeric tiddlywiki" +
-					" tags (Default: ${DEFAULT-VALUE}).")
-	protected String numericTagPrefix;
+	private void savedTiddler(Tiddler tiddler, File outFile, boolean written, ConversionRun run) {
 
-	@Option(names = {"--space-tag-character"}, defaultValue = "-", description = "Character used to replace space characters" +
-					" used in tiddlywiki tags (Default: ${DEFAULT-VALUE}).")
-	protected String spaceTagCharacterReplacement;
+		run.wrote(written);
+		if (written) {
+			setTiddlerTimestamps(tiddler, outFile.toPath());
+		}
+		if (run.getTagIndex() != null) {
+			indexTags(tiddler, outFile.toPath(), run);
+		}
+	}
 
-	@Option(names = {"--tag-case-conversion"}, defaultValue = "NONE", description = "Convert tag case, can be combined with" +
-					" `--space-tag-character`, valid values: ${COMPLETION-CANDIDATES}")
-	protected CASE_CONVERTER tagCaseConversion;
+	private void indexTags(Tiddler tiddler, Path outFile, ConversionRun run) {
 
-	@Option(names = {"--detect-checklists"}, description = "Treat lists that contain a struck out item as todo lists.")
-	protected boolean detectChecklists;
+		final List<String> tags = splitTags(tiddler.getHeader(TAGS_HEADER));
+		if (!tags.isEmpty()) {
+			final long modified = tiddler.getLastUpdatedTime().or(tiddler::getCreatedTime)
+							.map(t -> t.toInstant().toEpochMilli())
+							.orElse(0L);
+			run.getTagIndex().add(tags, tiddler.getHeader(TITLE_HEADER), noteLink(outFile), modified);
+		}
+	}
 
-	@Option(names = {"--detect-checklist-headers"}, description = "Do not add checkboxes to todo list items that have indented sub-items.")
-	protected boolean detectChecklistHeaders;
+	/**
+	 * an index note for every tag, written to the --tag-index directory or the folder the tag is mapped to, and a summary
+	 * of all the tags. the notes are claimed after the tiddlers so a tiddler named after its tag keeps its name.
+	 */
+	private void writeTagIndex(ConversionRun run) {
 
-	@Option(names = {"--include-system-tiddlers"}, description = "Include system tiddlers in the output directory.")
-	protected boolean includeSystemTiddlers;
+		final File indexDir = new File(outputDirectory, tagIndexPath.orElseThrow());
+		final List<TagIndex.Tag> tags = run.getTagIndex().getTags();
+		final Map<TagIndex.Tag, String> indexLinks = new HashMap<>();
+		try {
+			Files.createDirectories(indexDir.toPath());
+			for (TagIndex.Tag tag : tags) {
+				final String rendered = renderTag(tag.getName());
+				final String folder = tagToFolderMap.get(tag.getName());
+				final File dir = folder == null ? indexDir : new File(outputDirectory, folder);
+				final Path out = run.getOutputNames().claim(
+								new File(dir, OutputNames.fileName(rendered.substring(1)) + MARKDOWN_EXT).toPath(), rendered);
+				writeNote(out, TagIndex.tagNote(tag, rendered, NL), run);
+				indexLinks.put(tag, noteLink(out));
+			}
+			final Path summary = run.getOutputNames().claim(
+							new File(indexDir, TAG_SUMMARY_NOTE + MARKDOWN_EXT).toPath(), TAG_SUMMARY_NOTE);
+			writeNote(summary, TagIndex.summaryNote(tags, indexLinks::get, NL), run);
+			log().info("Wrote the index of {} tags to {}", tags.size(), indexDir);
+		} catch (IOException | IllegalArgumentException e) {
+			log().error("Failed to write the tag index to {}, {}", indexDir, e.getMessage(), e);
+		}
+	}
 
-	@Option(names = {"--add-titles"}, description = "Add the TiddlyWiki title as a header to the top of all output documents.")
-	protected boolean addTitles;
+	private void writeNote(Path out, String md, ConversionRun run) throws IOException {
 
-	@Option(names = {"--add-titles-tag"}, description = "Add the TiddlyWiki title as a header to the top of documents when" +
-					" tagged with this tag.")
-	protected List<String> addTitlesForTags = new ArrayList<>();
+		log().debug("Saving index {}", out);
+		run.wrote(writeOutput(out, md.getBytes(StandardCharsets.UTF_8), null, run));
+	}
 
-	@Option(names = {"-m", "--map-tag"}, description = "Map tiddlywiki tags into Obsidian vault subdirectories.")
-	protected Map<String, String> tagToFolderMap = new HashMap<>();
+	/**
+	 * write an output, its checksum is recorded when --checksums is on
+	 *
+	 * @param source the file it was converted from, null for a note made up by the conversion
+	 */
+	private boolean writeOutput(Path out, byte[] bytes, Path source, ConversionRun run) throws IOException {
 
-//	INTERNAL STATE
-//	================================================================================================================
+		final Checksums.Hash hash = checksum(out, source, run);
+		if (hash != null) {
+			hash.update(bytes, 0, bytes.length);
+		}
+		final boolean written = OutputFiles.write(out, bytes, compareBeforeWrite());
+		recordChecksum(hash, run);
+		return written;
+	}
 
-	private boolean openUnderline = true;
+	/**
+	 * start hashing an output, the hash is taken of the bytes being written so outputs left alone because they hold the
+	 * same bytes are hashed too, without reading them again.
+	 *
+	 * @return the hash to feed the output's bytes, or null when --checksums is off
+	 */
+	private static Checksums.Hash checksum(Path out, Path source, ConversionRun run) {
 
-	private boolean openSub = true;
+		final Checksums checksums = run.getChecksums();
+		return checksums == null ? null : checksums.hash(out, source == null ? null : run.relativeSource(source));
+	}
 
-	private boolean openSup = true;
+	/**
+	 * the output has been saved, a failed output is left out of the checksums
+	 */
+	private static void recordChecksum(Checksums.Hash hash, ConversionRun run) {
 
-	public static void main(String[] args) {
+		if (hash != null) {
+			run.getChecksums().record(hash);
+		}
+	}
 
-		int exitCode = new CommandLine(new Main()).execute(args);
-		System.exit(exitCode);
+	/**
+	 * the path of a note in the vault as an Obsidian link, markdown notes are linked without their extension
+	 */
+	private String noteLink(Path note) {
+
+		final String path = ConversionRun.relativePath(outputDirectory.toPath(), note);
+		return path.endsWith(MARKDOWN_EXT) ? path.substring(0, path.length() - MARKDOWN_EXT.length()) : path;
 	}
 
-	@Override
-	public Integer call() throws Exception {
+	/**
+	 * unchanged outputs are left alone, timestamps included
+	 */
+	private boolean compareBeforeWrite() {
 
-		// make directories
-		if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
-			log.warn("Failed to create output directory: {}", outputDirectory);
-		}
+		return writeMode == WRITE_MODE.CHANGED;
+	}
 
-		final File assetDir = assetPath.map(p -> {
-			final File aDir = new File(outputDirectory, p);
-			if (!aDir.exists() && !aDir.mkdirs()) {
-				log.warn("Failed to create asset directory: {}", aDir);
-			}
-			return aDir;
-		}).orElse(outputDirectory);
+	private void setTiddlerTimestamps(Tiddler tiddler, Path outFile) {
 
-		for (String mapFolders : tagToFolderMap.values()) {
-			final File outDir = new File(outputDirectory, mapFolders);
-			if (!outDir.exists() && !outDir.mkdirs()) {
-				log.warn("Failed to create output map directory: {}", outDir);
-			}
-		}
-
-		try (Stream<Path> path = Files.walk(new File(sourceDirectory, TIDDLERS_DIR).toPath())) {
-			System.out.println();
-			path.map(Path::toFile)
-							.filter(File::isFile)
-							.forEach(inFile -> {
-								System.out.print("."); // show progress
-								try {
-									if (!includeSystemTiddlers && inFile.getName().startsWith("$_")) {
-										log.debug("Skipping system tiddler file: {}", inFile);
-									} else if (inFile.toString().endsWith(".meta")) {
-										log.debug("Skipping meta file: {}", inFile);
-									} else if (inFile.toString().endsWith(TIDDLER_EXT)) {
-										readTiddler(inFile.toPath()).ifPresent(tiddler -> {
-											File outFile;
-											try {
-												if (TIDDLYWIKI_TYPE.equals(tiddler.getHeader(TYPE_HEADER))) {
-													// reset open/close tag flags
-													openUnderline = openSub = openSup = true;
-													String inFileName = inFile.getName();
-													String md = toMarkdown(tiddler, inFileName);
-													String outFileName = inFileName.substring(0, inFileName.length() - TIDDLER_EXT.length()) + MARKDOWN_EXT;
-													outFile = new File(calculateOutputDirectory(tiddler), outFileName);
-													log.debug("Saving tiddler {} -> {}", inFile, outFile);
-													Files.writeString(outFile.toPath(), md);
-												} else {
-													final String header = tiddler.getHeader(TITLE_HEADER);
-													outFile = new File(assetDir, header);
-													log.debug("Saving binary tiddler {} -> {}", inFile, outFile);
-													saveBinaryTiddler(tiddler, outFile.toPath());
-												}
-												tiddler.getCreatedTime().ifPresent(ct -> {
-													final ZonedDateTime mt = tiddler.getLastUpdatedTime().orElse(ct);
-													setFileTimestamps(outFile.toPath(), ct, mt);
-												});
-											} catch (IOException e) {
-												log.error("{}", e.getMessage(), e);
-											}
-										});
-									} else {
-										final Path savePath = new File(assetDir, inFile.getName()).toPath();
-										log.debug("Saving asset {} -> {}", inFile, savePath);
-										Files.copy(inFile.toPath(), savePath, StandardCopyOption.REPLACE_EXISTING);
-									}
-								} catch (IOException e) {
-									log.error("{}", e.getMessage(), e);
-								}
-							});
-		}
-
-		tiddlyWikiAssetsPath.ifPresent(ap -> {
-			final File sourceAssetPath = new File(sourceDirectory, ap);
-			final int assetPathRootLen = sourceAssetPath.getAbsolutePath().length();
-			try (Stream<Path> path = Files.walk(sourceAssetPath.toPath())) {
-				path.map(Path::toFile)
-								.filter(f -> !f.getName().equals(OSX_DS_STORE_DIR))
-								.forEach(file -> {
-									System.out.print("."); // show progress
-									String localPath = file.getAbsolutePath().substring(assetPathRootLen);
-									final File outFile = new File(assetDir, localPath);
-									if (file.isDirectory()) {
-										if (outFile.exists() || outFile.mkdirs()) {
-											log.debug("MKDIR: {}", outFile.getAbsolutePath());
-										} else {
-											log.warn("Failed to MKDIR: {}", outFile.getAbsolutePath());
-										}
-									} else {
-										try {
-											log.debug("COPY: {} -> {}", file, outFile.getAbsolutePath());
-											Files.copy(file.toPath(), outFile.toPath());
-										} catch (FileAlreadyExistsException e) {
-											log.debug("FILE EXISTS: {}", e.getMessage());
-										} catch (IOException e) {
-											log.error("{}", e.getMessage(), e);
-										}
-									}
-								});
-			} catch (IOException e) {
-				log.error("{}", e.getMessage(), e);
-			}
+		tiddler.getCreatedTime().ifPresent(ct -> {
+			final ZonedDateTime mt = tiddler.getLastUpdatedTime().orElse(ct);
+			setFileTimestamps(outFile, ct, mt);
 		});
+	}
 
-		System.out.print("Done!");
-		System.out.println();
+	private File calculateOutputDirectory(Tiddler tiddler) {
 
-		return 0;
+		return calculateOutputDirectory(tiddler, outputDirectory);
 	}
 
-	private File calculateOutputDirectory(Tiddler tiddler) {
+	/**
+	 * the folder of the first tag mapped with --map-tag, or the default directory
+	 */
+	private File calculateOutputDirectory(Tiddler tiddler, File defaultDirectory) {
 
 		final List<String> tiddlerTags = splitTags(tiddler.getHeader(TAGS_HEADER));
 
@@ -291,37 +2038,55 @@ public class Main implements Callable<Integer> {
 			}
 		}
 
-		return outputDirectory;
+		return defaultDirectory;
 	}
 
 	public Optional<Tiddler> readTiddler(Path p) {
 
-		final List<String> lines;
 		try {
-			lines = Files.readAllLines(p, StandardCharsets.UTF_8);
-			List<String> header = new ArrayList<>();
-			List<String> body = new ArrayList<>();
-			List<String> active = header;
-			for (String line : lines) {
-				if (line.isBlank() && active == header) {
-					active = body;
-					continue;
-				}
-				active.add(line);
+			return Optional.of(parseTiddler(p));
+		} catch (IOException e) {
+			log().error("Error reading {}, {}", p, e.getMessage(), e);
+		}
+
+		return Optional.empty();
+	}
+
+	/**
+	 * read a tiddler file, a header line that isn't a `name: value` pair is an error.
+	 */
+	Tiddler parseTiddler(Path p) throws IOException {
+
+		return parseTiddler(Files.readAllLines(p, StandardCharsets.UTF_8), p);
+	}
+
+	Tiddler parseTiddler(List<String> lines, Path p) throws IOException {
+
+		List<String> header = new ArrayList<>();
+		List<String> body = new ArrayList<>();
+		List<String> active = header;
+		for (String line : lines) {
+			if (line.isBlank() && active == header) {
+				active = body;
+				continue;
 			}
+			active.add(line);
+		}
 
-			Map<String, String> headers = new HashMap<>();
-			for (String s : header) {
-				final String[] split = s.split(": ", 2);
+		Map<String, String> headers = new HashMap<>();
+		for (String s : header) {
+			final String[] split = s.split(": ", 2);
+			if (split.length == 2) {
 				headers.put(split[0], split[1]);
+			} else if (s.endsWith(":")) {
+				// a header with an empty value
+				headers.put(s.substring(0, s.length() - 1), "");
+			} else {
+				throw new IOException("Malformed header line '" + s + "' in " + p);
 			}
-
-			return Optional.of(new Tiddler(headers, body));
-		} catch (IOException e) {
-			log.error("Error reading {}, {}", p, e.getMessage(), e);
 		}
 
-		return Optional.empty();
+		return new Tiddler(headers, body);
 	}
 
 	/**
@@ -400,6 +2165,41 @@ public class Main implements Callable<Integer> {
 	 */
 	public String toMarkdown(Tiddler t, String filename) {
 
+		// reset open/close tag flags
+		renderState.set(new RenderState(new RenderBudget(renderBudgetMillis)));
+
+		try {
+			return renderMarkdown(t, filename);
+		} catch (RenderBudget.ExceededException e) {
+			log().warn("{} {}, saving the raw text in a code block", filename, e.getMessage());
+			return renderFrontMatter(t, filename) + renderRawText(t);
+		}
+	}
+
+	/**
+	 * the tiddler text in a code block, the fence is made longer than any fence in the text.
+	 */
+	private String renderRawText(Tiddler t) {
+
+		String fence = "```";
+		for (String line : t.getBody()) {
+			while (line.startsWith(fence)) {
+				fence += "`";
+			}
+		}
+
+		StringBuilder md = new StringBuilder();
+		md.append(fence).append(NL);
+		for (String line : t.getBody()) {
+			md.append(line).append(NL);
+		}
+		md.append(fence).append(NL);
+
+		return md.toString();
+	}
+
+	private String renderMarkdown(Tiddler t, String filename) {
+
 		StringBuilder md = new StringBuilder();
 
 		md.append(renderFrontMatter(t, filename));
@@ -410,6 +2210,30 @@ public class Main implements Callable<Integer> {
 			blocks.add(0, new Block(HEADER, "!" + t.getHeader(TITLE_HEADER)));
 		}
 
+		renderBlocks(t, blocks, md);
+
+		return md.toString();
+	}
+
+	/**
+	 * the markdown of a transcluded tiddler, its text without the front matter or title. it has its own open/close
+	 * state and shares the budget of the tiddler being converted.
+	 */
+	private String renderInlined(Tiddler t) {
+
+		final RenderState outer = renderState.get();
+		renderState.set(new RenderState(outer.budget));
+		try {
+			final StringBuilder md = new StringBuilder();
+			renderBlocks(t, blockify(t.getBody()), md);
+			return md.toString().trim();
+		} finally {
+			renderState.set(outer);
+		}
+	}
+
+	private void renderBlocks(Tiddler t, List<Block> blocks, StringBuilder md) {
+
 		for (int i = 0; i < blocks.size(); i++) {
 			Block block = blocks.get(i);
 			Optional<Block> nextBlock = i < blocks.size() - 1 ? Optional.of(blocks.get(i + 1)) : Optional.empty();
@@ -422,7 +2246,7 @@ public class Main implements Callable<Integer> {
 					md.append(renderQuoteBlock(t, block.getLines()));
 					break;
 				case TABLE:
-					md.append(renderTableBlock(t, block.getLines()));
+					renderTableBlock(t, block.getLines(), md);
 					break;
 				case NUMBER_LIST:
 				case BULLET_LIST:
@@ -441,8 +2265,6 @@ public class Main implements Callable<Integer> {
 				}
 			});
 		}
-
-		return md.toString();
 	}
 
 	private boolean addTitleAsHeader(Tiddler t) {
@@ -493,6 +2315,11 @@ public class Main implements Callable<Integer> {
 	 */
 	private String renderText(Tiddler t, String str, boolean tableRow) {
 
+		if (isPlainText(str)) {
+			// nothing to render, saves the regex passes on every cell of a large table
+			return str;
+		}
+
 		boolean code = false;
 
 		StringBuilder out = new StringBuilder();
@@ -520,75 +2347,167 @@ public class Main implements Callable<Integer> {
 		return out.toString();
 	}
 
-	private String renderTextFragment(Tiddler t, String s, boolean tableRow) {
+	/**
+	 * @return true if the text has none of the characters that start inline markup
+	 */
+	private static boolean isPlainText(String s) {
+
+		for (int i = 0, n = s.length(); i < n; i++) {
+			switch (s.charAt(i)) {
+				case '`':
+				case '_':
+				case '^':
+				case ',':
+				case '\'':
+				case '/':
+				case '[':
+				case '{':
+				case '<':
+					return false;
+				default:
+			}
+		}
+		return true;
+	}
 
-		String escStr = tableRow ? "\\\\" : "";
+	private String renderTextFragment(Tiddler t, String s, boolean tableRow) {
 
-		log.debug("Render: {}, ul: {}, sub: {}, sup: {}", s, openUnderline, openSub, openSup);
+		final RenderState rs = renderState.get();
+		rs.budget.check();
 
+		if (RenderTrace.ENABLED) {
+			RenderTrace.trace("Render: {}, ul: {}, sub: {}, sup: {}", s, rs.openUnderline, rs.openSub, rs.openSup);
+		}
 
-		while (UNDERLINE_REGEX.matcher(s).find()) {
-			s = UNDERLINE_REGEX.matcher(s).replaceFirst(m -> openUnderline ? "<u>" : "</u>");
-			openUnderline = !openUnderline;
+		// one pass per marker, replacing them left to right in turn
+		Matcher m = UNDERLINE_REGEX.matcher(s);
+		StringBuilder sb = new StringBuilder();
+		while (m.find()) {
+			m.appendReplacement(sb, rs.openUnderline ? "<u>" : "</u>");
+			rs.openUnderline = !rs.openUnderline;
 		}
+		s = m.appendTail(sb).toString();
 
-		while (SUPER_REGEX.matcher(s).find()) {
-			s = SUPER_REGEX.matcher(s).replaceFirst(m -> openSup ? "<sup>" : "</sup>");
-			openSup = !openSup;
+		m = SUPER_REGEX.matcher(s);
+		sb = new StringBuilder();
+		while (m.find()) {
+			m.appendReplacement(sb, rs.openSup ? "<sup>" : "</sup>");
+			rs.openSup = !rs.openSup;
 		}
+		s = m.appendTail(sb).toString();
 
-		while (SUB_REGEX.matcher(s).find()) {
-			s = SUB_REGEX.matcher(s).replaceFirst(m -> openSub ? "<sub>" : "</sub>");
-			openSub = !openSub;
+		m = SUB_REGEX.matcher(s);
+		sb = new StringBuilder();
+		while (m.find()) {
+			m.appendReplacement(sb, rs.openSub ? "<sub>" : "</sub>");
+			rs.openSub = !rs.openSub;
 		}
+		s = m.appendTail(sb).toString();
 
 		// bold
-		s = s.replaceAll("''", "**");
+		s = BOLD_REGEX.matcher(s).replaceAll("**");
 
 		// italic
-		s = s.replaceAll("([^:])//", "$1_");
-		s = s.replaceFirst("^//", "_");
+		s = ITALIC_REGEX.matcher(s).replaceAll("$1_");
+		s = LEADING_ITALIC_REGEX.matcher(s).replaceFirst("_");
+
+		s = renderMode == RENDER_MODE.LINEAR
+						? renderLinksAndMacrosLinear(t, s, tableRow)
+						: renderLinksAndMacros(t, s, tableRow, rs.budget);
+
+		if (!rs.inlined.isEmpty()) {
+			s = INLINED_REGEX.matcher(s).replaceAll(im -> Matcher.quoteReplacement(rs.inlined.get(Integer.parseInt(im.group(1)))));
+			rs.inlined.clear();
+		}
+		return s;
+	}
+
+	private String renderLinksAndMacros(Tiddler t, String s, boolean tableRow, RenderBudget budget) {
+
+		String escStr = tableRow ? "\\\\" : "";
 
 		// external links
-		s = s.replaceAll("\\[\\[([^|]+)\\|(http[^]]+)]]", "[$1]($2)");
-		s = s.replaceAll("\\[\\[(http[^]]*)]]", "$1");
+		s = EXTERNAL_LINK_REGEX.matcher(budget.guard(s)).replaceAll("[$1]($2)");
+		s = BARE_EXTERNAL_LINK_REGEX.matcher(budget.guard(s)).replaceAll("$1");
 
 		// internal links with display text
-		s = s.replaceAll("\\[\\[([^|]*)\\|([^]]*)]]", "[[$2" + escStr + "|$1]]");
+		s = INTERNAL_LINK_REGEX.matcher(budget.guard(s)).replaceAll("[[$2" + escStr + "|$1]]");
 
 		// image links with sizing [img width=100 height=90 [image.png]]
-		s = s.replaceAll("\\[img *width=(\\d+) +height=(\\d+) +\\[([^]]*)]]", "![[$3" + escStr + "|$1x$2]]");
-		s = s.replaceAll("\\[img *height=(\\d+) +width=(\\d+) +\\[([^]]*)]]", "![[$3" + escStr + "|$2x$1]]");
-		s = s.replaceAll("\\[img *width=(\\d+) +\\[([^]]*)]]", "![[$2" + escStr + "|$1]]");
+		s = IMAGE_WIDTH_HEIGHT_REGEX.matcher(budget.guard(s)).replaceAll("![[$3" + escStr + "|$1x$2]]");
+		s = IMAGE_HEIGHT_WIDTH_REGEX.matcher(budget.guard(s)).replaceAll("![[$3" + escStr + "|$2x$1]]");
+		s = IMAGE_WIDTH_REGEX.matcher(budget.guard(s)).replaceAll("![[$2" + escStr + "|$1]]");
 
 		// image links [img [image.png]]
-		s = s.replaceAll("\\[img *\\[([^]]*)]]", "![[$1]]");
+		s = IMAGE_REGEX.matcher(budget.guard(s)).replaceAll("![[$1]]");
 
 		// {{!!header-name}}
-		s = Pattern.compile("\\{\\{!!([^]]*)}}").matcher(s).replaceAll(m -> renderHeader(t, m.group(0), m.group(1)));
+		s = HEADER_TRANSCLUSION_REGEX.matcher(budget.guard(s)).replaceAll(m -> renderHeader(t, m.group(0), m.group(1)));
 
 		// transcoding
-		s = s.replaceAll("\\{\\{([^]]*)}}", "![[$1]]");
-		s = s.replaceAll("\\{\\{\\{([^}]*)}}}", "`$0`");
+		s = TRANSCLUSION_REGEX.matcher(budget.guard(s)).replaceAll(m -> Matcher.quoteReplacement(renderTransclusion(t, m.group(1), tableRow)));
+		s = TRIPLE_BRACE_REGEX.matcher(budget.guard(s)).replaceAll("`$0`");
 
 		// tag macro
-		s = Pattern.compile("<<tag +([^>]+)>>").matcher(s).replaceAll(m -> renderTag(m.group(1)));
+		s = TAG_MACRO_REGEX.matcher(budget.guard(s)).replaceAll(m -> renderTag(m.group(1)));
 
 		// my custom macro
-		s = s.replaceAll("<<tkt +([^ ]+) +'([^']+)'>>", "[[$1]] - $2");
-		s = s.replaceAll("<<tkt +([^ ]+) *>>", "[[$1]]");
+		s = TKT_MACRO_WITH_TEXT_REGEX.matcher(budget.guard(s)).replaceAll("[[$1]] - $2");
+		s = TKT_MACRO_REGEX.matcher(budget.guard(s)).replaceAll("[[$1]]");
 
 		// <<richlink "files/foo/bar.mp4">>
-		s = Pattern.compile("<<richlink +\"([^\"]+)\" *>>").matcher(s).replaceAll(m -> renderRichlink(m.group(1)));
+		s = RICHLINK_MACRO_REGEX.matcher(budget.guard(s)).replaceAll(m -> renderRichlink(m.group(1)));
 
 		// comment unknown macros
-		s = s.replaceAll("<<.*>>", "`$0`");
-		s = s.replaceAll("<\\$[^>]*>", "`$0`");
-		s = s.replaceAll("</\\$[^>]*>", "`$0`");
+		s = UNKNOWN_MACRO_REGEX.matcher(budget.guard(s)).replaceAll("`$0`");
+		s = WIDGET_OPEN_REGEX.matcher(budget.guard(s)).replaceAll("`$0`");
+		s = WIDGET_CLOSE_REGEX.matcher(budget.guard(s)).replaceAll("`$0`");
+
+		return s;
+	}
+
+	/**
+	 * the same as {@link #renderLinksAndMacros} without regular expressions, runs in linear time however unbalanced the
+	 * markup is.
+	 */
+	private String renderLinksAndMacrosLinear(Tiddler t, String s, boolean tableRow) {
+
+		String escStr = tableRow ? "\\" : "";
+
+		s = LinearMarkup.externalLinks(s);
+		s = LinearMarkup.bareExternalLinks(s);
+		s = LinearMarkup.internalLinks(s, escStr);
+		s = LinearMarkup.images(s, escStr);
+		s = LinearMarkup.headerTransclusions(s, (transclusion, key) -> renderHeader(t, transclusion, key));
+		s = LinearMarkup.transclusions(s, target -> renderTransclusion(t, target, tableRow));
+		s = LinearMarkup.tripleBraces(s);
+		s = LinearMarkup.tagMacros(s, this::renderTag);
+		s = LinearMarkup.tktMacros(s);
+		s = LinearMarkup.richlinkMacros(s, this::renderRichlink);
+		s = LinearMarkup.unknownMacros(s);
 
 		return s;
 	}
 
+	/**
+	 * <code>{{target}}</code> as an embed, or with --inline-transclusions the markdown of the tiddler. the markdown is
+	 * held back until the rest of the fragment is rendered so it isn't rendered twice, a table cell can only hold a line
+	 * so it always gets an embed.
+	 */
+	private String renderTransclusion(Tiddler t, String target, boolean tableRow) {
+
+		if (transclusions != null && !tableRow && !target.contains("|") && !target.contains("!!") && !target.contains("##")
+						&& !target.contains("}}")) {
+			final String md = transclusions.expand(t, target.trim(), this::renderInlined);
+			if (md != null) {
+				final List<String> inlined = renderState.get().inlined;
+				inlined.add(md);
+				return "" + INLINED_START + (inlined.size() - 1) + INLINED_END;
+			}
+		}
+		return "![[" + target + "]]";
+	}
+
 	private String renderHeader(Tiddler t, String transclusion, String key) {
 
 		final String header = t.getHeader(key);
@@ -606,46 +2525,22 @@ public class Main implements Callable<Integer> {
 		return sb.toString().trim();
 	}
 
-	private String renderTableBlock(Tiddler t, List<String> block) {
-
-		StringBuilder sb = new StringBuilder();
-
-		for (int i = 0, blockSize = block.size(); i < blockSize; i++) {
-			String l = renderText(t, block.get(i), true).trim();
-
-			// render the row cells
-			String tr = l.substring(1, l.length() - 1);
-			final String[] cells = tr.split("(?<!\\\\)\\|");
-			log.debug("Cells: {} -> {}", tr, Arrays.toString(cells));
-			for (int j = 0, cellsLength = cells.length; j < cellsLength; j++) {
-				sb.append(cells[j].replaceAll("^ *!", "").trim());
-				if (j < cellsLength - 1) {
-					sb.append(" | ");
-				}
-			}
-			sb.append(NL);
-
-			// render the hyphen row, always row 2
-			if (i == 0) {
-				for (int j = 0, cellsLength = cells.length; j < cellsLength; j++) {
-					sb.append("---");
-					if (j < cellsLength - 1) {
-						sb.append(" | ");
-					} else {
-						sb.append(NL);
-					}
-				}
-			}
-		}
+	/**
+	 * tables are rendered straight into the markdown a row at a time.
+	 */
+	private void renderTableBlock(Tiddler t, List<String> block, StringBuilder md) {
 
-		return sb.toString().trim();
+		TableRenderer.render(block, cell -> renderText(t, cell, true), md, NL);
 	}
 
 	private String renderQuoteBlock(Tiddler t, List<String> block) {
 
 		StringBuilder sb = new StringBuilder();
 
-		for (String l : block.subList(1, block.size() - 1)) {
+		// the closing <<< is missing when the quote runs to the end of the tiddler
+		final int end = block.size() > 1 && block.get(block.size() - 1).startsWith("<<<") ? block.size() - 1 : block.size();
+
+		for (String l : block.subList(1, end)) {
 			final ArrayList<String> list = new ArrayList<>();
 			list.add(l);
 			sb.append(("> " + renderTextBlock(t, list)).trim()).append(NL);
@@ -679,7 +2574,9 @@ public class Main implements Callable<Integer> {
 					String strNext = block.get(i + 1);
 					final int il1 = rowIndentLevel(str);
 					final int il2 = rowIndentLevel(strNext);
-					log.debug("Row indents: {} indent {}, next line {}", str, il1, il2);
+					if (RenderTrace.ENABLED) {
+						RenderTrace.trace("Row indents: {} indent {}, next line {}", str, il1, il2);
+					}
 					isHeader = il1 < il2;
 				}
 			}
@@ -697,7 +2594,7 @@ public class Main implements Callable<Integer> {
 
 			if (checked) {
 				// remove the existing strikethrough
-				final Matcher matcher = Pattern.compile("^( *[#-*]+ *)~~(.*)~~$").matcher(str);
+				final Matcher matcher = STRUCK_OUT_ROW_REGEX.matcher(str);
 				if (matcher.matches()) {
 					str = matcher.group(1) + matcher.group(2);
 				}
@@ -718,12 +2615,12 @@ public class Main implements Callable<Integer> {
 
 	private boolean isRowChecked(String s) {
 
-		return Pattern.compile("^ *([#-*]+) *~~.*~~$").matcher(s).matches();
+		return CHECKED_ROW_REGEX.matcher(s).matches();
 	}
 
 	private int rowIndentLevel(String s) {
 
-		final Matcher matcher = Pattern.compile("^ *([#*\\-]+).*$").matcher(s);
+		final Matcher matcher = ROW_INDENT_REGEX.matcher(s);
 
 		if (matcher.matches()) {
 			return matcher.group(1).length();
@@ -752,9 +2649,8 @@ public class Main implements Callable<Integer> {
 
 		StringBuilder md = new StringBuilder();
 		if (!data.isEmpty()) {
-			Yaml yaml = new Yaml();
 			StringWriter writer = new StringWriter();
-			yaml.dump(data, writer);
+			YAML.get().dump(data, writer);
 			md.append("---").append(NL);
 			md.append(writer);
 			md.append("---").append(NL).append(NL);
@@ -772,10 +2668,12 @@ public class Main implements Callable<Integer> {
 			return new ArrayList<>();
 		}
 
-		log.debug("Splitting tags: {}", ts);
+		if (RenderTrace.ENABLED) {
+			RenderTrace.trace("Splitting tags: {}", ts);
+		}
 
 		List<String> tagStrings = new ArrayList<>();
-		Matcher matcher = Pattern.compile("\\[\\[([^]]+)]]|([^ ]+)").matcher(ts);
+		Matcher matcher = SPLIT_TAGS_REGEX.matcher(ts);
 		while (matcher.find()) {
 			final String tagStr = Optional.ofNullable(matcher.group(1)).orElse(matcher.group(2));
 			tagStrings.add(tagStr);
@@ -804,7 +2702,7 @@ public class Main implements Callable<Integer> {
 		// apply case conversion
 		String newTag = tagCaseConversion.convert(tag);
 
-		if (Pattern.compile("\\d+").matcher(newTag).matches()) {
+		if (NUMERIC_TAG_REGEX.matcher(newTag).matches()) {
 			// it's a numeric tag, must be prefixed
 			newTag = numericTagPrefix + newTag;
 		} else {
@@ -824,7 +2722,9 @@ public class Main implements Callable<Integer> {
 		// add the # prefix
 		newTag = '#' + newTag;
 
-		log.debug("Convert Tag: {} -> {}", tag, newTag);
+		if (RenderTrace.ENABLED) {
+			RenderTrace.trace("Convert Tag: {} -> {}", tag, newTag);
+		}
 		return newTag;
 	}
 
@@ -898,7 +2798,9 @@ public class Main implements Callable<Integer> {
 	 */
 	private String renderRichlink(String link) {
 
-		log.debug("RICHLINK: {}", link);
+		if (RenderTrace.ENABLED) {
+			RenderTrace.trace("RICHLINK: {}", link);
+		}
 
 		if (link.contains("youtube.com")) {
 			// <iframe src="https://www.youtube.com/embed/NnTvZWp5Q7o"></iframe>
@@ -922,13 +2824,14 @@ public class Main implements Callable<Integer> {
 			FileTime mt = FileTime.fromMillis(modified.toInstant().toEpochMilli());
 			attributes.setTimes(mt, mt, ct);
 		} catch (IOException e) {
-			log.error("Error setting file timestamps {}, created {}, modified {}, {}", filePath, created, modified, e.getMessage(), e);
+			log().error("Error setting file timestamps {}, created {}, modified {}, {}", filePath, created, modified, e.getMessage(), e);
 		}
 	}
 
-	private void saveBinaryTiddler(Tiddler t, Path outPath) throws IOException {
+	private boolean saveBinaryTiddler(Tiddler t, Path outPath, Path inFile, ConversionRun run) throws ConversionException {
 
-		final byte[] data = Base64.getMimeDecoder().decode(String.join(NL, t.getBody()));
-		Files.write(outPath, data);
+		final byte[] data = ConversionException.at(STAGE.DECODE,
+						() -> Base64.getMimeDecoder().decode(String.join(NL, t.getBody())));
+		return ConversionException.at(STAGE.WRITE, () -> writeOutput(outPath, data, inFile, run));
 	}
 }
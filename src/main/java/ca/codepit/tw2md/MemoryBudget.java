@@ -0,0 +1,140 @@
+package ca.codepit.tw2md;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * admits work while the estimated memory of everything in flight fits a budget, so a burst of large tiddlers waits
+ * for memory instead of running the JVM out of it.
+ * <p>
+ * an item estimated to need more than the whole budget is admitted once nothing else is in flight, it runs alone
+ * rather than never. conversions of different wikis (batch, serve) can share a budget.
+ * <p>
+ * a fork/join worker waits through {@link ForkJoinPool#managedBlock}, so the pool can start a spare worker to run the
+ * queued tasks that will free the memory. without it a reader holding memory for tasks queued on a shared pool would
+ * wait forever once every worker was waiting for memory.
+ *
+ * @author evan
+ */
+class MemoryBudget {
+
+	private static final long MB = 1024 * 1024;
+
+	private final long budget;
+
+	/**
+	 * guarded by this
+	 */
+	private long inFlight;
+
+	private long peak;
+
+	private long waits;
+
+	/**
+	 * @param budgetMb the budget in MB, 0 for half the maximum heap
+	 */
+	MemoryBudget(long budgetMb) {
+
+		this.budget = budgetMb > 0 ? budgetMb * MB : Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * wait until the cost fits the budget, interrupts are kept for the caller to see but don't stop the wait, the
+	 * item is admitted once the work ahead of it finishes.
+	 *
+	 * @return the amount held, to be released when the work is done
+	 */
+	long acquire(long cost) {
+
+		final long n = Math.max(0, Math.min(cost, budget));
+		if (tryAcquire(n)) {
+			return n;
+		}
+		synchronized (this) {
+			waits++;
+		}
+		final Admission admission = new Admission(n);
+		boolean interrupted = false;
+		while (!admission.admitted) {
+			try {
+				ForkJoinPool.managedBlock(admission);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return n;
+	}
+
+	private synchronized boolean tryAcquire(long n) {
+
+		if (inFlight + n > budget) {
+			return false;
+		}
+		inFlight += n;
+		peak = Math.max(peak, inFlight);
+		return true;
+	}
+
+	/**
+	 * waits for an item to fit, used by one thread only
+	 */
+	private class Admission implements ForkJoinPool.ManagedBlocker {
+
+		private final long n;
+
+		private boolean admitted;
+
+		private Admission(long n) {
+
+			this.n = n;
+		}
+
+		@Override
+		public boolean isReleasable() {
+
+			if (!admitted) {
+				admitted = tryAcquire(n);
+			}
+			return admitted;
+		}
+
+		@Override
+		public boolean block() throws InterruptedException {
+
+			synchronized (MemoryBudget.this) {
+				while (!tryAcquire(n)) {
+					MemoryBudget.this.wait();
+				}
+			}
+			admitted = true;
+			return true;
+		}
+	}
+
+	synchronized void release(long held) {
+
+		inFlight -= held;
+		notifyAll();
+	}
+
+	long getBudget() {
+
+		return budget;
+	}
+
+	synchronized long getPeak() {
+
+		return peak;
+	}
+
+	/**
+	 * @return how many items had to wait for memory
+	 */
+	synchronized long getWaits() {
+
+		return waits;
+	}
+}
@@ -0,0 +1,163 @@
+package ca.codepit.tw2md;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * writes output files, optionally leaving a file alone when it already holds exactly the bytes that would be written so
+ * rerunning into a vault doesn't change the modified time of every file.
+ * <p>
+ * the lengths are compared first, then the content is compared a block at a time with the existing file.
+ *
+ * @author evan
+ */
+class OutputFiles {
+
+	private static final int BLOCK = 1 << 16;
+
+	private OutputFiles() {
+
+	}
+
+	/**
+	 * @param compare leave the file alone if it already holds the data
+	 * @return true if the file was written
+	 */
+	static boolean write(Path out, byte[] data, boolean compare) throws IOException {
+
+		if (compare && Files.isRegularFile(out) && Files.size(out) == data.length
+						&& sameContent(out, new ByteArrayInputStream(data))) {
+			return false;
+		}
+		Files.write(out, data);
+		return true;
+	}
+
+	/**
+	 * @return true if the file was written
+	 */
+	static boolean copy(Path source, Path out, boolean compare) throws IOException {
+
+		if (compare && Files.isRegularFile(out) && Files.size(out) == Files.size(source)) {
+			try (InputStream in = Files.newInputStream(source)) {
+				if (sameContent(out, in)) {
+					return false;
+				}
+			}
+		}
+		Files.copy(source, out, StandardCopyOption.REPLACE_EXISTING);
+		return true;
+	}
+
+	/**
+	 * move a file over the output, an output that already holds the same bytes is left alone and the file is deleted.
+	 *
+	 * @param compare leave the output alone if it already holds the bytes of the file
+	 * @return true if the output was replaced
+	 */
+	static boolean move(Path source, Path out, boolean compare) throws IOException {
+
+		if (compare && Files.isRegularFile(out) && Files.size(out) == Files.size(source)) {
+			final boolean same;
+			try (InputStream in = Files.newInputStream(source)) {
+				same = sameContent(out, in);
+			}
+			if (same) {
+				Files.delete(source);
+				return false;
+			}
+		}
+		Files.move(source, out, StandardCopyOption.REPLACE_EXISTING);
+		return true;
+	}
+
+	/**
+	 * copy a stream that can only be read once, it is compared with the existing file as it is read. when they differ
+	 * the part already read is the same as the start of the existing file, so the new file is put together from that
+	 * and the rest of the stream.
+	 *
+	 * @return true if the file was written
+	 */
+	static boolean copy(InputStream in, Path out, boolean compare) throws IOException {
+
+		if (!compare || !Files.isRegularFile(out)) {
+			Files.copy(in, out, StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		}
+
+		final byte[] expected = new byte[BLOCK];
+		final byte[] actual = new byte[BLOCK];
+		long matched = 0;
+		int n;
+		try (InputStream existing = Files.newInputStream(out)) {
+			while (true) {
+				n = in.readNBytes(actual, 0, BLOCK);
+				final int m = existing.readNBytes(expected, 0, BLOCK);
+				if (n != m || !Arrays.equals(actual, 0, n, expected, 0, m)) {
+					break;
+				} else if (n == 0) {
+					return false;
+				}
+				matched += n;
+			}
+		}
+
+		final Path tmp = Files.createTempFile(out.toAbsolutePath().getParent(), ".tw2md-", ".tmp");
+		try {
+			try (OutputStream os = Files.newOutputStream(tmp); InputStream existing = Files.newInputStream(out)) {
+				copy(existing, os, matched);
+				os.write(actual, 0, n);
+				in.transferTo(os);
+			}
+			try {
+				Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		return true;
+	}
+
+	private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+
+		final byte[] buffer = new byte[BLOCK];
+		long remaining = length;
+		while (remaining > 0) {
+			final int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n < 0) {
+				throw new IOException("File changed while being compared");
+			}
+			out.write(buffer, 0, n);
+			remaining -= n;
+		}
+	}
+
+	/**
+	 * @return true if the file holds exactly the bytes of the stream
+	 */
+	private static boolean sameContent(Path file, InputStream in) throws IOException {
+
+		final byte[] expected = new byte[BLOCK];
+		final byte[] actual = new byte[BLOCK];
+		try (InputStream existing = Files.newInputStream(file)) {
+			while (true) {
+				final int n = in.readNBytes(actual, 0, BLOCK);
+				final int m = existing.readNBytes(expected, 0, BLOCK);
+				if (n != m || !Arrays.equals(actual, 0, n, expected, 0, m)) {
+					return false;
+				} else if (n == 0) {
+					return true;
+				}
+			}
+		}
+	}
+}
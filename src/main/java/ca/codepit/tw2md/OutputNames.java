@@ -0,0 +1,266 @@
+package ca.codepit.tw2md;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+/**
+ * the output files claimed by the source files of a run, two sources whose outputs would end up as the same file on a
+ * case insensitive or more restrictive file system (Windows, macOS) get different names instead of overwriting each
+ * other.
+ * <p>
+ * names are compared after case folding, unicode normalisation and replacing the characters Windows doesn't allow. the
+ * source that claims a name first keeps it, the others get a suffix made from a hash of their source path so a source
+ * is given the same name every time it loses. collisions are saved as tab separated lines of source path, output path
+ * and the source holding the name at every journal checkpoint, and read back by --resume and --retry-failed.
+ * <p>
+ * sources are handed to the pool through {@link #ordered}, which keeps the sources that could claim the same name in
+ * the order they were found, so the first one found keeps the name whatever the thread scheduling. a binary tiddler is
+ * named after its title, if its file name doesn't start like its title (renamed by hand, or truncated) it isn't kept in
+ * order. each shard has its own names, two shards giving out the same name are only reported by --verify-shards.
+ *
+ * @author evan
+ */
+public class OutputNames {
+
+	private static final Logger log = LoggerFactory.getLogger(OutputNames.class);
+
+	private static final String COMMENT = "#";
+
+	private static final String TAB = "\t";
+
+	private static final Pattern ILLEGAL_CHARS_REGEX = Pattern.compile("[<>:\"\\\\|?*\\x00-\\x1f]");
+
+	private static final Pattern TRAILING_REGEX = Pattern.compile("[. ]+(?=/|$)");
+
+	/**
+	 * the characters replaced by _ in a tiddler's file name or in the name of the asset made from its title
+	 */
+	private static final Pattern REPLACED_CHARS_REGEX = Pattern.compile("[<>~:\"/\\\\|?*^\\x00-\\x1f]");
+
+	private final Path outputRoot;
+
+	/**
+	 * key of each claimed output -> the source that claimed it, the map locks per bin so claims don't block each other
+	 */
+	private final Map<String, String> owners = new ConcurrentHashMap<>();
+
+	private final Queue<String[]> collisions = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * group of the sources being converted -> done when the last one handed to the pool is
+	 */
+	private final Map<String, CountDownLatch> converting = new ConcurrentHashMap<>();
+
+	/**
+	 * how many collisions the file was last saved with, guarded by this
+	 */
+	private int saved = -1;
+
+	public OutputNames(Path outputRoot) {
+
+		this.outputRoot = outputRoot;
+	}
+
+	/**
+	 * the name an output is compared by, its path relative to the output directory as a case insensitive file system
+	 * sees it.
+	 */
+	static String key(String relativePath) {
+
+		String key = Normalizer.normalize(relativePath.replace('\\', '/'), Normalizer.Form.NFC);
+		key = ILLEGAL_CHARS_REGEX.matcher(key).replaceAll("_");
+		key = TRAILING_REGEX.matcher(key).replaceAll("");
+		return key.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * the group of a source file name, a source's output can only take the name of another source's output if both are
+	 * in the same group. the name up to its first dot, which leaves out the extensions that differ between a source and
+	 * its output, compared like {@link #key}.
+	 */
+	static String group(String fileName) {
+
+		String group = Normalizer.normalize(fileName, Normalizer.Form.NFC).toLowerCase(Locale.ROOT);
+		final int dot = group.indexOf('.');
+		if (dot >= 0) {
+			group = group.substring(0, dot);
+		}
+		return REPLACED_CHARS_REGEX.matcher(group).replaceAll("_").stripTrailing();
+	}
+
+	/**
+	 * wait until no other source of the file's group is being converted.
+	 */
+	public void await(String fileName) throws InterruptedException {
+
+		final CountDownLatch last = converting.get(group(fileName));
+		if (last != null) {
+			last.await();
+		}
+	}
+
+	/**
+	 * wait until no other source of the file's group is being converted, the task returned holds the group until it is
+	 * done. called by the one thread handing out the sources.
+	 */
+	public Runnable ordered(String fileName, Runnable task) throws InterruptedException {
+
+		await(fileName);
+		final String group = group(fileName);
+		final CountDownLatch done = new CountDownLatch(1);
+		converting.put(group, done);
+		return () -> {
+			try {
+				task.run();
+			} finally {
+				converting.remove(group, done);
+				done.countDown();
+			}
+		};
+	}
+
+	/**
+	 * a title used as a file name, path separators and the characters Windows doesn't allow are replaced by _
+	 */
+	static String fileName(String title) {
+
+		return ILLEGAL_CHARS_REGEX.matcher(title.replace('/', '_')).replaceAll("_");
+	}
+
+	/**
+	 * claim an output file for a source.
+	 *
+	 * @param source the source path relative to the wiki directory
+	 * @return the output to write, either the one asked for or a disambiguated name next to it
+	 * @throws IllegalArgumentException if the output isn't inside the output directory
+	 */
+	public Path claim(Path output, String source) {
+
+		if (!output.toAbsolutePath().normalize().startsWith(outputRoot.toAbsolutePath().normalize())) {
+			throw new IllegalArgumentException("Output " + output + " of " + source + " is outside " + outputRoot);
+		}
+		final String holder = owners.putIfAbsent(key(relative(output)), source);
+		if (holder == null || holder.equals(source)) {
+			return output;
+		}
+
+		final String fileName = output.getFileName().toString();
+		final int dot = fileName.lastIndexOf('.');
+		final String stem = dot > 0 ? fileName.substring(0, dot) : fileName;
+		final String ext = dot > 0 ? fileName.substring(dot) : "";
+		final long hash = Shard.hash(source);
+		for (int attempt = 0; ; attempt++) {
+			// a clash of the hashed names too is near impossible but still mustn't overwrite anything
+			final String suffix = String.format(Locale.ROOT, "%08x", (int) (hash ^ (hash >>> 32)) + attempt);
+			final Path renamed = output.resolveSibling(stem + " (" + suffix + ")" + ext);
+			final String other = owners.putIfAbsent(key(relative(renamed)), source);
+			if (other == null) {
+				log.warn("Output {} of {} collides with {}, saved as {}", output, source, holder, renamed.getFileName());
+				collisions.add(new String[]{source, relative(renamed), holder});
+				return renamed;
+			} else if (other.equals(source)) {
+				// renamed by an earlier run
+				return renamed;
+			}
+		}
+	}
+
+	public int size() {
+
+		return collisions.size();
+	}
+
+	/**
+	 * claim the names given out by an earlier run so the sources it converted keep their outputs.
+	 */
+	public void load(Path file) throws IOException {
+
+		if (!Files.exists(file)) {
+			return;
+		}
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (!line.isBlank() && !line.startsWith(COMMENT)) {
+				final String[] c = line.split(TAB, 3);
+				if (c.length == 3) {
+					owners.put(key(c[1]), c[0]);
+					owners.putIfAbsent(key(original(c[1])), c[2]);
+					collisions.add(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * save the collisions if there have been new ones since the last save, at a journal checkpoint so the renamed
+	 * sources the journal lists keep their names when the run is resumed.
+	 */
+	public synchronized void update(Path file) throws IOException {
+
+		if (collisions.size() != saved) {
+			save(file);
+		}
+	}
+
+	/**
+	 * save the collisions sorted by source path, the file is removed when there are none. the file is replaced in one
+	 * step so a crash leaves either the old or the new collisions.
+	 */
+	public synchronized void save(Path file) throws IOException {
+
+		final List<String[]> snapshot = new ArrayList<>(collisions);
+		if (snapshot.isEmpty()) {
+			Files.deleteIfExists(file);
+			saved = 0;
+			return;
+		}
+
+		final Map<String, String[]> bySource = new TreeMap<>();
+		for (String[] c : snapshot) {
+			bySource.put(c[0], c);
+		}
+
+		Files.createDirectories(file.getParent());
+		final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			writer.write(COMMENT + " source" + TAB + "output" + TAB + "collides with");
+			writer.newLine();
+			for (String[] c : bySource.values()) {
+				writer.write(String.join(TAB, c));
+				writer.newLine();
+			}
+		}
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+			channel.force(false);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		saved = snapshot.size();
+	}
+
+	private String relative(Path output) {
+
+		return ConversionRun.relativePath(outputRoot, output);
+	}
+
+	/**
+	 * the name asked for before the suffix was added
+	 */
+	private static String original(String renamed) {
+
+		return renamed.replaceFirst(" \\([0-9a-f]{8}\\)(?=[^/]*$)", "");
+	}
+}
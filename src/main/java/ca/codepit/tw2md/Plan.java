@@ -0,0 +1,202 @@
+package ca.codepit.tw2md;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * what a conversion would do, gathered by --plan from the directory walk and the tiddler headers without writing
+ * anything.
+ * <p>
+ * the time estimate comes from rendering a small sample of the tiddlers, it covers the CPU work of a conversion but not
+ * the time spent writing to disk.
+ *
+ * @author evan
+ */
+public class Plan {
+
+	private static final double MB = 1024 * 1024;
+
+	private static final String NO_TYPE = "(none)";
+
+	private final Map<String, LongAdder> types = new ConcurrentHashMap<>();
+
+	private final Map<String, LongAdder> folders = new ConcurrentHashMap<>();
+
+	private final LongAdder userTiddlers = new LongAdder();
+
+	private final LongAdder systemTiddlers = new LongAdder();
+
+	private final LongAdder skippedTiddlers = new LongAdder();
+
+	private final LongAdder unreadable = new LongAdder();
+
+	private final LongAdder textTiddlers = new LongAdder();
+
+	private final LongAdder textBytes = new LongAdder();
+
+	private final LongAdder binaryTiddlers = new LongAdder();
+
+	private final LongAdder binaryBytes = new LongAdder();
+
+	private final LongAdder assetsToCopy = new LongAdder();
+
+	private final LongAdder assetBytesToCopy = new LongAdder();
+
+	private final LongAdder assetsPresent = new LongAdder();
+
+	private final LongAdder assetBytesPresent = new LongAdder();
+
+	private int sampleCount;
+
+	private long sampleInputBytes;
+
+	private long sampleOutputBytes;
+
+	private long sampleNanos;
+
+	/**
+	 * a tiddler found by the scan, system tiddlers are skipped unless they are included.
+	 *
+	 * @return true if the tiddler will be converted
+	 */
+	public boolean tiddler(String type, boolean system, boolean included) {
+
+		types.computeIfAbsent(type == null ? NO_TYPE : type, t -> new LongAdder()).increment();
+		(system ? systemTiddlers : userTiddlers).increment();
+		if (!included) {
+			skippedTiddlers.increment();
+		}
+		return included;
+	}
+
+	/**
+	 * a source file that couldn't be read and would fail to convert
+	 */
+	public void unreadable() {
+
+		unreadable.increment();
+	}
+
+	/**
+	 * @param folder     the output folder relative to the output directory
+	 * @param inputBytes size of the tiddler text
+	 */
+	public void text(String folder, long inputBytes) {
+
+		textTiddlers.increment();
+		textBytes.add(inputBytes);
+		folder(folder);
+	}
+
+	/**
+	 * @param payloadBytes size of the decoded content
+	 */
+	public void binary(String folder, long payloadBytes) {
+
+		binaryTiddlers.increment();
+		binaryBytes.add(payloadBytes);
+		folder(folder);
+	}
+
+	/**
+	 * @param present the output already exists and won't be copied again
+	 */
+	public void asset(String folder, long bytes, boolean present) {
+
+		if (present) {
+			assetsPresent.increment();
+			assetBytesPresent.add(bytes);
+		} else {
+			assetsToCopy.increment();
+			assetBytesToCopy.add(bytes);
+			folder(folder);
+		}
+	}
+
+	private void folder(String folder) {
+
+		folders.computeIfAbsent(folder.isEmpty() ? "." : folder, f -> new LongAdder()).increment();
+	}
+
+	/**
+	 * a tiddler rendered to calibrate the time estimate
+	 */
+	public synchronized void sample(long inputBytes, long outputBytes, long nanos) {
+
+		sampleCount++;
+		sampleInputBytes += inputBytes;
+		sampleOutputBytes += outputBytes;
+		sampleNanos += nanos;
+	}
+
+	/**
+	 * markdown is usually a little larger than the tiddler text, the sample gives the ratio for this wiki
+	 */
+	synchronized long estimatedMarkdownBytes() {
+
+		return sampleInputBytes == 0 ? textBytes.sum() : Math.round(textBytes.sum() * (double) sampleOutputBytes / sampleInputBytes);
+	}
+
+	long estimatedOutputBytes() {
+
+		return estimatedMarkdownBytes() + binaryBytes.sum() + assetBytesToCopy.sum();
+	}
+
+	/**
+	 * @return the estimated time to render the text tiddlers on the given number of threads, -1 if nothing was sampled
+	 */
+	synchronized long estimatedNanos(int threads) {
+
+		if (sampleCount == 0) {
+			return textTiddlers.sum() == 0 ? 0 : -1;
+		}
+		// per byte when there is text to go on, per tiddler when the sample was all empty tiddlers
+		final double nanos = sampleInputBytes > 0 ? (double) sampleNanos / sampleInputBytes * textBytes.sum()
+						: (double) sampleNanos / sampleCount * textTiddlers.sum();
+		return Math.round(nanos / Math.max(threads, 1));
+	}
+
+	public void print(PrintStream out, int threads) {
+
+		out.println(String.format(Locale.ROOT, "Tiddlers:          %,d (%,d user, %,d system, %,d skipped)",
+						userTiddlers.sum() + systemTiddlers.sum(), userTiddlers.sum(), systemTiddlers.sum(), skippedTiddlers.sum()));
+		out.println("Types:");
+		print(out, types);
+		out.println(String.format(Locale.ROOT, "Text tiddlers:     %,d, %s -> ~%s markdown", textTiddlers.sum(),
+						mb(textBytes.sum()), mb(estimatedMarkdownBytes())));
+		out.println(String.format(Locale.ROOT, "Binary tiddlers:   %,d, %s decoded", binaryTiddlers.sum(), mb(binaryBytes.sum())));
+		out.println(String.format(Locale.ROOT, "Assets:            %,d to copy (%s), %,d already present (%s)",
+						assetsToCopy.sum(), mb(assetBytesToCopy.sum()), assetsPresent.sum(), mb(assetBytesPresent.sum())));
+		if (unreadable.sum() > 0) {
+			out.println(String.format(Locale.ROOT, "Unreadable:        %,d files would fail to convert", unreadable.sum()));
+		}
+		out.println("Folders:");
+		print(out, folders);
+		out.println(String.format(Locale.ROOT, "Estimated output:  ~%s", mb(estimatedOutputBytes())));
+
+		final long nanos = estimatedNanos(threads);
+		final long seconds = nanos < 0 ? -1 : (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+		synchronized (this) {
+			out.println(String.format(Locale.ROOT, "Estimated time:    ~%s on %d threads, from rendering %d sample tiddlers" +
+							" in %d ms (disk writes not included)", Progress.formatDuration(seconds), threads, sampleCount,
+							TimeUnit.NANOSECONDS.toMillis(sampleNanos)));
+		}
+	}
+
+	private static void print(PrintStream out, Map<String, LongAdder> counts) {
+
+		for (Map.Entry<String, LongAdder> e : new TreeMap<>(counts).entrySet()) {
+			out.println(String.format(Locale.ROOT, "  %-40s %,10d", e.getKey(), e.getValue().sum()));
+		}
+	}
+
+	private static String mb(long bytes) {
+
+		return String.format(Locale.ROOT, "%.1f MB", bytes / MB);
+	}
+}
@@ -0,0 +1,196 @@
+package ca.codepit.tw2md;
+
+import ca.codepit.tw2md.Main.PROGRESS_MODE;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * rate limited progress reporting, replaces printing a dot for every file processed.
+ * <p>
+ * counters are atomic so the reporter can be shared by conversion threads, only the thread that wins the race for the
+ * next report slot does any printing. reports go to stderr, the status line would otherwise be broken up by the log
+ * lines on stdout and end up in a redirected log.
+ *
+ * @author evan
+ */
+public class Progress {
+
+	private static final long TEXT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private static final long JSON_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final double MB = 1024 * 1024;
+
+	private final PROGRESS_MODE mode;
+
+	private final Progress parent;
+
+	private final PrintStream out;
+
+	private final long intervalNanos;
+
+	private final long startNanos = System.nanoTime();
+
+	private final AtomicLong lastReportNanos = new AtomicLong(startNanos);
+
+	private final AtomicLong total = new AtomicLong();
+
+	private final AtomicLong converted = new AtomicLong();
+
+	private final AtomicLong skipped = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	public Progress(PROGRESS_MODE mode) {
+
+		this(mode, System.err);
+	}
+
+	Progress(PROGRESS_MODE mode, PrintStream out) {
+
+		this.mode = mode;
+		this.parent = null;
+		this.out = out;
+		this.intervalNanos = mode == PROGRESS_MODE.JSON ? JSON_INTERVAL_NANOS : TEXT_INTERVAL_NANOS;
+	}
+
+	/**
+	 * a silent reporter that keeps its own counts and forwards them to the parent, used to track one wiki of a batch.
+	 */
+	public Progress(Progress parent) {
+
+		this.mode = PROGRESS_MODE.NONE;
+		this.parent = parent;
+		this.out = null;
+		this.intervalNanos = TEXT_INTERVAL_NANOS;
+	}
+
+	/**
+	 * add to the number of files expected, used to calculate the ETA.
+	 */
+	public void addTotal(long files) {
+
+		total.addAndGet(files);
+		if (parent != null) {
+			parent.addTotal(files);
+		}
+	}
+
+	public void converted(long inputBytes) {
+
+		converted.incrementAndGet();
+		bytes.addAndGet(inputBytes);
+		if (parent != null) {
+			parent.converted(inputBytes);
+		}
+		tick();
+	}
+
+	public void skipped() {
+
+		skipped.incrementAndGet();
+		if (parent != null) {
+			parent.skipped();
+		}
+		tick();
+	}
+
+	public void failed() {
+
+		failed.incrementAndGet();
+		if (parent != null) {
+			parent.failed();
+		}
+		tick();
+	}
+
+	public long getConverted() {
+
+		return converted.get();
+	}
+
+	public long getSkipped() {
+
+		return skipped.get();
+	}
+
+	public long getFailed() {
+
+		return failed.get();
+	}
+
+	public long getBytes() {
+
+		return bytes.get();
+	}
+
+	public long getElapsedMillis() {
+
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * print the final report, always printed regardless of the rate limit.
+	 */
+	public void done() {
+
+		report(System.nanoTime(), true);
+	}
+
+	private void tick() {
+
+		if (mode == PROGRESS_MODE.NONE) {
+			return;
+		}
+
+		final long now = System.nanoTime();
+		final long last = lastReportNanos.get();
+		if (now - last >= intervalNanos && lastReportNanos.compareAndSet(last, now)) {
+			report(now, false);
+		}
+	}
+
+	private synchronized void report(long now, boolean done) {
+
+		if (mode == PROGRESS_MODE.NONE) {
+			return;
+		}
+
+		final double seconds = Math.max(now - startNanos, 1) / 1e9;
+		final long processed = converted.get() + skipped.get() + failed.get();
+		final double filesPerSec = processed / seconds;
+		final double mbPerSec = bytes.get() / MB / seconds;
+		final long remaining = Math.max(total.get() - processed, 0);
+		final long eta = filesPerSec > 0 ? Math.round(remaining / filesPerSec) : -1;
+
+		if (mode == PROGRESS_MODE.JSON) {
+			out.println(String.format(Locale.ROOT,
+							"{\"event\":\"%s\",\"elapsed\":%.3f,\"total\":%d,\"processed\":%d,\"converted\":%d,\"skipped\":%d," +
+											"\"failed\":%d,\"bytes\":%d,\"filesPerSec\":%.1f,\"mbPerSec\":%.2f,\"etaSeconds\":%d}",
+							done ? "done" : "progress", seconds, total.get(), processed, converted.get(), skipped.get(),
+							failed.get(), bytes.get(), filesPerSec, mbPerSec, done ? 0 : eta));
+		} else {
+			out.print(String.format(Locale.ROOT,
+							"\r%d/%d files, %d converted, %d skipped, %d failed | %.1f files/s, %.2f MB/s | ETA %s ",
+							processed, total.get(), converted.get(), skipped.get(), failed.get(), filesPerSec, mbPerSec,
+							done ? "-" : formatDuration(eta)));
+			if (done) {
+				out.println();
+			}
+		}
+		out.flush();
+	}
+
+	static String formatDuration(long seconds) {
+
+		if (seconds < 0) {
+			return "?";
+		}
+		return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+}
@@ -0,0 +1,127 @@
+package ca.codepit.tw2md;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a CPU time budget for rendering a single tiddler, a tiddler that runs over budget is saved as raw text instead.
+ * <p>
+ * regular expressions can't be interrupted so the text they match is wrapped in a {@link CharSequence} that checks the
+ * budget as the regex engine reads it.
+ *
+ * @author evan
+ */
+class RenderBudget {
+
+	/**
+	 * how many characters are read between checks of the thread CPU time
+	 */
+	private static final int CHECK_INTERVAL = 1 << 12;
+
+	static final RenderBudget UNLIMITED = new RenderBudget(0);
+
+	private final long limitNanos;
+
+	private final long startNanos;
+
+	private int reads;
+
+	/**
+	 * thrown when rendering runs over budget.
+	 */
+	static class ExceededException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		ExceededException(long limitMillis) {
+
+			super("Rendering exceeded the " + limitMillis + "ms CPU budget");
+		}
+	}
+
+	/**
+	 * thread CPU time is only looked up when a budget is actually in use.
+	 */
+	private static final class Clock {
+
+		private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+		private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+		private static long now() {
+
+			return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+		}
+	}
+
+	/**
+	 * @param limitMillis the budget, 0 or less is unlimited
+	 */
+	RenderBudget(long limitMillis) {
+
+		this.limitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(limitMillis, 0));
+		this.startNanos = limitNanos > 0 ? Clock.now() : 0;
+	}
+
+	boolean isLimited() {
+
+		return limitNanos > 0;
+	}
+
+	/**
+	 * @throws ExceededException when the budget has been used up
+	 */
+	void check() {
+
+		if (isLimited() && Clock.now() - startNanos > limitNanos) {
+			throw new ExceededException(TimeUnit.NANOSECONDS.toMillis(limitNanos));
+		}
+	}
+
+	/**
+	 * wrap text that is about to be matched by a regex so the budget is checked while the regex runs.
+	 */
+	CharSequence guard(String s) {
+
+		return isLimited() ? new Guarded(s) : s;
+	}
+
+	private final class Guarded implements CharSequence {
+
+		private final String s;
+
+		private Guarded(String s) {
+
+			this.s = s;
+		}
+
+		@Override
+		public int length() {
+
+			return s.length();
+		}
+
+		@Override
+		public char charAt(int index) {
+
+			if (++reads == CHECK_INTERVAL) {
+				reads = 0;
+				check();
+			}
+			return s.charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+
+			return s.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+
+			return s;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package ca.codepit.tw2md;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * debug tracing for the render path, which runs for every fragment, row and tag of every tiddler.
+ * <p>
+ * the trace level is read once when rendering starts and kept in a constant, so call sites written as
+ * <pre>
+ * if (RenderTrace.ENABLED) {
+ *   RenderTrace.trace("Cells: {} -> {}", row.content, cells);
+ * }
+ * </pre>
+ * are removed by the JIT when tracing is off, no arguments are boxed and no messages built. turn it on with
+ * {@code -Dtw2md.render.level=DEBUG} (or a {@code ca.codepit.tw2md.render} logger in the logback configuration).
+ *
+ * @author evan
+ */
+final class RenderTrace {
+
+	private static final Logger log = LoggerFactory.getLogger("ca.codepit.tw2md.render");
+
+	static final boolean ENABLED = log.isDebugEnabled();
+
+	private RenderTrace() {
+
+	}
+
+	static void trace(String format, Object arg) {
+
+		log.debug(format, arg);
+	}
+
+	static void trace(String format, Object arg1, Object arg2) {
+
+		log.debug(format, arg1, arg2);
+	}
+
+	static void trace(String format, Object... args) {
+
+		log.debug(format, args);
+	}
+}
@@ -0,0 +1,462 @@
+package ca.codepit.tw2md;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static ca.codepit.tw2md.Main.*;
+import static picocli.CommandLine.*;
+
+/**
+ * a long running conversion server, so tools converting many small wikis only pay for JVM startup and JIT warmup once.
+ * <pre>
+ * POST /tiddler   a .tid file or a JSON tiddler, returns the markdown
+ * POST /wiki      a zip or tar archive of a wiki or a JSON export, returns a zip of the vault
+ * GET  /health    returns ok
+ * </pre>
+ * conversion options are given in the query string using the long option names without the leading --, e.g.
+ * <code>/tiddler?add-titles&amp;map-tag=Journal=Daily</code>. only the options that change how tiddlers are rendered and
+ * where they are saved are accepted, paths must stay inside the vault.
+ * <p>
+ * tiddlers are rendered by a Main kept for each set of options, so requests with the same options share its warmed up
+ * caches. wikis are converted on one worker pool shared by all requests.
+ *
+ * @author evan
+ */
+@Command(name = "serve",
+				mixinStandardHelpOptions = true,
+				description = "Convert tiddlers and wikis posted to a local HTTP server.")
+public class Serve implements Callable<Integer> {
+
+	private static final Logger log = LoggerFactory.getLogger(Serve.class);
+
+	private static final String MARKDOWN_TYPE = "text/markdown; charset=utf-8";
+	private static final String TEXT_TYPE = "text/plain; charset=utf-8";
+	private static final String ZIP_TYPE = "application/zip";
+	private static final String FAILED_HEADER = "X-Tw2md-Failed";
+	private static final String STATE_DIR = ".tw2md";
+
+	/**
+	 * options a request can set, the rest either don't apply to a single request or reach outside the vault
+	 */
+	private static final Set<String> REQUEST_OPTIONS = new HashSet<>(Arrays.asList(
+					"add-titles", "add-titles-tag", "assets-path", "detect-checklist-headers", "detect-checklists",
+					"illegal-tag-character", "include-system-tiddlers", "inline-transclusions", "map-tag",
+					"numeric-tag-prefix", "render-budget", "render-mode", "space-tag-character", "tag-case-conversion",
+					"tag-index", "tiddlywiki-assets-path"));
+
+	/**
+	 * options whose value is a path in the vault or the wiki
+	 */
+	private static final Set<String> PATH_OPTIONS = new HashSet<>(Arrays.asList(
+					"assets-path", "tag-index", "tiddlywiki-assets-path"));
+
+	/**
+	 * options whose value is a key and a path in the vault, key=path
+	 */
+	private static final Set<String> MAP_OPTIONS = Collections.singleton("map-tag");
+
+	private static final int MAX_CACHED_OPTIONS = 16;
+
+	@Option(names = {"--port"}, defaultValue = "8080", description = "Port to listen on, 0 picks a free port" +
+					" (Default: ${DEFAULT-VALUE}).")
+	protected int port;
+
+	@Option(names = {"--bind"}, defaultValue = "127.0.0.1", description = "Address to listen on" +
+					" (Default: ${DEFAULT-VALUE}).")
+	protected String bind;
+
+	@Option(names = {"--workers"}, defaultValue = "4", description = "Number of requests handled at the same time" +
+					" (Default: ${DEFAULT-VALUE}).")
+	protected int workers;
+
+	@Option(names = {"--threads"}, description = "Number of worker threads shared by the wiki conversions" +
+					" (Default: number of processors).")
+	protected int threads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = {"--max-request-mb"}, defaultValue = "64", description = "Largest request body accepted, in MB" +
+					" (Default: ${DEFAULT-VALUE}).")
+	protected long maxRequestMb;
+
+	@Option(names = {"--memory-budget"}, paramLabel = "<MB>", description = "Memory for the tiddlers being converted at" +
+					" once, shared by the wiki conversions (Default: half the maximum heap).")
+	protected long memoryBudgetMb;
+
+	private HttpServer server;
+
+	private ExecutorService handlers;
+
+	private ForkJoinPool pool;
+
+	/**
+	 * shared by the wikis being converted
+	 */
+	private MemoryBudget memoryBudget;
+
+	/**
+	 * options -> the Main rendering tiddlers with them, least recently used dropped first, guarded by itself
+	 */
+	private final Map<List<String>, Main> renderers = new LinkedHashMap<>(MAX_CACHED_OPTIONS, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<List<String>, Main> eldest) {
+
+			return size() > MAX_CACHED_OPTIONS;
+		}
+	};
+
+	/**
+	 * a request that can't be handled, sent back as its status and message
+	 */
+	static class RequestException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		RequestException(int status, String message) {
+
+			super(message);
+			this.status = status;
+		}
+
+		int getStatus() {
+
+			return status;
+		}
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		start();
+		System.out.println("Listening on http://" + bind + ":" + getPort());
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+		Thread.currentThread().join();
+		return 0;
+	}
+
+	void start() throws IOException {
+
+		pool = new ForkJoinPool(threads);
+		memoryBudget = new MemoryBudget(memoryBudgetMb);
+		handlers = Executors.newFixedThreadPool(Math.max(1, workers));
+		server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+		server.setExecutor(handlers);
+		server.createContext("/tiddler", exchange -> handle(exchange, this::convertTiddler));
+		server.createContext("/wiki", exchange -> handle(exchange, this::convertWiki));
+		server.createContext("/health", exchange -> handle(exchange, e -> send(e, 200, TEXT_TYPE, "ok\n".getBytes(StandardCharsets.UTF_8))));
+		server.start();
+	}
+
+	void stop() {
+
+		if (server != null) {
+			server.stop(0);
+			handlers.shutdown();
+			pool.shutdown();
+		}
+	}
+
+	int getPort() {
+
+		return server.getAddress().getPort();
+	}
+
+	private interface Handler {
+
+		void handle(HttpExchange exchange) throws IOException, RequestException;
+	}
+
+	private void handle(HttpExchange exchange, Handler handler) {
+
+		try {
+			try {
+				handler.handle(exchange);
+			} catch (RequestException e) {
+				log.debug("{} {}: {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e.status, e.getMessage());
+				discardBody(exchange);
+				send(exchange, e.status, TEXT_TYPE, (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch (Exception e) {
+				log.error("{} {} failed, {}", exchange.getRequestMethod(), exchange.getRequestURI(), e.getMessage(), e);
+				send(exchange, 500, TEXT_TYPE, ("Conversion failed: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (IOException e) {
+			// the client went away, or the response had already been started
+			log.debug("Failed to respond to {}, {}", exchange.getRequestURI(), e.getMessage());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * a .tid file, a JSON tiddler object or an array holding one tiddler
+	 */
+	private void convertTiddler(HttpExchange exchange) throws IOException, RequestException {
+
+		requirePost(exchange);
+		final Main main = renderer(options(exchange));
+		final String text = new String(readBody(exchange), StandardCharsets.UTF_8);
+
+		final Tiddler tiddler;
+		final String trimmed = text.strip();
+		if (trimmed.startsWith("{") || trimmed.startsWith("[")) {
+			try (JsonTiddlerReader json = new JsonTiddlerReader(new StringReader(trimmed.startsWith("{") ? "[" + trimmed + "]" : trimmed))) {
+				final Map<String, String> fields = json.next();
+				if (fields == null || json.next() != null) {
+					throw new RequestException(400, "Expected a single JSON tiddler, post exports to /wiki");
+				}
+				tiddler = jsonTiddler(fields);
+			}
+		} else {
+			try {
+				tiddler = main.parseTiddler(text.lines().collect(Collectors.toList()), Paths.get("request.tid"));
+			} catch (IOException e) {
+				throw new RequestException(400, e.getMessage());
+			}
+		}
+
+		final String title = tiddler.getHeader(Tiddler.TITLE);
+		if (title == null) {
+			throw new RequestException(400, "The tiddler has no title");
+		} else if (!TIDDLYWIKI_TYPE.equals(tiddler.getHeader(Tiddler.TYPE))) {
+			throw new RequestException(415, "Only " + TIDDLYWIKI_TYPE + " tiddlers can be converted to markdown");
+		}
+		final String md = main.toMarkdown(tiddler, tiddlerFileName(title));
+		send(exchange, 200, MARKDOWN_TYPE, md.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * an archive or JSON export is saved to a temporary file, converted to a temporary vault and sent back as a zip
+	 */
+	private void convertWiki(HttpExchange exchange) throws IOException, RequestException {
+
+		requirePost(exchange);
+		final List<String> args = options(exchange);
+		final Path work = Files.createTempDirectory("tw2md-serve-");
+		try {
+			final Path source = work.resolve("wiki");
+			final Path vault = work.resolve("vault");
+			try (OutputStream out = Files.newOutputStream(source)) {
+				copyBody(exchange, out);
+			}
+
+			args.add(source.toString());
+			args.add(vault.toString());
+			final Main main = new Main();
+			parse(main, args);
+			main.setMemoryBudget(memoryBudget);
+			final Progress progress = new Progress(PROGRESS_MODE.NONE);
+			try {
+				main.convert(pool, progress);
+			} catch (ParameterException e) {
+				throw new RequestException(400, e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause().getMessage(), e.getCause());
+			}
+
+			exchange.getResponseHeaders().set(FAILED_HEADER, Long.toString(progress.getFailed()));
+			exchange.getResponseHeaders().set("Content-Type", ZIP_TYPE);
+			exchange.sendResponseHeaders(200, 0);
+			try (ZipOutputStream zip = new ZipOutputStream(exchange.getResponseBody())) {
+				zipVault(vault, zip);
+			}
+		} finally {
+			deleteTree(work);
+		}
+	}
+
+	private static void zipVault(Path vault, ZipOutputStream zip) throws IOException {
+
+		if (!Files.isDirectory(vault)) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(vault)) {
+			for (Path p : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+				final String name = ConversionRun.relativePath(vault, p);
+				if (name.startsWith(STATE_DIR + "/")) {
+					continue;
+				}
+				final ZipEntry entry = new ZipEntry(name);
+				entry.setLastModifiedTime(Files.getLastModifiedTime(p));
+				zip.putNextEntry(entry);
+				Files.copy(p, zip);
+				zip.closeEntry();
+			}
+		}
+	}
+
+	private static void deleteTree(Path root) {
+
+		try (Stream<Path> files = Files.walk(root)) {
+			for (Path p : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.deleteIfExists(p);
+			}
+		} catch (IOException e) {
+			log.warn("Failed to delete {}, {}", root, e.getMessage());
+		}
+	}
+
+	/**
+	 * the Main for a set of options, created the first time they are used
+	 */
+	private Main renderer(List<String> args) throws RequestException {
+
+		synchronized (renderers) {
+			Main main = renderers.get(args);
+			if (main == null) {
+				main = new Main();
+				parse(main, args);
+				renderers.put(new ArrayList<>(args), main);
+			}
+			return main;
+		}
+	}
+
+	private static void parse(Main main, List<String> args) throws RequestException {
+
+		try {
+			new CommandLine(main).parseArgs(args.toArray(new String[0]));
+		} catch (ParameterException e) {
+			throw new RequestException(400, e.getMessage());
+		}
+	}
+
+	/**
+	 * the query string as command line arguments, a name without a value is a flag
+	 */
+	static List<String> options(HttpExchange exchange) throws RequestException {
+
+		return options(exchange.getRequestURI().getRawQuery());
+	}
+
+	static List<String> options(String query) throws RequestException {
+
+		final List<String> args = new ArrayList<>();
+		if (query == null || query.isEmpty()) {
+			return args;
+		}
+		for (String param : query.split("&")) {
+			if (param.isEmpty()) {
+				continue;
+			}
+			final int eq = param.indexOf('=');
+			final String name = URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), StandardCharsets.UTF_8);
+			if (!REQUEST_OPTIONS.contains(name)) {
+				throw new RequestException(400, "Option not allowed: " + name);
+			}
+			if (eq < 0) {
+				args.add("--" + name);
+				continue;
+			}
+			final String value = URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8);
+			if (MAP_OPTIONS.contains(name)) {
+				// tag=folder
+				requireRelative(name, value.substring(value.indexOf('=') + 1));
+			} else if (PATH_OPTIONS.contains(name)) {
+				requireRelative(name, value);
+			}
+			args.add("--" + name + "=" + value);
+		}
+		return args;
+	}
+
+	private static void requireRelative(String name, String path) throws RequestException {
+
+		final Path p = Paths.get(path).normalize();
+		if (p.isAbsolute() || p.startsWith("..") || path.startsWith("/") || path.startsWith("\\")) {
+			throw new RequestException(400, "Option " + name + " must be a path inside the vault: " + path);
+		}
+	}
+
+	private static void requirePost(HttpExchange exchange) throws RequestException {
+
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			throw new RequestException(405, "Use POST");
+		}
+	}
+
+	private byte[] readBody(HttpExchange exchange) throws IOException, RequestException {
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copyBody(exchange, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * copy the request body, a body over the size limit is refused before or while it is read
+	 */
+	private void copyBody(HttpExchange exchange, OutputStream out) throws IOException, RequestException {
+
+		final long limit = maxRequestMb * 1024 * 1024;
+		final String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (length != null && contentLength(length) > limit) {
+			throw new RequestException(413, "Request is larger than " + maxRequestMb + "MB");
+		}
+
+		// the exchange closes the stream
+		final InputStream in = exchange.getRequestBody();
+		final byte[] buffer = new byte[1 << 16];
+		long total = 0;
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+			total += n;
+			if (total > limit) {
+				throw new RequestException(413, "Request is larger than " + maxRequestMb + "MB");
+			}
+			out.write(buffer, 0, n);
+		}
+	}
+
+	static long contentLength(String header) throws RequestException {
+
+		try {
+			return Long.parseLong(header.trim());
+		} catch (NumberFormatException e) {
+			throw new RequestException(400, "Malformed Content-Length: " + header);
+		}
+	}
+
+	/**
+	 * read what is left of a refused request so the client, which is still sending, gets the response instead of a
+	 * dropped connection. no more than the size limit is read, a client sending more than that is cut off.
+	 */
+	private void discardBody(HttpExchange exchange) throws IOException {
+
+		final InputStream in = exchange.getRequestBody();
+		final byte[] buffer = new byte[1 << 16];
+		long remaining = maxRequestMb * 1024 * 1024;
+		for (int n = in.read(buffer); n >= 0 && remaining > 0; n = in.read(buffer)) {
+			remaining -= n;
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package ca.codepit.tw2md;
+
+import java.nio.charset.StandardCharsets;
+
+import static picocli.CommandLine.*;
+
+/**
+ * one slice of a wiki when a conversion is split across processes, a file belongs to exactly one shard based on a
+ * stable hash of its path relative to the wiki directory so every process agrees without talking to the others.
+ *
+ * @author evan
+ */
+public class Shard {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int index;
+
+	private final int count;
+
+	/**
+	 * @param index 1 based shard number
+	 * @param count total number of shards
+	 */
+	public Shard(int index, int count) {
+
+		if (count < 1 || index < 1 || index > count) {
+			throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+		}
+		this.index = index;
+		this.count = count;
+	}
+
+	public int getIndex() {
+
+		return index;
+	}
+
+	public int getCount() {
+
+		return count;
+	}
+
+	/**
+	 * @param relativePath path relative to the wiki directory using / as the separator
+	 */
+	public boolean owns(String relativePath) {
+
+		return shardOf(relativePath, count) == index;
+	}
+
+	/**
+	 * the 1 based shard a path belongs to.
+	 */
+	public static int shardOf(String relativePath, int count) {
+
+		return (int) Long.remainderUnsigned(hash(relativePath), count) + 1;
+	}
+
+	/**
+	 * 64 bit FNV-1a of the UTF-8 bytes, unlike String.hashCode it spreads similar names well.
+	 */
+	static long hash(String s) {
+
+		long h = FNV_OFFSET_BASIS;
+		for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * used to name the files each shard leaves in the output directory, e.g. 3-of-16
+	 */
+	public String getName() {
+
+		return index + "-of-" + count;
+	}
+
+	@Override
+	public String toString() {
+
+		return index + "/" + count;
+	}
+
+	/**
+	 * picocli converter for i/N
+	 */
+	static class Converter implements ITypeConverter<Shard> {
+
+		@Override
+		public Shard convert(String value) {
+
+			final String[] split = value.split("/", 2);
+			try {
+				return new Shard(Integer.parseInt(split[0].trim()), Integer.parseInt(split[1].trim()));
+			} catch (RuntimeException e) {
+				throw new TypeConversionException("'" + value + "' is not a shard, expected i/N with 1 <= i <= N");
+			}
+		}
+	}
+}
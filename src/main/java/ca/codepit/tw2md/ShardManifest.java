@@ -0,0 +1,214 @@
+package ca.codepit.tw2md;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * the record of what a shard did with each of its source files, saved as tab separated lines of source path, status and
+ * output path (relative to the wiki and output directories).
+ * <p>
+ * new lines are appended at every journal checkpoint so a resumed or retried shard keeps the record of the run it
+ * carries on, a later line for a source replaces an earlier one. once every shard has finished {@link #verify} checks
+ * the manifests against the wiki and merges them.
+ *
+ * @author evan
+ */
+public class ShardManifest implements Flushable {
+
+	static final String CONVERTED = "CONVERTED";
+	static final String SKIPPED = "SKIPPED";
+	static final String FAILED = "FAILED";
+
+	private static final String COMMENT = "#";
+	private static final String TAB = "\t";
+	private static final String NEWLINE = "\n";
+	private static final String NO_OUTPUT = "-";
+
+	private final Path file;
+
+	/**
+	 * source -> source, status and output
+	 */
+	private final Map<String, String[]> records = new ConcurrentHashMap<>();
+
+	/**
+	 * lines not yet appended to the manifest
+	 */
+	private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+
+	public ShardManifest(Path file) {
+
+		this.file = file;
+	}
+
+	/**
+	 * start the manifest of a run, a resumed or retried run keeps the record of the run it carries on
+	 */
+	public void start(boolean resume) throws IOException {
+
+		if (resume && Files.exists(file)) {
+			read(file).forEach(r -> records.put(r[0], r));
+		}
+		save();
+	}
+
+	public void record(String source, String status, String output) {
+
+		final String[] r = {source, status, output == null ? NO_OUTPUT : output};
+		records.put(source, r);
+		pending.add(String.join(TAB, r));
+	}
+
+	/**
+	 * append the new lines to the manifest
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+
+		final StringBuilder sb = new StringBuilder();
+		for (String line = pending.poll(); line != null; line = pending.poll()) {
+			sb.append(line).append(NEWLINE);
+		}
+		if (sb.length() == 0) {
+			return;
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * write the manifest sorted, replacing the lines appended while the shard ran
+	 */
+	public synchronized void save() throws IOException {
+
+		// everything pending is in the records
+		pending.clear();
+		write(file, new ArrayList<>(records.values()));
+	}
+
+	private static void write(Path file, List<String[]> lines) throws IOException {
+
+		lines.sort(Comparator.comparing(r -> r[0]));
+		Files.createDirectories(file.getParent());
+		final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			writer.write(COMMENT + " source" + TAB + "status" + TAB + "output");
+			writer.write(NEWLINE);
+			for (String[] r : lines) {
+				writer.write(String.join(TAB, r));
+				writer.write(NEWLINE);
+			}
+		}
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+			channel.force(false);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * the records of a manifest, the last for each source. a line cut short by a crash is left out, the file is read
+	 * leniently as it may have been cut in the middle of a character.
+	 */
+	private static Collection<String[]> read(Path file) throws IOException {
+
+		final String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		final List<String> lines = new ArrayList<>(Arrays.asList(text.split(NEWLINE, -1)));
+		// the part after the last newline, empty unless a line was cut short
+		lines.remove(lines.size() - 1);
+		final Map<String, String[]> bySource = new LinkedHashMap<>();
+		for (String line : lines) {
+			if (!line.isBlank() && !line.startsWith(COMMENT)) {
+				final String[] r = line.split(TAB, 3);
+				if (r.length == 3) {
+					bySource.put(r[0], r);
+				}
+			}
+		}
+		return bySource.values();
+	}
+
+	/**
+	 * check that every source file was handled by exactly one shard and that every converted file has its own output,
+	 * then merge the shard manifests into one.
+	 *
+	 * @param sources  every source file in the wiki, relative to the wiki directory
+	 * @param stateDir the directory holding the shard manifests
+	 * @param count    number of shards
+	 * @param merged   file the merged manifest is written to
+	 * @return the problems found, empty if the shards are complete
+	 */
+	static List<String> verify(Collection<String> sources, Path stateDir, int count, Path outputRoot, Path merged)
+					throws IOException {
+
+		final List<String> problems = new ArrayList<>();
+		final Map<String, String[]> bySource = new HashMap<>();
+		final Map<String, String> byOutput = new HashMap<>();
+		final List<String[]> all = new ArrayList<>();
+
+		for (int i = 1; i <= count; i++) {
+			final Shard shard = new Shard(i, count);
+			final Path file = stateDir.resolve(fileName(shard));
+			if (!Files.exists(file)) {
+				problems.add("Shard " + shard + " has no manifest: " + file);
+				continue;
+			}
+			for (String[] r : read(file)) {
+				all.add(r);
+				if (bySource.put(r[0], r) != null) {
+					problems.add("Converted by more than one shard: " + r[0]);
+				}
+				if (!shard.owns(r[0])) {
+					problems.add("Converted by the wrong shard (" + shard + "): " + r[0]);
+				}
+				if (CONVERTED.equals(r[1])) {
+					// outputs differing only in case are the same file on a case insensitive file system
+					final String other = byOutput.put(OutputNames.key(r[2]), r[0]);
+					if (other != null) {
+						problems.add("Output " + r[2] + " written by both " + other + " and " + r[0]);
+					}
+					if (!Files.exists(outputRoot.resolve(r[2]))) {
+						problems.add("Output missing: " + r[2] + " (" + r[0] + ")");
+					}
+				}
+			}
+		}
+
+		final Set<String> expected = new HashSet<>(sources);
+		for (String source : expected) {
+			if (!bySource.containsKey(source)) {
+				problems.add("Not converted by any shard: " + source);
+			}
+		}
+		for (String source : bySource.keySet()) {
+			if (!expected.contains(source)) {
+				problems.add("Not in the wiki: " + source);
+			}
+		}
+
+		write(merged, all);
+		Collections.sort(problems);
+		return problems;
+	}
+
+	static String fileName(Shard shard) {
+
+		return "shard-" + shard.getName() + ".tsv";
+	}
+}
@@ -0,0 +1,70 @@
+package ca.codepit.tw2md;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * pairs assets with their .meta sidecar files in a single pass over a stream where either may come first, whichever
+ * arrives first waits in a hash table keyed on the asset path until the other turns up.
+ *
+ * @param <A> an asset waiting for its meta
+ * @author evan
+ */
+class SidecarJoin<A> {
+
+	static final String META_EXT = ".meta";
+
+	private final Map<String, Tiddler> metas = new HashMap<>();
+
+	private final Map<String, A> assets = new LinkedHashMap<>();
+
+	/**
+	 * the asset path a sidecar describes
+	 */
+	static String assetPath(String metaPath) {
+
+		return metaPath.substring(0, metaPath.length() - META_EXT.length());
+	}
+
+	/**
+	 * a sidecar has been read.
+	 *
+	 * @return the asset waiting for it, or null if the asset hasn't been seen yet
+	 */
+	synchronized A meta(String asset, Tiddler meta) {
+
+		final A waiting = assets.remove(asset);
+		if (waiting == null) {
+			metas.put(asset, meta);
+		}
+		return waiting;
+	}
+
+	/**
+	 * an asset has been read.
+	 *
+	 * @return its sidecar, or null if it hasn't been seen yet
+	 */
+	synchronized Tiddler asset(String asset) {
+
+		return metas.remove(asset);
+	}
+
+	/**
+	 * an asset without a sidecar waits for one to turn up.
+	 */
+	synchronized void await(String asset, A pending) {
+
+		assets.put(asset, pending);
+	}
+
+	/**
+	 * the assets that never found a sidecar
+	 */
+	synchronized Collection<A> unmatched() {
+
+		return assets.values();
+	}
+}
@@ -0,0 +1,301 @@
+package ca.codepit.tw2md;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * renders a TiddlyWiki table as a markdown table, a row at a time straight into the markdown being built.
+ * <p>
+ * each row is split into cells once, by a single scan that skips over the <code>|</code> in links and transclusions
+ * and the escaped <code>\|</code>.
+ * only the cells of the current row and the header are held so the memory used doesn't grow with the number of rows,
+ * the header is written when the table ends so it can be padded to the widest row. markdown tables are simpler than
+ * TiddlyWiki's so:
+ * <ul>
+ * <li>the first row is the header. a column is aligned (<code>|left |</code>, <code>| right|</code> or
+ * <code>| centre |</code>) only when all its cells are padded alike, otherwise it has the default alignment</li>
+ * <li>merged cells (<code>&gt;</code>, <code>&lt;</code> and <code>~</code>) are left empty</li>
+ * <li>a caption row (<code>|...|c</code>) is written as a line of text before the table, or after it if it comes after
+ * the first row</li>
+ * <li>class rows (<code>|...|k</code>) are dropped, header and footer rows (<code>|...|h</code>, <code>|...|f</code>)
+ * are ordinary rows after the first</li>
+ * </ul>
+ *
+ * @author evan
+ */
+final class TableRenderer {
+
+	private static final String MERGE_RIGHT = ">";
+	private static final String MERGE_LEFT = "<";
+	private static final String MERGE_UP = "~";
+
+	private static final char HEADER_ROW = 'h';
+	private static final char FOOTER_ROW = 'f';
+	private static final char CAPTION_ROW = 'c';
+	private static final char CLASS_ROW = 'k';
+
+	private static final String ROW_MARKERS = "" + HEADER_ROW + FOOTER_ROW + CAPTION_ROW + CLASS_ROW;
+
+	private final Function<String, String> renderCell;
+
+	private final StringBuilder out;
+
+	private final String nl;
+
+	/**
+	 * the widest row so far, the header is padded to it so no cells are dropped
+	 */
+	private int columns;
+
+	/**
+	 * the raw cells of the row being rendered
+	 */
+	private final List<String> cells = new ArrayList<>();
+
+	/**
+	 * the rendered cells of the row being rendered
+	 */
+	private final List<String> texts = new ArrayList<>();
+
+	/**
+	 * the rendered header cells, the alignment all the cells of each column agree on so far, and where in the output the
+	 * header goes
+	 */
+	private final List<String> headerTexts = new ArrayList<>();
+
+	private final List<String> alignments = new ArrayList<>();
+
+	private int headerStart;
+
+	private int rows;
+
+	private String caption;
+
+	private TableRenderer(Function<String, String> renderCell, StringBuilder out, String nl) {
+
+		this.renderCell = renderCell;
+		this.out = out;
+		this.nl = nl;
+	}
+
+	/**
+	 * @param lines      the table rows
+	 * @param renderCell renders the text of a cell
+	 * @param out        the rows are appended to this, separated but not followed by nl
+	 */
+	static void render(List<String> lines, Function<String, String> renderCell, StringBuilder out, String nl) {
+
+		final TableRenderer table = new TableRenderer(renderCell, out, nl);
+		for (String line : lines) {
+			table.row(new Row(line));
+		}
+		table.finish();
+	}
+
+	/**
+	 * a row's cells and its marker
+	 */
+	private static final class Row {
+
+		private final String content;
+
+		private final char marker;
+
+		private Row(String line) {
+
+			final String l = line.trim();
+			final int n = l.length();
+			if (n >= 3 && l.charAt(n - 2) == '|' && ROW_MARKERS.indexOf(l.charAt(n - 1)) >= 0) {
+				marker = l.charAt(n - 1);
+				content = l.substring(1, n - 2);
+			} else {
+				marker = 0;
+				content = n < 2 ? "" : l.substring(1, l.endsWith("|") ? n - 1 : n);
+			}
+		}
+	}
+
+	/**
+	 * split the content of a row on the | that aren't inside [[links]] or {{transclusions}} or escaped, \|.
+	 *
+	 * @param cells the cells are added to this
+	 * @return the number of cells
+	 */
+	static int split(String content, List<String> cells) {
+
+		final int n = content.length();
+		int count = 0;
+		int start = 0;
+		// once there is no closing ]] or }} after a point there is none after any later point either
+		boolean linkClose = true;
+		boolean transclusionClose = true;
+		for (int i = 0; i < n; i++) {
+			final char c = content.charAt(i);
+			if (c == '[' && linkClose && i + 1 < n && content.charAt(i + 1) == '[') {
+				final int close = content.indexOf("]]", i + 2);
+				if (close < 0) {
+					linkClose = false;
+				} else {
+					i = close + 1;
+				}
+			} else if (c == '{' && transclusionClose && i + 1 < n && content.charAt(i + 1) == '{') {
+				final int close = content.indexOf("}}", i + 2);
+				if (close < 0) {
+					transclusionClose = false;
+				} else {
+					i = close + 1;
+				}
+			} else if (c == '\\' && i + 1 < n && content.charAt(i + 1) == '|') {
+				// kept as it is, markdown escapes a | in a cell the same way
+				i++;
+			} else if (c == '|') {
+				cells.add(content.substring(start, i));
+				count++;
+				start = i + 1;
+			}
+		}
+		cells.add(content.substring(start));
+		return count + 1;
+	}
+
+	private void row(Row row) {
+
+		if (row.marker == CLASS_ROW) {
+			// CSS classes for the table, markdown has nothing to put them on
+			return;
+		} else if (row.marker == CAPTION_ROW) {
+			caption = renderCell.apply(row.content.trim());
+			if (rows == 0) {
+				out.append(caption).append(nl).append(nl);
+				caption = null;
+			}
+			return;
+		}
+
+		cells.clear();
+		split(row.content, cells);
+		if (RenderTrace.ENABLED) {
+			RenderTrace.trace("Cells: {} -> {}", row.content, cells);
+		}
+		columns = Math.max(columns, cells.size());
+		align(cells);
+
+		if (rows == 0) {
+			// written by finish() once the widest row is known
+			headerStart = out.length();
+			for (String cell : cells) {
+				headerTexts.add(cellText(cell));
+			}
+		} else {
+			texts.clear();
+			for (String cell : cells) {
+				texts.add(cellText(cell));
+			}
+			out.append(nl);
+			appendRow(out, texts, texts.size());
+		}
+		rows++;
+	}
+
+	private void finish() {
+
+		if (rows > 0) {
+			final StringBuilder header = new StringBuilder();
+			appendRow(header, headerTexts, columns);
+			header.append(nl);
+			for (int j = 0; j < columns; j++) {
+				if (j > 0) {
+					header.append(" | ");
+				}
+				header.append(j < alignments.size() && alignments.get(j) != null ? alignments.get(j) : "---");
+			}
+			out.insert(headerStart, header);
+		}
+		if (caption != null) {
+			out.append(nl).append(nl).append(caption);
+		}
+	}
+
+	/**
+	 * append a row of rendered cells, padded with empty cells to the width
+	 */
+	private static void appendRow(StringBuilder sb, List<String> texts, int width) {
+
+		final int rowStart = sb.length();
+		boolean emptyEdge = false;
+		for (int j = 0; j < width; j++) {
+			final String text = j < texts.size() ? texts.get(j) : "";
+			if (text.isEmpty() && (j == 0 || j == width - 1)) {
+				emptyEdge = true;
+			}
+			if (j > 0) {
+				sb.append(" | ");
+			}
+			sb.append(text);
+		}
+		if (emptyEdge) {
+			// without the outer pipes an empty first or last cell would be lost
+			sb.insert(rowStart, "| ").append(" |");
+		}
+	}
+
+	private String cellText(String cell) {
+
+		if (isMerged(cell)) {
+			return "";
+		}
+		String text = headerText(cell).trim();
+		// padded header cells, | !Name |
+		if (text.startsWith("!")) {
+			text = text.substring(1).trim();
+		}
+		return renderCell.apply(text);
+	}
+
+	/**
+	 * a column keeps an alignment while its cells agree on it, once they don't it has the default. merged cells have no
+	 * say, null until a cell of the column has had one.
+	 */
+	private void align(List<String> cells) {
+
+		for (int j = 0; j < cells.size(); j++) {
+			if (j == alignments.size()) {
+				alignments.add(null);
+			}
+			final String cell = cells.get(j);
+			if (isMerged(cell)) {
+				continue;
+			}
+			final String alignment = alignment(cell);
+			if (alignments.get(j) == null) {
+				alignments.set(j, alignment);
+			} else if (!alignments.get(j).equals(alignment)) {
+				alignments.set(j, "---");
+			}
+		}
+	}
+
+	/**
+	 * the column alignment set by the spaces around the text of a cell, spaces before the text align it right,
+	 * spaces on both sides centre it and left is the default.
+	 */
+	private static String alignment(String cell) {
+
+		final String text = headerText(cell);
+		if (text.isBlank() || !text.startsWith(" ")) {
+			return "---";
+		}
+		return text.endsWith(" ") ? ":---:" : "---:";
+	}
+
+	private static boolean isMerged(String cell) {
+
+		return cell.equals(MERGE_RIGHT) || cell.equals(MERGE_LEFT) || cell.equals(MERGE_UP);
+	}
+
+	private static String headerText(String cell) {
+
+		return cell.startsWith("!") ? cell.substring(1) : cell;
+	}
+}
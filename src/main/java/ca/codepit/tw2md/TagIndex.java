@@ -0,0 +1,163 @@
+package ca.codepit.tw2md;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * the notes filed under each tag, gathered while the tiddlers are converted so the index notes can be written at the
+ * end without reading the outputs again.
+ * <p>
+ * tiddlers are added from the conversion threads, each tag is a lock free queue of notes with its own counter and
+ * latest modified time. only a note's title and link are kept, never its text.
+ *
+ * @author evan
+ */
+class TagIndex {
+
+	private static final DateTimeFormatter DATE = DateTimeFormatter.ISO_LOCAL_DATE.withZone(ZoneId.systemDefault());
+
+	private static final Comparator<String> TITLE_ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+	private final Map<String, Tag> tags = new ConcurrentHashMap<>();
+
+	/**
+	 * @param tiddlerTags the TiddlyWiki tags of the tiddler
+	 * @param link        the note's path in the vault, without the .md extension
+	 * @param modified    epoch milliseconds, or 0 if the tiddler has no timestamp
+	 */
+	void add(Collection<String> tiddlerTags, String title, String link, long modified) {
+
+		final Note note = new Note(title, link);
+		for (String tag : tiddlerTags) {
+			tags.computeIfAbsent(tag, Tag::new).add(note, modified);
+		}
+	}
+
+	/**
+	 * @return the tags in name order
+	 */
+	List<Tag> getTags() {
+
+		final List<Tag> sorted = new ArrayList<>(tags.values());
+		sorted.sort(Comparator.comparing(Tag::getName, TITLE_ORDER));
+		return sorted;
+	}
+
+	/**
+	 * the index note of a tag, a list of the notes filed under it in title order.
+	 *
+	 * @param rendered the tag as it is written in the notes, e.g. #work-notes
+	 */
+	static String tagNote(Tag tag, String rendered, String nl) {
+
+		final List<Note> notes = new ArrayList<>(tag.notes);
+		notes.sort(Comparator.comparing((Note n) -> n.title, TITLE_ORDER).thenComparing(n -> n.link));
+
+		final StringBuilder md = new StringBuilder();
+		md.append("# ").append(tag.getName()).append(nl).append(nl);
+		md.append(tag.getCount()).append(tag.getCount() == 1 ? " note" : " notes").append(" tagged ").append(rendered);
+		if (tag.getLastModified() > 0) {
+			md.append(", last modified ").append(date(tag.getLastModified()));
+		}
+		md.append(nl).append(nl);
+		for (Note note : notes) {
+			md.append("- ").append(link(note.link, note.title)).append(nl);
+		}
+		return md.toString();
+	}
+
+	/**
+	 * the summary of all the tags, a table linking to each tag's index note.
+	 *
+	 * @param indexLinks the link to each tag's index note
+	 */
+	static String summaryNote(List<Tag> tags, Function<Tag, String> indexLinks, String nl) {
+
+		final StringBuilder md = new StringBuilder();
+		md.append("# Tags").append(nl).append(nl);
+		md.append("Tag | Notes | Last modified").append(nl);
+		md.append("--- | ---: | ---").append(nl);
+		for (Tag tag : tags) {
+			md.append(link(indexLinks.apply(tag), tag.getName().replace("|", "\\|")))
+							.append(" | ").append(tag.getCount())
+							.append(" | ").append(tag.getLastModified() > 0 ? date(tag.getLastModified()) : "")
+							.append(nl);
+		}
+		return md.toString();
+	}
+
+	/**
+	 * an Obsidian link, the title is only added when the note's file name isn't the title
+	 */
+	private static String link(String path, String title) {
+
+		final String name = path.substring(path.lastIndexOf('/') + 1);
+		return name.equals(title) || title == null ? "[[" + path + "]]" : "[[" + path + "|" + title + "]]";
+	}
+
+	private static String date(long millis) {
+
+		return DATE.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * a tag and the notes filed under it
+	 */
+	static final class Tag {
+
+		private final String name;
+
+		private final Queue<Note> notes = new ConcurrentLinkedQueue<>();
+
+		private final LongAdder count = new LongAdder();
+
+		private final LongAccumulator lastModified = new LongAccumulator(Math::max, 0);
+
+		private Tag(String name) {
+
+			this.name = name;
+		}
+
+		private void add(Note note, long modified) {
+
+			notes.add(note);
+			count.increment();
+			lastModified.accumulate(modified);
+		}
+
+		String getName() {
+
+			return name;
+		}
+
+		long getCount() {
+
+			return count.sum();
+		}
+
+		long getLastModified() {
+
+			return lastModified.get();
+		}
+	}
+
+	private static final class Note {
+
+		private final String title;
+
+		private final String link;
+
+		private Note(String title, String link) {
+
+			this.title = title;
+			this.link = link;
+		}
+	}
+}
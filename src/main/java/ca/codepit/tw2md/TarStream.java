@@ -0,0 +1,369 @@
+package ca.codepit.tw2md;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * a forward only reader for tar archives (optionally gzipped), entries are read straight from the archive so nothing
+ * needs to be extracted to disk first.
+ * <p>
+ * understands ustar, GNU long names and the pax path and size headers, which covers the archives written by GNU tar,
+ * bsdtar and most backup tools.
+ *
+ * @author evan
+ */
+public class TarStream implements Closeable {
+
+	private static final int BLOCK = 512;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final byte TYPE_FILE = '0';
+	private static final byte TYPE_OLD_FILE = 0;
+	private static final byte TYPE_CONTIGUOUS_FILE = '7';
+	private static final byte TYPE_DIRECTORY = '5';
+	private static final byte TYPE_GNU_LONG_NAME = 'L';
+	private static final byte TYPE_PAX = 'x';
+
+	private final InputStream in;
+
+	private final byte[] header = new byte[BLOCK];
+
+	/**
+	 * bytes of the current entry not yet read, and the padding after them
+	 */
+	private long remaining;
+
+	private long padding;
+
+	/**
+	 * a file or directory in the archive.
+	 */
+	public static class Entry {
+
+		private final String name;
+
+		private final long size;
+
+		private final byte type;
+
+		private Entry(String name, long size, byte type) {
+
+			this.name = name;
+			this.size = size;
+			this.type = type;
+		}
+
+		public String getName() {
+
+			return name;
+		}
+
+		public long getSize() {
+
+			return size;
+		}
+
+		public boolean isFile() {
+
+			return type == TYPE_FILE || type == TYPE_OLD_FILE || type == TYPE_CONTIGUOUS_FILE;
+		}
+
+		public boolean isDirectory() {
+
+			return type == TYPE_DIRECTORY || name.endsWith("/");
+		}
+
+		@Override
+		public String toString() {
+
+			return name;
+		}
+	}
+
+	public TarStream(InputStream in) {
+
+		this.in = in;
+	}
+
+	/**
+	 * open a tar file, gzip compression is detected from the file content rather than the name.
+	 */
+	public static TarStream open(Path file) throws IOException {
+
+		final InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+		try {
+			return new TarStream(isGzip(in) ? new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE) : in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true when the file looks like a tar archive, gzipped or not
+	 */
+	public static boolean isTar(Path file) throws IOException {
+
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			if (isGzip(in)) {
+				return true;
+			}
+			final byte[] block = in.readNBytes(BLOCK);
+			return block.length == BLOCK && validChecksum(block);
+		}
+	}
+
+	private static boolean isGzip(InputStream in) throws IOException {
+
+		in.mark(2);
+		final int b1 = in.read();
+		final int b2 = in.read();
+		in.reset();
+		return b1 == 0x1f && b2 == 0x8b;
+	}
+
+	/**
+	 * move to the next entry, anything not read from the current entry is skipped.
+	 *
+	 * @return the entry or null at the end of the archive
+	 */
+	public Entry next() throws IOException {
+
+		skip(remaining + padding);
+		remaining = 0;
+		padding = 0;
+
+		String longName = null;
+		long paxSize = -1;
+		while (true) {
+			if (!readBlock()) {
+				return null;
+			}
+			if (isZeros(header)) {
+				// end of archive marker
+				return null;
+			}
+			if (!validChecksum(header)) {
+				throw new IOException("Corrupt tar header");
+			}
+
+			final byte type = header[156];
+			final long size = parseSize(header);
+			if (type == TYPE_GNU_LONG_NAME) {
+				longName = trimNul(new String(readData(size), StandardCharsets.UTF_8));
+			} else if (type == TYPE_PAX) {
+				final String pax = new String(readData(size), StandardCharsets.UTF_8);
+				final String path = paxValue(pax, "path");
+				if (path != null) {
+					longName = path;
+				}
+				final String paxSizeValue = paxValue(pax, "size");
+				if (paxSizeValue != null) {
+					paxSize = Long.parseLong(paxSizeValue);
+				}
+			} else {
+				final String name = longName != null ? longName : headerName(header);
+				final long entrySize = paxSize >= 0 ? paxSize : size;
+				remaining = entrySize;
+				padding = pad(entrySize);
+				return new Entry(name, entrySize, type);
+			}
+		}
+	}
+
+	/**
+	 * the content of the current entry, valid until {@link #next()} is called. closing it does not close the archive.
+	 */
+	public InputStream getInputStream() {
+
+		return new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+
+				if (remaining <= 0) {
+					return -1;
+				}
+				final int b = in.read();
+				if (b < 0) {
+					throw new EOFException("Truncated tar archive");
+				}
+				remaining--;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+
+				if (remaining <= 0) {
+					return -1;
+				}
+				final int n = in.read(b, off, (int) Math.min(len, remaining));
+				if (n < 0) {
+					throw new EOFException("Truncated tar archive");
+				}
+				remaining -= n;
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * read the whole of the current entry.
+	 */
+	public byte[] readAll() throws IOException {
+
+		if (remaining > Integer.MAX_VALUE - 8) {
+			throw new IOException("Entry too large to read into memory: " + remaining + " bytes");
+		}
+		return getInputStream().readNBytes((int) remaining);
+	}
+
+	private byte[] readData(long size) throws IOException {
+
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IOException("Tar header too large: " + size + " bytes");
+		}
+		final byte[] data = in.readNBytes((int) size);
+		if (data.length != size) {
+			throw new EOFException("Truncated tar archive");
+		}
+		skip(pad(size));
+		return data;
+	}
+
+	private boolean readBlock() throws IOException {
+
+		final int n = in.readNBytes(header, 0, BLOCK);
+		if (n == 0) {
+			return false;
+		} else if (n < BLOCK) {
+			throw new EOFException("Truncated tar archive");
+		}
+		return true;
+	}
+
+	private void skip(long n) throws IOException {
+
+		while (n > 0) {
+			final long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("Truncated tar archive");
+				}
+				n--;
+			} else {
+				n -= skipped;
+			}
+		}
+	}
+
+	private static long pad(long size) {
+
+		return (BLOCK - size % BLOCK) % BLOCK;
+	}
+
+	private static String headerName(byte[] h) {
+
+		final String name = field(h, 0, 100);
+		// posix ustar splits long names into a prefix and a name, GNU tar uses the same space for other things
+		if ("ustar".equals(field(h, 257, 5)) && h[262] == 0) {
+			final String prefix = field(h, 345, 155);
+			if (!prefix.isEmpty()) {
+				return prefix + "/" + name;
+			}
+		}
+		return name;
+	}
+
+	private static long parseSize(byte[] h) {
+
+		if ((h[124] & 0x80) != 0) {
+			// base-256 for sizes over 8GB
+			long size = 0;
+			for (int i = 125; i < 136; i++) {
+				size = (size << 8) | (h[i] & 0xff);
+			}
+			return size;
+		}
+		return parseOctal(h, 124, 12);
+	}
+
+	private static long parseOctal(byte[] h, int offset, int length) {
+
+		final int end = offset + length;
+		int i = offset;
+		while (i < end && h[i] == ' ') {
+			i++;
+		}
+		long value = 0;
+		for (; i < end && h[i] >= '0' && h[i] <= '7'; i++) {
+			value = (value << 3) + (h[i] - '0');
+		}
+		return value;
+	}
+
+	private static boolean validChecksum(byte[] h) {
+
+		long sum = 0;
+		for (int i = 0; i < BLOCK; i++) {
+			// the checksum field itself is counted as spaces
+			sum += (i >= 148 && i < 156) ? ' ' : (h[i] & 0xff);
+		}
+		return sum == parseOctal(h, 148, 8);
+	}
+
+	private static boolean isZeros(byte[] h) {
+
+		for (byte b : h) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String field(byte[] h, int offset, int length) {
+
+		int end = offset;
+		while (end < offset + length && h[end] != 0) {
+			end++;
+		}
+		return new String(h, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static String trimNul(String s) {
+
+		final int nul = s.indexOf('\0');
+		return nul < 0 ? s : s.substring(0, nul);
+	}
+
+	/**
+	 * pax records are "length key=value\n"
+	 */
+	private static String paxValue(String pax, String key) {
+
+		for (String record : pax.split("\n")) {
+			final int space = record.indexOf(' ');
+			final int eq = record.indexOf('=');
+			if (space > 0 && eq > space && record.substring(space + 1, eq).equals(key)) {
+				return record.substring(eq + 1);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		in.close();
+	}
+}
@@ -1,68 +1,207 @@
 package ca.codepit.tw2md;
 
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
+ * a tiddler's headers and text, kept compact so a large wiki can be held in memory.
+ * <p>
+ * the headers every tiddler has are fields, any others are kept as name/value pairs in an array. header names and the
+ * values repeated across a wiki (type and tags) are interned, the timestamps are parsed when asked for and the text is
+ * held as UTF-8 bytes that are split into lines when asked for.
+ *
  * @author evan
  */
-@SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 class Tiddler {
 
-	private final Map<String, String> headers;
+	static final String TITLE = "title";
+	static final String TYPE = "type";
+	static final String TAGS = "tags";
+	static final String CREATED = "created";
+	static final String MODIFIED = "modified";
 
-	private final List<String> body;
+	private static final String[] NO_FIELDS = new String[0];
 
-	private final Optional<ZonedDateTime> createdTime;
+	private static final byte[] NO_TEXT = new byte[0];
 
-	private final Optional<ZonedDateTime> lastUpdatedTime;
+	private final String title;
+
+	private final String type;
+
+	private final String tags;
+
+	private final String created;
+
+	private final String modified;
+
+	/**
+	 * any other headers, name followed by value
+	 */
+	private final String[] fields;
+
+	private final byte[] text;
 
 	public Tiddler(Map<String, String> headers,
 								 List<String> body) {
 
-		this.headers = headers;
-		this.body = body;
+		this(headers, encode(body));
+	}
+
+	/**
+	 * @param text the text as UTF-8
+	 */
+	private Tiddler(Map<String, String> headers, byte[] text) {
+
+		String title = null;
+		String type = null;
+		String tags = null;
+		String created = null;
+		String modified = null;
+		final List<String> other = new ArrayList<>();
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			final String value = header.getValue();
+			switch (header.getKey()) {
+				case TITLE:
+					title = value;
+					break;
+				case TYPE:
+					type = intern(value);
+					break;
+				case TAGS:
+					tags = intern(value);
+					break;
+				case CREATED:
+					created = value;
+					break;
+				case MODIFIED:
+					modified = value;
+					break;
+				default:
+					other.add(intern(header.getKey()));
+					other.add(value);
+			}
+		}
+		this.title = title;
+		this.type = type;
+		this.tags = tags;
+		this.created = created;
+		this.modified = modified;
+		this.fields = other.isEmpty() ? NO_FIELDS : other.toArray(NO_FIELDS);
+		this.text = text;
+	}
+
+	/**
+	 * a tiddler with the text of a JSON export
+	 */
+	static Tiddler withText(Map<String, String> headers, String text) {
 
-		this.createdTime = Optional.ofNullable(headers.get("created"))
-						.flatMap(DateTools::parseTiddlyWikiTimestampAsSystemZonedDateTime);
+		return new Tiddler(headers, text == null ? NO_TEXT : text.getBytes(StandardCharsets.UTF_8));
+	}
 
-		this.lastUpdatedTime = Optional.ofNullable(headers.get("modified"))
-						.flatMap(DateTools::parseTiddlyWikiTimestampAsSystemZonedDateTime);
+	/**
+	 * each line is followed by a newline so an empty last line survives the round trip
+	 */
+	private static byte[] encode(List<String> lines) {
+
+		if (lines.isEmpty()) {
+			return NO_TEXT;
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append('\n');
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String intern(String s) {
+
+		return s == null ? null : s.intern();
 	}
 
 	public String getHeader(String key) {
 
-		return headers.get(key);
+		switch (key) {
+			case TITLE:
+				return title;
+			case TYPE:
+				return type;
+			case TAGS:
+				return tags;
+			case CREATED:
+				return created;
+			case MODIFIED:
+				return modified;
+			default:
+				for (int i = 0; i < fields.length; i += 2) {
+					if (fields[i].equals(key)) {
+						return fields[i + 1];
+					}
+				}
+				return null;
+		}
 	}
 
+	/**
+	 * a copy of all the headers
+	 */
 	public Map<String, String> getHeaders() {
 
+		final Map<String, String> headers = new LinkedHashMap<>();
+		putIfPresent(headers, TITLE, title);
+		putIfPresent(headers, TYPE, type);
+		putIfPresent(headers, TAGS, tags);
+		putIfPresent(headers, CREATED, created);
+		putIfPresent(headers, MODIFIED, modified);
+		for (int i = 0; i < fields.length; i += 2) {
+			headers.put(fields[i], fields[i + 1]);
+		}
 		return headers;
 	}
 
+	private static void putIfPresent(Map<String, String> headers, String key, String value) {
+
+		if (value != null) {
+			headers.put(key, value);
+		}
+	}
+
+	/**
+	 * the text split into lines, a new list each time
+	 */
 	public List<String> getBody() {
 
-		return body;
+		if (text.length == 0) {
+			return new ArrayList<>();
+		}
+		return new String(text, StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+	}
+
+	/**
+	 * size of the text in UTF-8
+	 */
+	public int getTextLength() {
+
+		return text.length;
 	}
 
 	public Optional<ZonedDateTime> getCreatedTime() {
 
-		return createdTime;
+		return Optional.ofNullable(created).flatMap(DateTools::parseTiddlyWikiTimestampAsSystemZonedDateTime);
 	}
 
 	public Optional<ZonedDateTime> getLastUpdatedTime() {
 
-		return lastUpdatedTime;
+		return Optional.ofNullable(modified).flatMap(DateTools::parseTiddlyWikiTimestampAsSystemZonedDateTime);
 	}
 
 	@Override
 	public String toString() {
 
 		return "Tiddler{" +
-						"header=" + headers +
-						", body=" + body +
+						"header=" + getHeaders() +
+						", body=" + getBody() +
 						'}';
 	}
 }
@@ -0,0 +1,174 @@
+package ca.codepit.tw2md;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * the rendered markdown of transcluded tiddlers, so <code>{{Title}}</code> can be replaced by the tiddler itself.
+ * <p>
+ * each target is rendered once and kept in a cache that is bounded by the number of characters held, the least
+ * recently used targets are dropped first. an expansion that was cut short, by a cycle or the depth limit, depends on
+ * where it was transcluded from so it is never cached.
+ *
+ * @author evan
+ */
+class Transclusions {
+
+	/**
+	 * how deep transclusions are followed, deeper ones are left as embeds
+	 */
+	static final int MAX_DEPTH = 8;
+
+	private final Function<String, Tiddler> lookup;
+
+	private final long maxCachedChars;
+
+	/**
+	 * title -> markdown in access order, guarded by itself
+	 */
+	private final Map<String, String> cache = new LinkedHashMap<>(64, 0.75f, true);
+
+	private long cachedChars;
+
+	/**
+	 * the titles being expanded on this thread, outermost first
+	 */
+	private final ThreadLocal<Deque<Frame>> expanding = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private final LongAdder inlined = new LongAdder();
+
+	private final LongAdder rendered = new LongAdder();
+
+	/**
+	 * @param lookup         finds a tiddler by title, null if there isn't one
+	 * @param maxCachedChars the most markdown held in the cache
+	 */
+	Transclusions(Function<String, Tiddler> lookup, long maxCachedChars) {
+
+		this.lookup = lookup;
+		this.maxCachedChars = maxCachedChars;
+	}
+
+	/**
+	 * the markdown of a transcluded tiddler.
+	 *
+	 * @param from   the tiddler holding the transclusion
+	 * @param render renders a tiddler's text, transclusions in it come back here
+	 * @return the markdown or null if the tiddler can't be inlined, it doesn't exist, it transcludes itself or it is too
+	 * deep
+	 */
+	String expand(Tiddler from, String title, Function<Tiddler, String> render) {
+
+		final Deque<Frame> stack = expanding.get();
+		if (!stack.isEmpty()) {
+			return expand(stack, title, render);
+		}
+		// the tiddler being converted is at the bottom of the stack so it isn't inlined into itself
+		stack.push(new Frame(from.getHeader(Tiddler.TITLE)));
+		try {
+			return expand(stack, title, render);
+		} finally {
+			stack.clear();
+		}
+	}
+
+	private String expand(Deque<Frame> stack, String title, Function<Tiddler, String> render) {
+
+		if (stack.size() > MAX_DEPTH || isExpanding(stack, title)) {
+			// everything being expanded depends on where it started from now
+			for (Frame f : stack) {
+				f.complete = false;
+			}
+			return null;
+		}
+
+		String md;
+		synchronized (cache) {
+			md = cache.get(title);
+		}
+		if (md != null) {
+			inlined.increment();
+			return md;
+		}
+
+		final Tiddler t = lookup.apply(title);
+		if (t == null) {
+			return null;
+		}
+		final Frame frame = new Frame(title);
+		stack.push(frame);
+		try {
+			md = render.apply(t);
+		} finally {
+			stack.pop();
+		}
+		rendered.increment();
+		inlined.increment();
+		if (frame.complete) {
+			cache(title, md);
+		}
+		return md;
+	}
+
+	private static boolean isExpanding(Deque<Frame> stack, String title) {
+
+		for (Frame f : stack) {
+			if (title.equals(f.title)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void cache(String title, String md) {
+
+		if (md.length() > maxCachedChars) {
+			return;
+		}
+		synchronized (cache) {
+			final String old = cache.put(title, md);
+			cachedChars += md.length() - (old == null ? 0 : old.length());
+			final Iterator<String> it = cache.values().iterator();
+			while (cachedChars > maxCachedChars && it.hasNext()) {
+				cachedChars -= it.next().length();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return how many transclusions were replaced by their tiddler
+	 */
+	long getInlined() {
+
+		return inlined.sum();
+	}
+
+	/**
+	 * @return how many times a transcluded tiddler was rendered, the rest came from the cache
+	 */
+	long getRendered() {
+
+		return rendered.sum();
+	}
+
+	private static final class Frame {
+
+		private final String title;
+
+		/**
+		 * false once a transclusion under this one has been cut short
+		 */
+		private boolean complete = true;
+
+		private Frame(String title) {
+
+			this.title = title;
+		}
+	}
+}
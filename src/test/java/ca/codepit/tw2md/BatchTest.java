@@ -0,0 +1,160 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import picocli.CommandLine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class BatchTest {
+
+	@Test
+	public void convertsManifestOptionsToArguments() {
+
+		final Map<String, Object> tags = new LinkedHashMap<>();
+		tags.put("Journal", "Journal/Daily");
+
+		final Map<String, Object> options = new LinkedHashMap<>();
+		options.put("add-titles", true);
+		options.put("detect-checklists", false);
+		options.put("space-tag-character", "_");
+		options.put("add-titles-tag", Arrays.asList("quote", "poem"));
+		options.put("map-tag", tags);
+
+		assertEquals(Arrays.asList("--add-titles", "--space-tag-character=_", "--add-titles-tag=quote",
+										"--add-titles-tag=poem", "--map-tag=Journal=Journal/Daily"),
+						Batch.toArgs(options));
+	}
+
+	@Test
+	public void batchWideOptionsAreRefusedForAJob(@TempDir Path dir) throws IOException {
+
+		for (String wiki : Arrays.asList("a", "b")) {
+			final Path tiddlers = Files.createDirectories(dir.resolve("wikis/" + wiki + "/tiddlers"));
+			Files.writeString(tiddlers.resolve("Note.tid"), "title: Note\ntype: text/vnd.tiddlywiki\n\n''bold''");
+		}
+		final Path manifest = dir.resolve("wikis.yml");
+		Files.writeString(manifest, "jobs:\n" +
+						"  - source: wikis/a\n" +
+						"    output: vaults/a\n" +
+						"  - source: wikis/b\n" +
+						"    output: vaults/b\n" +
+						"    options:\n" +
+						"      threads: 1\n");
+
+		// a job can't have its own worker pool
+		assertNotEquals(0, new CommandLine(new Batch()).execute("--progress=NONE", manifest.toString()));
+		assertFalse(Files.exists(dir.resolve("vaults")));
+
+		Files.writeString(manifest, "jobs:\n" +
+						"  - source: wikis/a\n" +
+						"    output: vaults/a\n" +
+						"  - source: wikis/b\n" +
+						"    output: vaults/b\n");
+		assertEquals(0, new CommandLine(new Batch()).execute("--progress=NONE", "--threads=2", manifest.toString()));
+		assertEquals("**bold**", Files.readString(dir.resolve("vaults/a/Note.md")).trim());
+		assertEquals("**bold**", Files.readString(dir.resolve("vaults/b/Note.md")).trim());
+	}
+
+	@Test
+	public void planJobsWriteNothing(@TempDir Path dir) throws IOException {
+
+		for (String wiki : Arrays.asList("a", "b")) {
+			final Path tiddlers = Files.createDirectories(dir.resolve("wikis/" + wiki + "/tiddlers"));
+			Files.writeString(tiddlers.resolve("Note.tid"), "title: Note\ntype: text/vnd.tiddlywiki\n\n''bold''");
+		}
+		final Path manifest = dir.resolve("wikis.yml");
+		Files.writeString(manifest, "jobs:\n" +
+						"  - source: wikis/a\n" +
+						"    output: vaults/a\n" +
+						"  - source: wikis/b\n" +
+						"    output: vaults/b\n" +
+						"    options:\n" +
+						"      plan: true\n");
+
+		assertEquals(0, new CommandLine(new Batch()).execute("--progress=NONE", "--threads=2", manifest.toString()));
+		assertEquals("**bold**", Files.readString(dir.resolve("vaults/a/Note.md")).trim());
+		// the plan is only reported
+		assertFalse(Files.exists(dir.resolve("vaults/b")));
+	}
+
+	@Test
+	public void planReportsArePrintedWhole(@TempDir Path dir) throws IOException {
+
+		final StringBuilder jobs = new StringBuilder("jobs:\n");
+		for (int i = 0; i < 4; i++) {
+			final Path tiddlers = Files.createDirectories(dir.resolve("wikis/" + i + "/tiddlers"));
+			Files.writeString(tiddlers.resolve("Note.tid"), "title: Note\ntype: text/vnd.tiddlywiki\n\n''bold''");
+			jobs.append("  - source: wikis/").append(i).append("\n    output: vaults/").append(i).append("\n");
+		}
+		final Path manifest = dir.resolve("wikis.yml");
+		Files.writeString(manifest, "options:\n  plan: true\n" + jobs);
+
+		final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		final PrintStream original = System.out;
+		System.setOut(new PrintStream(stdout, true, StandardCharsets.UTF_8));
+		try {
+			assertEquals(0, new CommandLine(new Batch()).execute("--progress=NONE", "--threads=2", "--parallel-jobs=4",
+							manifest.toString()));
+		} finally {
+			System.setOut(original);
+		}
+
+		// each report is in one piece, its own lines between its heading and the next one
+		final String[] reports = stdout.toString(StandardCharsets.UTF_8).split("(?=Plan for )");
+		int plans = 0;
+		for (String report : reports) {
+			if (report.startsWith("Plan for ")) {
+				plans++;
+				assertEquals(1, report.split("Tiddlers: ", -1).length - 1, report);
+				assertEquals(1, report.split("Assets: ", -1).length - 1, report);
+			}
+		}
+		assertEquals(4, plans);
+	}
+
+	@Test
+	public void archiveAndDirectoryJobsShareASmallMemoryBudget(@TempDir Path dir) throws Exception {
+
+		// each tiddler takes most of the budget, so the archive reader and the pool's workers wait on each other
+		final String text = "''bold'' text\n".repeat(8_000);
+		final Path tiddlers = Files.createDirectories(dir.resolve("wikis/a/tiddlers"));
+		final Path tar = dir.resolve("wikis/b.tar");
+		try (OutputStream out = Files.newOutputStream(tar)) {
+			for (int i = 0; i < 20; i++) {
+				final String tiddler = "title: Note" + i + "\ntype: text/vnd.tiddlywiki\n\n" + text;
+				Files.writeString(tiddlers.resolve("Note" + i + ".tid"), tiddler);
+				TarStreamTest.writeEntry(out, "wiki/tiddlers/Note" + i + ".tid", '0', tiddler.getBytes(StandardCharsets.UTF_8));
+			}
+			out.write(new byte[1024]);
+		}
+		final Path manifest = dir.resolve("wikis.yml");
+		Files.writeString(manifest, "jobs:\n" +
+						"  - source: wikis/b.tar\n" +
+						"    output: vaults/b\n" +
+						"  - source: wikis/a\n" +
+						"    output: vaults/a\n");
+
+		assertTimeoutPreemptively(Duration.ofSeconds(60), () -> assertEquals(0, new CommandLine(new Batch())
+						.execute("--progress=NONE", "--threads=2", "--memory-budget=1", manifest.toString())));
+		for (int i = 0; i < 20; i++) {
+			assertTrue(Files.exists(dir.resolve("vaults/a/Note" + i + ".md")));
+			assertTrue(Files.exists(dir.resolve("vaults/b/Note" + i + ".md")));
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class DirectoryScannerTest {
+
+	@Test
+	public void scansInDeterministicOrder(@TempDir Path root) throws IOException {
+
+		Files.createDirectories(root.resolve("b/d"));
+		Files.createDirectories(root.resolve("a"));
+		Files.writeString(root.resolve("c.tid"), "c");
+		Files.writeString(root.resolve("b/d/e.tid"), "e");
+		Files.writeString(root.resolve("b/a.tid"), "a");
+		Files.writeString(root.resolve("a/z.tid"), "zz");
+
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			final DirectoryScanner scanner = new DirectoryScanner(pool);
+			for (int i = 0; i < 5; i++) {
+				final List<String> paths = scanner.scan(root)
+								.map(e -> root.relativize(e.getPath()).toString())
+								.collect(Collectors.toList());
+				assertEquals(Arrays.asList("a", "a/z.tid", "b", "b/a.tid", "b/d", "b/d/e.tid", "c.tid"), paths);
+			}
+			assertEquals(2, scanner.scan(root).filter(e -> e.getName().equals("z.tid")).findFirst().orElseThrow().size());
+
+			final DirectoryScanner.Entry a = scanner.scan(root).filter(e -> e.getName().equals("a.tid")).findFirst().orElseThrow();
+			assertEquals(root.resolve("b/d"), a.sibling("d"));
+			assertNull(a.sibling("c.tid"));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void entriesCanBeReadWithoutAScan(@TempDir Path root) throws IOException {
+
+		Files.writeString(root.resolve("a.tid"), "aaa");
+		Files.writeString(root.resolve("a.tid.meta"), "title: a");
+
+		final DirectoryScanner.Entry a = DirectoryScanner.entry(root.resolve("a.tid"));
+		assertTrue(a.isFile());
+		assertEquals(3, a.size());
+		assertEquals(root.resolve("a.tid.meta"), a.sibling("a.tid.meta"));
+		assertNull(a.sibling("b.tid"));
+		assertTrue(DirectoryScanner.entry(root).isDirectory());
+	}
+}
@@ -0,0 +1,87 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class JournalTest {
+
+	@Test
+	public void resumeIgnoresTornLastRecord(@TempDir Path dir) throws Exception {
+
+		final Path file = dir.resolve(".tw2md/journal.log");
+		final Path output = dir.resolve("a.md");
+		Files.writeString(output, "# a");
+
+		try (Journal journal = Journal.open(file, false)) {
+			journal.completed("tiddlers/a.tid", output);
+			journal.completed("tiddlers/$__b.tid", null);
+		}
+		final long size = Files.size(file);
+
+		// a crash part way through writing the next record
+		Files.write(file, "0123abcd\ttiddlers/c".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		try (Journal journal = Journal.open(file, true)) {
+			assertEquals(Set.of("tiddlers/a.tid", "tiddlers/$__b.tid"), journal.getCompleted());
+			assertEquals(size, Files.size(file));
+			journal.completed("tiddlers/c.tid", null);
+		}
+
+		try (Journal journal = Journal.open(file, true)) {
+			assertEquals(Set.of("tiddlers/a.tid", "tiddlers/$__b.tid", "tiddlers/c.tid"), journal.getCompleted());
+		}
+
+		// without --resume the journal starts again
+		try (Journal journal = Journal.open(file, false)) {
+			assertTrue(journal.getCompleted().isEmpty());
+		}
+		assertEquals(0, Files.size(file));
+	}
+
+	@Test
+	public void collisionsAreSavedBeforeTheirSourcesAreJournaled(@TempDir Path dir) throws Exception {
+
+		final Path file = dir.resolve(".tw2md/journal.log");
+		final Path collisions = dir.resolve(".tw2md/collisions.tsv");
+		final OutputNames names = new OutputNames(dir);
+
+		final Journal journal = Journal.open(file, false);
+		journal.flushBeforeCheckpoint(() -> names.update(collisions));
+		names.claim(dir.resolve("Note.md"), "tiddlers/Note.tid");
+		final Path renamed = names.claim(dir.resolve("note.md"), "tiddlers/note.tid");
+		Files.writeString(renamed, "# note");
+		journal.completed("tiddlers/note.tid", renamed);
+		journal.checkpoint();
+		// a crash, the journal isn't closed
+
+		final OutputNames resumed = new OutputNames(dir);
+		resumed.load(collisions);
+		assertEquals(1, resumed.size());
+		assertEquals(renamed, resumed.claim(dir.resolve("note.md"), "tiddlers/note.tid"));
+		try (Journal reopened = Journal.open(file, true)) {
+			assertEquals(Set.of("tiddlers/note.tid"), reopened.getCompleted());
+		}
+		journal.close();
+	}
+
+	@Test
+	public void corruptRecordEndsTheJournal() {
+
+		final byte[] bytes = "00000000\tbad\nefd24b29\ttiddlers/T0.tid\n".getBytes(StandardCharsets.UTF_8);
+		final Set<String> completed = new HashSet<>();
+		assertEquals(0, Journal.recover(bytes, completed));
+		assertTrue(completed.isEmpty());
+	}
+}
@@ -0,0 +1,63 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class JsonTiddlerReaderTest {
+
+	private static final String EXPORT = "[\n" +
+					" {\"title\": \"$:/config/Thing\", \"text\": \"yes\"},\n" +
+					" {\"created\": \"20210910025114852\", \"text\": \"! Quoted \\\"text\\\"\\n\\nline\\u00e9 two\\/\",\n" +
+					"  \"title\": \"A: Tiddler\", \"tags\": [\"one\", \"two words\"], \"revision\": 3, \"meta\": {\"x\": [1]}},\n" +
+					" {\"title\": \"pixel.png\", \"type\": \"image/png\", \"text\": \"iVBORw0KGgo=\"}\n" +
+					"]";
+
+	@Test
+	public void readsOneTiddlerAtATime() throws IOException {
+
+		try (JsonTiddlerReader json = new JsonTiddlerReader(new StringReader(EXPORT))) {
+			assertEquals("$:/config/Thing", json.next().get("title"));
+
+			final Map<String, String> fields = json.next();
+			assertEquals("! Quoted \"text\"\n\nlineé two/", fields.get("text"));
+			assertEquals("one [[two words]]", fields.get("tags"));
+			assertEquals("3", fields.get("revision"));
+			assertFalse(fields.containsKey("meta"));
+
+			assertEquals("image/png", json.next().get("type"));
+			assertNull(json.next());
+		}
+
+		assertThrows(IOException.class, () -> new JsonTiddlerReader(new StringReader("[{\"title\" \"x\"}]")).next());
+	}
+
+	@Test
+	public void convertsAJsonExport(@TempDir Path dir) throws IOException {
+
+		final Path export = dir.resolve("tiddlers.json");
+		Files.writeString(export, EXPORT);
+		final Path out = dir.resolve("vault");
+
+		assertEquals(0, new CommandLine(new Main()).execute("--progress=NONE", "--threads=2", "--assets-path=files",
+						export.toString(), out.toString()));
+
+		assertEquals("A_ Tiddler.tid", Main.tiddlerFileName("A: Tiddler"));
+		final String md = Files.readString(out.resolve("A_ Tiddler.md"));
+		assertTrue(md.contains("# Quoted \"text\""), md);
+		assertTrue(md.contains("#one"), md);
+		assertEquals(8, Files.size(out.resolve("files/pixel.png")));
+		assertFalse(Files.exists(out.resolve("$__config_Thing.md")));
+	}
+}
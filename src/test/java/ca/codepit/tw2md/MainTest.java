@@ -2,16 +2,31 @@ package ca.codepit.tw2md;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import picocli.CommandLine;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -86,6 +101,274 @@ class MainTest {
 						.ifPresent(t -> assertEquals(md, main.toMarkdown(t, "macros.tid")));
 	}
 
+	@Test
+	public void malformedTiddlerHeadersAreReported(@TempDir Path dir) throws IOException {
+
+		final Path tid = dir.resolve("bad.tid");
+		Files.writeString(tid, "title: Bad\nnot a header\n\nbody\n");
+		assertThrows(IOException.class, () -> main.parseTiddler(tid));
+		assertTrue(main.readTiddler(tid).isEmpty());
+
+		Files.writeString(tid, "title: Empty\ntags:\n\nbody\n");
+		assertEquals("", main.parseTiddler(tid).getHeader("tags"));
+	}
+
+	@Test
+	public void assetsUseTheirMetaSidecar(@TempDir Path dir) throws IOException {
+
+		final Path tiddlers = Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		Files.writeString(tiddlers.resolve("photo.jpg"), "jpeg");
+		Files.writeString(tiddlers.resolve("photo.jpg.meta"), "created: 20200101120000000\n" +
+						"modified: 20200202120000000\ntags: Photos\ntitle: photo.jpg\ntype: image/jpeg\n");
+		Files.writeString(tiddlers.resolve("other.txt"), "text");
+
+		final Path out = dir.resolve("vault");
+		assertEquals(0, cli.execute("--progress=NONE", "--assets-path=files", "--map-tag=Photos=Pictures",
+						dir.resolve("wiki").toString(), out.toString()));
+
+		final Path photo = out.resolve("Pictures/photo.jpg");
+		assertEquals("jpeg", Files.readString(photo));
+		assertEquals(Instant.parse("2020-02-02T12:00:00Z"), Files.getLastModifiedTime(photo).toInstant());
+		assertTrue(Files.exists(out.resolve("files/other.txt")));
+		assertFalse(Files.exists(out.resolve("files/photo.jpg.meta")));
+	}
+
+	@Test
+	public void outputsDifferingOnlyInCaseAreRenamed(@TempDir Path dir) throws IOException {
+
+		final Path tiddlers = Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		for (String title : Arrays.asList("Note", "note", "NOTE")) {
+			Files.writeString(tiddlers.resolve(title + ".tid"), "title: " + title + "\ntype: text/vnd.tiddlywiki\n\n" + title);
+		}
+
+		for (int run = 0; run < 5; run++) {
+			final Path out = dir.resolve("vault" + run);
+			assertEquals(0, cli.execute("--progress=NONE", "--threads=4", dir.resolve("wiki").toString(), out.toString()));
+
+			final Set<String> texts = new HashSet<>();
+			final Set<String> keys = new HashSet<>();
+			try (Stream<Path> files = Files.list(out)) {
+				for (Path p : files.filter(p -> p.toString().endsWith(".md")).collect(Collectors.toList())) {
+					texts.add(Files.readString(p).trim());
+					keys.add(OutputNames.key(p.getFileName().toString()));
+				}
+			}
+			assertEquals(new HashSet<>(Arrays.asList("Note", "note", "NOTE")), texts);
+			assertEquals(3, keys.size());
+			assertEquals(3, Files.readAllLines(out.resolve(".tw2md/collisions.tsv")).size());
+			// the first in scan order keeps the name, whichever thread gets there first
+			assertEquals("NOTE", Files.readString(out.resolve("NOTE.md")).trim());
+		}
+	}
+
+	@Test
+	public void sourcesThatMayShareAnOutputNameAreGrouped() {
+
+		assertEquals(OutputNames.group("Note.tid"), OutputNames.group("NOTE.md"));
+		assertEquals(OutputNames.group("a_b.png.tid"), OutputNames.group("a:b.png"));
+		assertEquals(OutputNames.group("Photo .jpg"), OutputNames.group("photo"));
+		assertNotEquals(OutputNames.group("Note.tid"), OutputNames.group("Notes.tid"));
+	}
+
+	@Test
+	public void directoriesAreOnlyMadeInsideTheVault(@TempDir Path dir) throws IOException {
+
+		Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		final Path out = dir.resolve("vault");
+		for (String option : Arrays.asList("--assets-path=../assets", "--map-tag=Journal=../daily", "--tag-index=../tags")) {
+			assertNotEquals(0, cli.execute("--progress=NONE", option, dir.resolve("wiki").toString(), out.toString()), option);
+		}
+		assertFalse(Files.exists(out));
+		try (Stream<Path> files = Files.list(dir)) {
+			assertEquals(Collections.singletonList(dir.resolve("wiki")), files.collect(Collectors.toList()));
+		}
+	}
+
+	@Test
+	public void planReportsWithoutWriting(@TempDir Path dir) throws IOException {
+
+		final Path tiddlers = Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		Files.writeString(tiddlers.resolve("Note.tid"), "title: Note\ntags: Journal\ntype: text/vnd.tiddlywiki\n\n''bold''");
+		Files.writeString(tiddlers.resolve("$__config.tid"), "title: $:/config\ntype: text/vnd.tiddlywiki\n\nx");
+		Files.writeString(tiddlers.resolve("photo.jpg"), "jpeg");
+
+		final Path out = dir.resolve("vault");
+		final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		final PrintStream original = System.out;
+		System.setOut(new PrintStream(stdout, true, StandardCharsets.UTF_8));
+		try {
+			assertEquals(0, cli.execute("--plan", "-mJournal=Daily", dir.resolve("wiki").toString(), out.toString()));
+		} finally {
+			System.setOut(original);
+		}
+
+		final String report = stdout.toString(StandardCharsets.UTF_8);
+		assertTrue(report.contains("Tiddlers:          2 (1 user, 1 system, 1 skipped)"), report);
+		assertTrue(report.contains("Assets:            1 to copy"), report);
+		assertTrue(report.matches("(?s).*\\n  Daily +1\\n.*"), report);
+		assertFalse(Files.exists(out));
+	}
+
+	@Test
+	public void tagIndexListsTheNotesOfEachTag(@TempDir Path dir) throws IOException {
+
+		final Path tiddlers = Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		for (int i = 0; i < 20; i++) {
+			Files.writeString(tiddlers.resolve("Note " + i + ".tid"), "title: Note " + i + "\ntags: Journal" +
+							(i % 2 == 0 ? " [[Work Notes]]" : "") + "\nmodified: 2021010" + (i % 9 + 1) + "120000000" +
+							"\ntype: text/vnd.tiddlywiki\n\ntext");
+		}
+
+		final Path out = dir.resolve("vault");
+		assertEquals(0, cli.execute("--progress=NONE", "--threads=4", "--tag-index=Tags", "--tag-case-conversion=LOWER",
+						"-mJournal=Daily", dir.resolve("wiki").toString(), out.toString()));
+
+		final String journal = Files.readString(out.resolve("Daily/journal.md"));
+		assertTrue(journal.contains("20 notes tagged #journal"), journal);
+		assertTrue(journal.contains("- [[Daily/Note 0]]"), journal);
+		final String work = Files.readString(out.resolve("Tags/work-notes.md"));
+		assertTrue(work.contains("10 notes tagged #work-notes"), work);
+		assertFalse(work.contains("[[Daily/Note 1]]"), work);
+		final String summary = Files.readString(out.resolve("Tags/Tags.md"));
+		assertTrue(summary.contains("[[Daily/journal|Journal]] | 20 | "), summary);
+		assertTrue(summary.contains("[[Tags/work-notes|Work Notes]] | 10 | "), summary);
+	}
+
+	@Test
+	public void largeBinaryTiddlersAreStreamed(@TempDir Path dir) throws IOException {
+
+		final byte[] video = new byte[3 * 1024 * 1024];
+		new Random(1).nextBytes(video);
+		final Path tiddlers = Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		Files.writeString(tiddlers.resolve("clip.mp4.tid"), "title: clip.mp4\r\ntype: video/mp4\r\n\r\n" +
+						Base64.getMimeEncoder().encodeToString(video));
+		Files.writeString(tiddlers.resolve("Long.tid"), "title: Long\ntype: text/vnd.tiddlywiki\n\n" +
+						"''some'' text\n".repeat(100_000));
+		Files.writeString(tiddlers.resolve("Note.tid"), "title: Note\ntype: text/vnd.tiddlywiki\n\n''bold''");
+
+		final Path out = dir.resolve("vault");
+		assertEquals(0, cli.execute("--progress=NONE", "--threads=4", "--memory-budget=1", dir.resolve("wiki").toString(),
+						out.toString()));
+
+		assertArrayEquals(video, Files.readAllBytes(out.resolve("clip.mp4")));
+		assertTrue(Files.readString(out.resolve("Long.md")).startsWith("**some** text"));
+		assertEquals("**bold**", Files.readString(out.resolve("Note.md")).trim());
+	}
+
+	@Test
+	public void checksumsListEveryOutput(@TempDir Path dir) throws Exception {
+
+		final Path tiddlers = Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		Files.writeString(tiddlers.resolve("Note.tid"), "title: Note\ntags: Journal\ntype: text/vnd.tiddlywiki\n\n''bold''");
+		Files.writeString(tiddlers.resolve("dot.png.tid"), "title: dot.png\ntype: image/png\n\n" +
+						Base64.getEncoder().encodeToString(new byte[]{1, 2, 3}));
+		Files.writeString(tiddlers.resolve("photo.jpg"), "jpeg");
+		Files.writeString(Files.createDirectories(dir.resolve("wiki/images")).resolve("logo.svg"), "<svg/>");
+
+		final Path out = dir.resolve("vault");
+		for (String checksum : Arrays.asList("SHA256", "CRC32C")) {
+			// the second run leaves the unchanged outputs and the existing assets alone, they are still hashed
+			assertEquals(0, cli.execute("--progress=NONE", "--threads=2", "--checksums=" + checksum, "--write-mode=CHANGED",
+							"--assets-path=files", "--tiddlywiki-assets-path=images", "--tag-index=Tags",
+							dir.resolve("wiki").toString(), out.toString()));
+
+			final List<String> lines = Files.readAllLines(out.resolve(".tw2md/checksums.tsv"));
+			assertEquals("# output\tsize\t" + checksum.toLowerCase() + "\tsource", lines.get(0));
+			assertEquals(Arrays.asList("Note.md", "Tags/Journal.md", "Tags/Tags.md", "files/dot.png", "files/logo.svg",
+											"files/photo.jpg"),
+							lines.stream().skip(1).map(l -> l.split("\t")[0]).collect(Collectors.toList()));
+			for (String line : lines.subList(1, lines.size())) {
+				final String[] r = line.split("\t");
+				final byte[] bytes = Files.readAllBytes(out.resolve(r[0]));
+				assertEquals(bytes.length, Long.parseLong(r[1]), line);
+				final String expected;
+				if (checksum.equals("SHA256")) {
+					final StringBuilder hex = new StringBuilder();
+					for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+						hex.append(String.format("%02x", b));
+					}
+					expected = hex.toString();
+				} else {
+					final CRC32C crc = new CRC32C();
+					crc.update(bytes);
+					expected = String.format("%08x", crc.getValue());
+				}
+				assertEquals(expected, r[2], line);
+			}
+			assertTrue(lines.stream().anyMatch(l -> l.startsWith("Note.md\t") && l.endsWith("\ttiddlers/Note.tid")));
+			assertTrue(lines.stream().anyMatch(l -> l.startsWith("files/dot.png\t") && l.endsWith("\ttiddlers/dot.png.tid")));
+			assertTrue(lines.stream().anyMatch(l -> l.startsWith("Tags/Tags.md\t") && l.endsWith("\t-")));
+		}
+	}
+
+	@Test
+	public void checksumsSurviveAKilledRun(@TempDir Path dir) throws Exception {
+
+		final Path tiddlers = Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		for (int i = 0; i < 5000; i++) {
+			Files.writeString(tiddlers.resolve("Note" + i + ".tid"), "title: Note" + i + "\ntype: text/vnd.tiddlywiki\n\n''bold'' " + i);
+		}
+		final Path out = dir.resolve("vault");
+		final Path journal = out.resolve(".tw2md/journal.log");
+
+		// kill the conversion once it has checkpointed
+		final Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+						"-cp", System.getProperty("java.class.path"), Main.class.getName(), "--progress=NONE", "--threads=1",
+						"--checksums=SHA256", dir.resolve("wiki").toString(), out.toString())
+						.redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		try {
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+			while (process.isAlive() && (!Files.exists(journal) || Files.size(journal) == 0)) {
+				assertTrue(System.nanoTime() < deadline, "no checkpoint");
+				Thread.sleep(10);
+			}
+		} finally {
+			process.destroyForcibly().waitFor();
+		}
+
+		assertEquals(0, cli.execute("--progress=NONE", "--resume", "--checksums=SHA256", dir.resolve("wiki").toString(),
+						out.toString()));
+
+		final List<String> lines = Files.readAllLines(out.resolve(".tw2md/checksums.tsv"));
+		final Set<String> listed = new HashSet<>();
+		for (String line : lines.subList(1, lines.size())) {
+			final String[] r = line.split("\t");
+			final StringBuilder hex = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(out.resolve(r[0])))) {
+				hex.append(String.format("%02x", b));
+			}
+			assertEquals(hex.toString(), r[2], line);
+			listed.add(r[0]);
+		}
+		for (int i = 0; i < 5000; i++) {
+			assertTrue(listed.contains("Note" + i + ".md"), "Note" + i);
+		}
+	}
+
+	@Test
+	public void retryConvertsOnlyTheListedFailures(@TempDir Path dir) throws Exception {
+
+		final Path tiddlers = Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		Files.writeString(tiddlers.resolve("A.tid"), "title: A\ntype: text/vnd.tiddlywiki\n\na");
+		Files.writeString(tiddlers.resolve("B.tid"), "title: B\ntype: text/vnd.tiddlywiki\n\nb");
+		Files.writeString(Files.createDirectories(dir.resolve("wiki/images/icons")).resolve("logo.svg"), "<svg/>");
+		Files.writeString(dir.resolve("wiki/images/other.svg"), "<svg/>");
+
+		final Path out = dir.resolve("vault");
+		final Path failures = Files.createDirectories(out.resolve(".tw2md")).resolve("failures.tsv");
+		Files.write(failures, Arrays.asList("# source\tstage\treason", "images/icons/logo.svg\tCOPY\tfailed",
+						"tiddlers/B.tid\tPARSE\tfailed", "tiddlers/Gone.tid\tPARSE\tfailed"));
+
+		assertEquals(0, cli.execute("--progress=NONE", "--retry-failed", "--assets-path=files",
+						"--tiddlywiki-assets-path=images", dir.resolve("wiki").toString(), out.toString()));
+
+		assertTrue(Files.exists(out.resolve("B.md")));
+		assertTrue(Files.exists(out.resolve("files/icons/logo.svg")));
+		assertFalse(Files.exists(out.resolve("A.md")));
+		assertFalse(Files.exists(out.resolve("files/other.svg")));
+		assertFalse(Files.exists(failures));
+	}
+
 	// -------------------------------------------------------------------------------------------------------------------
 
 	private String loadMarkdownFile(String name) throws IOException, URISyntaxException {
@@ -0,0 +1,68 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class MemoryBudgetTest {
+
+	private static final long MB = 1024 * 1024;
+
+	@Test
+	public void workIsAdmittedWhileItFits() throws Exception {
+
+		final MemoryBudget budget = new MemoryBudget(10);
+		final AtomicLong inFlight = new AtomicLong();
+		final AtomicLong peak = new AtomicLong();
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 40; i++) {
+				// every tenth item is larger than the whole budget
+				final long cost = i % 10 == 9 ? 50 * MB : 4 * MB;
+				futures.add(executor.submit(() -> {
+					final long held = budget.acquire(cost);
+					try {
+						peak.accumulateAndGet(inFlight.addAndGet(held), Math::max);
+						Thread.sleep(5);
+					} finally {
+						inFlight.addAndGet(-held);
+						budget.release(held);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertTrue(peak.get() <= 10 * MB, "peak " + peak.get());
+		assertEquals(budget.getPeak(), peak.get());
+		assertTrue(budget.getWaits() > 0);
+	}
+
+	@Test
+	public void oversizedWorkRunsAlone() {
+
+		final MemoryBudget budget = new MemoryBudget(1);
+		final long held = budget.acquire(100 * MB);
+		assertEquals(MB, held);
+		budget.release(held);
+		assertEquals(0, budget.acquire(0));
+		assertTrue(new MemoryBudget(0).getBudget() > 0);
+	}
+}
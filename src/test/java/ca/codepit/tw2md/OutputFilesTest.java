@@ -0,0 +1,76 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class OutputFilesTest {
+
+	private static final FileTime OLD = FileTime.fromMillis(1_000_000_000_000L);
+
+	@Test
+	public void identicalFilesAreLeftAlone(@TempDir Path dir) throws Exception {
+
+		final byte[] data = random(200_000, 1);
+		final Path out = dir.resolve("out.bin");
+		final Path source = dir.resolve("source.bin");
+		Files.write(source, data);
+
+		assertTrue(OutputFiles.write(out, data, true));
+		Files.setLastModifiedTime(out, OLD);
+
+		assertFalse(OutputFiles.write(out, data, true));
+		assertFalse(OutputFiles.copy(source, out, true));
+		assertFalse(OutputFiles.copy(new ByteArrayInputStream(data), out, true));
+		final Path moved = Files.copy(source, dir.resolve("moved.bin"));
+		assertFalse(OutputFiles.move(moved, out, true));
+		assertFalse(Files.exists(moved));
+		assertEquals(OLD, Files.getLastModifiedTime(out));
+
+		assertTrue(OutputFiles.write(out, data, false));
+		assertNotEquals(OLD, Files.getLastModifiedTime(out));
+	}
+
+	@Test
+	public void changedStreamsReplaceTheFile(@TempDir Path dir) throws Exception {
+
+		final byte[] original = random(200_000, 2);
+		final Path out = dir.resolve("out.bin");
+
+		// a difference in the first block, after a few blocks, and a stream that is shorter or longer than the file
+		final byte[] early = original.clone();
+		early[10] ^= 1;
+		final byte[] late = original.clone();
+		late[150_000] ^= 1;
+		final byte[] shorter = Arrays.copyOf(original, 140_000);
+		final byte[] longer = Arrays.copyOf(original, 300_000);
+
+		for (byte[] changed : Arrays.asList(early, late, shorter, longer)) {
+			Files.write(out, original);
+			assertTrue(OutputFiles.copy(new ByteArrayInputStream(changed), out, true));
+			assertArrayEquals(changed, Files.readAllBytes(out));
+		}
+		try (Stream<Path> files = Files.list(dir)) {
+			assertEquals(1, files.count(), "temporary files left behind");
+		}
+	}
+
+	private static byte[] random(int size, long seed) {
+
+		final byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
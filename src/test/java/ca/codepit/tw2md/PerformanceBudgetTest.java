@@ -0,0 +1,202 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * allocation and CPU budgets for reading and rendering tiddlers, so a change that makes the hot path allocate or work
+ * much more fails the build.
+ * <p>
+ * each corpus of generated tiddlers is read and rendered on the test thread, the bytes it allocated and the CPU time
+ * it used are measured with the thread MXBean after warming up. the budgets, per tiddler, are in
+ * performance-budgets.properties along with how far over them a run may go. allocation is close to deterministic and
+ * has a tight tolerance. CPU time depends on the machine and what else it is running, it is only checked when
+ * {@code -Dtw2md.cpu.budgets=true} is given, on a quiet machine. the measured numbers are logged so the budgets can be
+ * updated when a change is meant to move them. render tracing is off in the test logback configuration, the budgets
+ * are for the render path as it runs in production.
+ *
+ * @author evan
+ */
+class PerformanceBudgetTest {
+
+	private static final Logger log = LoggerFactory.getLogger(PerformanceBudgetTest.class);
+
+	private static final boolean CHECK_CPU = Boolean.getBoolean("tw2md.cpu.budgets");
+
+	private static final int TIDDLERS = 200;
+
+	private static final int WARMUP_PASSES = 10;
+
+	private static final int MEASURED_PASSES = 5;
+
+	private static final String[] WORDS = {"the", "wiki", "note", "converts", "markdown", "quickly", "into", "a", "vault",
+					"with", "every", "tiddler", "and", "tag", "Obsidian", "reads"};
+
+	@TempDir
+	static Path dir;
+
+	private static com.sun.management.ThreadMXBean threads;
+
+	private static Properties budgets;
+
+	private final Main main = newMain();
+
+	@BeforeAll
+	public static void setup() throws IOException {
+
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+						"allocation can't be measured on this JVM");
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isCurrentThreadCpuTimeSupported(),
+						"allocation can't be measured on this JVM");
+		threads.setThreadAllocatedMemoryEnabled(true);
+		threads.setThreadCpuTimeEnabled(true);
+
+		budgets = new Properties();
+		try (InputStream in = PerformanceBudgetTest.class.getResourceAsStream("performance-budgets.properties")) {
+			budgets.load(Objects.requireNonNull(in, "performance-budgets.properties"));
+		}
+	}
+
+	private static Main newMain() {
+
+		final Main main = new Main();
+		main.spaceTagCharacterReplacement = "-";
+		main.illegalTagCharacterReplacement = "_";
+		main.numericTagPrefix = "t";
+		main.tagCaseConversion = Main.CASE_CONVERTER.NONE;
+		return main;
+	}
+
+	@Test
+	public void prose() throws IOException {
+
+		check("prose", i -> sentence(i, 40) + "\n\n''" + sentence(i + 1, 6) + "'' and //" + sentence(i + 2, 6) + "//\n\n"
+						+ sentence(i + 3, 60));
+	}
+
+	@Test
+	public void linksAndMacros() throws IOException {
+
+		check("links", i -> "See [[Note " + i + "]] and [[the text|Note " + (i + 1) + "]], {{Snippet}} {{!!title}}\n\n"
+						+ "[ext[https://example.com/" + i + "]] <<tag Journal>> <<unknown " + i + ">> [img [photo" + i + ".png]]\n\n"
+						+ sentence(i, 20) + " [[Link " + i + "]]");
+	}
+
+	@Test
+	public void tables() throws IOException {
+
+		check("tables", i -> {
+			final StringBuilder sb = new StringBuilder("|!Name |!Value | !Note |\n");
+			for (int r = 0; r < 20; r++) {
+				sb.append("|").append(sentence(i + r, 2)).append(" |''").append(r).append("'' |[[Row ").append(r).append("]] |\n");
+			}
+			return sb.toString();
+		});
+	}
+
+	@Test
+	public void listsAndBlocks() throws IOException {
+
+		check("lists", i -> "! Heading " + i + "\n\n* " + sentence(i, 8) + "\n** " + sentence(i + 1, 8) + "\n* ~~"
+						+ sentence(i + 2, 4) + "~~\n\n# one\n# two\n## two a\n\n```\ncode " + i + "\n```\n\n<<<\n"
+						+ sentence(i + 3, 12) + "\n<<<\n");
+	}
+
+	/**
+	 * read and render the corpus, the best of the measured passes is compared with the budget
+	 */
+	private void check(String corpus, IntFunction<String> text) throws IOException {
+
+		final List<Path> files = write(corpus, text);
+		for (int i = 0; i < WARMUP_PASSES; i++) {
+			convert(files);
+		}
+
+		long bytes = Long.MAX_VALUE;
+		long cpuNanos = Long.MAX_VALUE;
+		for (int i = 0; i < MEASURED_PASSES; i++) {
+			final long startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			final long startCpu = threads.getCurrentThreadCpuTime();
+			convert(files);
+			cpuNanos = Math.min(cpuNanos, threads.getCurrentThreadCpuTime() - startCpu);
+			bytes = Math.min(bytes, threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes);
+		}
+
+		final long bytesPerTiddler = bytes / TIDDLERS;
+		final long cpuMicrosPerTiddler = cpuNanos / TIDDLERS / 1000;
+		log.debug("{}.bytes={}, {}.cpuMicros={}", corpus, bytesPerTiddler, corpus, cpuMicrosPerTiddler);
+
+		final long bytesBudget = budget(corpus + ".bytes");
+		final double bytesTolerance = Double.parseDouble(budgets.getProperty("tolerance.bytes"));
+		assertTrue(bytesPerTiddler <= bytesBudget * bytesTolerance,
+						corpus + " allocated " + bytesPerTiddler + " bytes a tiddler, the budget is " + bytesBudget);
+		if (CHECK_CPU) {
+			final long cpuBudget = budget(corpus + ".cpuMicros");
+			final double cpuTolerance = Double.parseDouble(budgets.getProperty("tolerance.cpu"));
+			assertTrue(cpuMicrosPerTiddler <= cpuBudget * cpuTolerance,
+							corpus + " used " + cpuMicrosPerTiddler + "us of CPU a tiddler, the budget is " + cpuBudget);
+		}
+	}
+
+	private long converted;
+
+	private void convert(List<Path> files) throws IOException {
+
+		for (Path p : files) {
+			final Tiddler t = main.parseTiddler(p);
+			converted += main.toMarkdown(t, p.getFileName().toString()).length();
+		}
+		assertTrue(converted > 0);
+	}
+
+	private static List<Path> write(String corpus, IntFunction<String> text) throws IOException {
+
+		final Path tiddlers = Files.createDirectories(dir.resolve(corpus));
+		final List<Path> files = new ArrayList<>();
+		for (int i = 0; i < TIDDLERS; i++) {
+			final Path p = tiddlers.resolve("Note " + i + ".tid");
+			Files.writeString(p, "title: Note " + i + "\ntags: Journal [[Work Notes]] t" + (i % 7) + "\ncreated: 20200101120000000" +
+							"\nmodified: 20210101120000000\ntype: text/vnd.tiddlywiki\n\n" + text.apply(i));
+			files.add(p);
+		}
+		return files;
+	}
+
+	private static long budget(String key) {
+
+		final String value = budgets.getProperty(key);
+		assertNotNull(value, "no budget for " + key);
+		return Long.parseLong(value);
+	}
+
+	/**
+	 * words picked by a generator seeded from i, so each tiddler is different but the corpus is the same every run
+	 */
+	private static String sentence(int i, int words) {
+
+		final Random random = new Random(i);
+		final StringBuilder sb = new StringBuilder();
+		for (int w = 0; w < words; w++) {
+			if (w > 0) {
+				sb.append(' ');
+			}
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,71 @@
+package ca.codepit.tw2md;
+
+import ca.codepit.tw2md.Main.PROGRESS_MODE;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class ProgressTest {
+
+	@Test
+	public void durationsAreHoursMinutesAndSeconds() {
+
+		assertEquals("0:00:00", Progress.formatDuration(0));
+		assertEquals("0:01:05", Progress.formatDuration(65));
+		assertEquals("1:02:05", Progress.formatDuration(3725));
+		assertEquals("27:46:40", Progress.formatDuration(100000));
+		assertEquals("?", Progress.formatDuration(-1));
+	}
+
+	@Test
+	public void textEndsWithTheFinalCounts() {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final Progress progress = new Progress(PROGRESS_MODE.TEXT, new PrintStream(bytes, true, StandardCharsets.UTF_8));
+		progress.addTotal(4);
+		progress.converted(1024 * 1024);
+		progress.converted(1024 * 1024);
+		progress.skipped();
+		progress.failed();
+		progress.done();
+
+		final String out = bytes.toString(StandardCharsets.UTF_8);
+		final String last = out.substring(out.lastIndexOf('\r'));
+		assertTrue(last.matches("\r4/4 files, 2 converted, 1 skipped, 1 failed \\| \\d+\\.\\d files/s, \\d+\\.\\d\\d MB/s " +
+						"\\| ETA - \\R"), last);
+	}
+
+	@Test
+	public void jsonReportsRatesAndEta() {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final Progress progress = new Progress(PROGRESS_MODE.JSON, new PrintStream(bytes, true, StandardCharsets.UTF_8));
+		progress.addTotal(3);
+		progress.converted(100);
+		progress.done();
+
+		final String out = bytes.toString(StandardCharsets.UTF_8).trim();
+		assertTrue(out.matches("\\{\"event\":\"done\",\"elapsed\":\\d+\\.\\d{3},\"total\":3,\"processed\":1," +
+						"\"converted\":1,\"skipped\":0,\"failed\":0,\"bytes\":100,\"filesPerSec\":\\d+\\.\\d," +
+						"\"mbPerSec\":\\d+\\.\\d\\d,\"etaSeconds\":0}"), out);
+	}
+
+	@Test
+	public void noneWritesNothing() {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final Progress progress = new Progress(PROGRESS_MODE.NONE, new PrintStream(bytes, true, StandardCharsets.UTF_8));
+		progress.addTotal(1);
+		progress.converted(1);
+		progress.done();
+		assertEquals(0, bytes.size());
+		assertEquals(1, progress.getConverted());
+	}
+}
@@ -0,0 +1,150 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * pathological tiddlers, rendering must stay linear in LINEAR mode and fall back to raw text when over budget.
+ *
+ * @author evan
+ */
+class RenderStressTest {
+
+	/**
+	 * generous, each of these renders in well under a second in linear time but takes minutes with backtracking
+	 */
+	private static final long LINEAR_LIMIT_MILLIS = 3000;
+
+	private static final int SIZE = 200_000;
+
+	private static final String[] FUZZ_TOKENS = {
+					"[[", "]]", "]", "[", "|", "{{", "{{{", "}}", "}", "{{!!", "title", "<<", ">>", ">", "<<tag ", "<<tkt ",
+					"<<richlink ", "\"", "'", " ", "  ", "http://x", "a", "b", "[img ", "width=", "height=", "12", "<$", "</$",
+					"__", "^^", ",,", "''", "//", ":", "`", "!!"
+	};
+
+	private Main linear;
+
+	private Main regex;
+
+	@BeforeEach
+	public void setup() {
+
+		linear = newMain(Main.RENDER_MODE.LINEAR);
+		regex = newMain(Main.RENDER_MODE.REGEX);
+	}
+
+	private static Main newMain(Main.RENDER_MODE mode) {
+
+		final Main main = new Main();
+		main.spaceTagCharacterReplacement = "_";
+		main.illegalTagCharacterReplacement = "_";
+		main.numericTagPrefix = "t";
+		main.tagCaseConversion = Main.CASE_CONVERTER.NONE;
+		main.renderMode = mode;
+		return main;
+	}
+
+	/**
+	 * adversarial lines, each a long run of unbalanced markup
+	 */
+	static Map<String, String> adversarialCorpus() {
+
+		final Map<String, String> corpus = new LinkedHashMap<>();
+		corpus.put("open links", repeat("[[", SIZE));
+		corpus.put("open links with text", repeat("[[a|", SIZE));
+		corpus.put("external links", repeat("[[a|http", SIZE));
+		corpus.put("open transclusions", repeat("{{", SIZE));
+		corpus.put("open header transclusions", repeat("{{!!", SIZE));
+		corpus.put("closed transclusions", repeat("{{a}}", SIZE));
+		corpus.put("open macros", repeat("<<", SIZE));
+		corpus.put("open tag macros", repeat("<<tag a", SIZE));
+		corpus.put("open tkt macros", repeat("<<tkt a>", SIZE));
+		corpus.put("open images", repeat("[img [", SIZE));
+		corpus.put("open sized images", repeat("[img width=1 [", SIZE));
+		corpus.put("open widgets", repeat("<$", SIZE));
+		corpus.put("underlines", repeat("__", SIZE));
+		corpus.put("table row", "|" + repeat("a|", SIZE));
+		return corpus;
+	}
+
+	@Test
+	public void linearModeRendersAdversarialTiddlersQuickly() {
+
+		adversarialCorpus().forEach((name, line) -> {
+			final long start = System.nanoTime();
+			final String md = linear.toMarkdown(tiddler(line), "stress.tid");
+			final long millis = (System.nanoTime() - start) / 1_000_000;
+			assertFalse(md.isEmpty());
+			assertTrue(millis < LINEAR_LIMIT_MILLIS, name + " took " + millis + "ms");
+		});
+	}
+
+	@Test
+	public void regexModeFallsBackToRawTextWhenOverBudget() {
+
+		regex.renderBudgetMillis = 200;
+		final String line = repeat("[[a|", SIZE);
+
+		final long start = System.nanoTime();
+		final String md = regex.toMarkdown(tiddler(line), "stress.tid");
+		final long millis = (System.nanoTime() - start) / 1_000_000;
+
+		assertEquals("```" + System.lineSeparator() + line + System.lineSeparator() + "```" + System.lineSeparator(), md);
+		assertTrue(millis < LINEAR_LIMIT_MILLIS, "took " + millis + "ms");
+	}
+
+	@Test
+	public void linearModeMatchesRegexModeOnFixtures() throws URISyntaxException {
+
+		for (String name : Arrays.asList("tiddler.tid", "TiddlyWiki Syntax.tid", "links.tid", "macros.tid")) {
+			final Path p = Path.of(getClass().getResource(name).toURI());
+			final Tiddler t = regex.readTiddler(p).orElseThrow();
+			assertEquals(regex.toMarkdown(t, name), linear.toMarkdown(t, name), name);
+		}
+	}
+
+	@Test
+	public void linearModeMatchesRegexModeOnRandomMarkup() {
+
+		final Random random = new Random(42);
+		int compared = 0;
+		for (int i = 0; i < 5_000; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int tokens = 1 + random.nextInt(12);
+			for (int j = 0; j < tokens; j++) {
+				sb.append(FUZZ_TOKENS[random.nextInt(FUZZ_TOKENS.length)]);
+			}
+			final Tiddler t = tiddler(sb.toString());
+			final String expected;
+			try {
+				expected = regex.toMarkdown(t, "fuzz.tid");
+			} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+				// regex replacement strings treat $ and \ in rendered headers and tags as group references
+				continue;
+			}
+			assertEquals(expected, linear.toMarkdown(t, "fuzz.tid"), sb.toString());
+			compared++;
+		}
+		assertTrue(compared > 2_500);
+	}
+
+	private static Tiddler tiddler(String line) {
+
+		final Map<String, String> headers = new HashMap<>();
+		headers.put("title", "stress");
+		headers.put("type", "text/vnd.tiddlywiki");
+		return new Tiddler(headers, new ArrayList<>(Collections.singletonList(line)));
+	}
+
+	private static String repeat(String s, int length) {
+
+		return s.repeat(length / s.length());
+	}
+}
@@ -0,0 +1,154 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class ServeTest {
+
+	private final HttpClient client = HttpClient.newHttpClient();
+
+	private Serve serve;
+
+	@BeforeEach
+	public void start() throws IOException {
+
+		serve = new Serve();
+		new CommandLine(serve).parseArgs("--port=0", "--workers=2", "--threads=2", "--max-request-mb=1");
+		serve.start();
+	}
+
+	@AfterEach
+	public void stop() {
+
+		serve.stop();
+	}
+
+	@Test
+	public void convertsTiddlers() throws Exception {
+
+		HttpResponse<String> response = post("/tiddler?add-titles", "title: Note\ntags: Journal\ntype: text/vnd.tiddlywiki\n\n''bold''");
+		assertEquals(200, response.statusCode());
+		assertTrue(response.body().contains("#Journal"), response.body());
+		assertTrue(response.body().replace(System.lineSeparator(), "\n").endsWith("# Note\n\n**bold**\n"), response.body());
+
+		response = post("/tiddler", "{\"title\": \"Json\", \"text\": \"//it//\"}");
+		assertEquals(200, response.statusCode());
+		assertTrue(response.body().startsWith("_it_"), response.body());
+
+		assertEquals(400, post("/tiddler", "not a header\n\ntext").statusCode());
+		assertEquals(415, post("/tiddler", "title: a.png\ntype: image/png\n\nxyz").statusCode());
+		assertEquals(405, client.send(HttpRequest.newBuilder(uri("/tiddler")).GET().build(),
+						HttpResponse.BodyHandlers.ofString()).statusCode());
+	}
+
+	@Test
+	public void convertsZippedWikis() throws Exception {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.putNextEntry(new ZipEntry("wiki/tiddlers/Note.tid"));
+			zip.write("title: Note\ntags: Journal\ntype: text/vnd.tiddlywiki\n\n''bold''".getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+
+		final HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(uri("/wiki?map-tag=Journal=Daily"))
+						.POST(HttpRequest.BodyPublishers.ofByteArray(bytes.toByteArray())).build(), HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(200, response.statusCode());
+		assertEquals("0", response.headers().firstValue("X-Tw2md-Failed").orElse(null));
+
+		final Map<String, String> vault = new HashMap<>();
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(response.body()))) {
+			for (ZipEntry e = zip.getNextEntry(); e != null; e = zip.getNextEntry()) {
+				vault.put(e.getName(), new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+			}
+		}
+		assertEquals(Collections.singleton("Daily/Note.md"), vault.keySet());
+		assertTrue(vault.get("Daily/Note.md").contains("**bold**"));
+	}
+
+	@Test
+	public void refusesUnsafeOrLargeRequests() throws Exception {
+
+		assertEquals(400, post("/wiki?resume", "[]").statusCode());
+		assertEquals(400, post("/wiki?tag-index=../outside", "[]").statusCode());
+		assertEquals(400, post("/wiki?map-tag=Journal=/tmp", "[]").statusCode());
+		// only a map-tag value is split at its =
+		assertEquals(400, post("/wiki?assets-path=../outside=x", "[]").statusCode());
+		assertEquals(400, post("/wiki?tag-index=..%2F..%2Foutside=x", "[]").statusCode());
+		assertEquals(400, post("/tiddler?render-mode=FAST", "title: a\n\ntext").statusCode());
+		assertEquals(413, post("/tiddler", "x".repeat(1024 * 1024 + 1024)).statusCode());
+		assertEquals(200, client.send(HttpRequest.newBuilder(uri("/health")).GET().build(),
+						HttpResponse.BodyHandlers.ofString()).statusCode());
+	}
+
+	@Test
+	public void archiveEntriesCantEscapeTheVault() throws Exception {
+
+		final String escaped = "tw2md-escaped-" + UUID.randomUUID() + ".txt";
+		final Path target = Paths.get(System.getProperty("java.io.tmpdir"), escaped);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TarStreamTest.writeEntry(bytes, "wiki/tiddlers/Note.tid", '0',
+						"title: Note\ntype: text/vnd.tiddlywiki\n\ntext".getBytes(StandardCharsets.UTF_8));
+		TarStreamTest.writeEntry(bytes, "wiki/files/../../../" + escaped, '0', "escaped".getBytes(StandardCharsets.UTF_8));
+		TarStreamTest.writeEntry(bytes, "wiki/files/../../" + escaped, '0', "escaped".getBytes(StandardCharsets.UTF_8));
+		bytes.write(new byte[1024]);
+
+		try {
+			final HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(uri("/wiki?tiddlywiki-assets-path=files"))
+							.POST(HttpRequest.BodyPublishers.ofByteArray(bytes.toByteArray())).build(), HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(200, response.statusCode());
+			assertFalse(Files.exists(target), target.toString());
+
+			final Set<String> vault = new HashSet<>();
+			try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(response.body()))) {
+				for (ZipEntry e = zip.getNextEntry(); e != null; e = zip.getNextEntry()) {
+					vault.add(e.getName());
+				}
+			}
+			assertEquals(Collections.singleton("Note.md"), vault);
+		} finally {
+			Files.deleteIfExists(target);
+		}
+	}
+
+	@Test
+	public void malformedContentLengthIsRefused() throws Exception {
+
+		assertEquals(12, Serve.contentLength(" 12 "));
+		assertEquals(400, assertThrows(Serve.RequestException.class, () -> Serve.contentLength("12abc")).getStatus());
+	}
+
+	private HttpResponse<String> post(String path, String body) throws IOException, InterruptedException {
+
+		return client.send(HttpRequest.newBuilder(uri(path)).POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+						HttpResponse.BodyHandlers.ofString());
+	}
+
+	private URI uri(String path) {
+
+		return URI.create("http://127.0.0.1:" + serve.getPort() + path);
+	}
+}
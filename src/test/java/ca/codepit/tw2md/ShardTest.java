@@ -0,0 +1,93 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import picocli.CommandLine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class ShardTest {
+
+	@Test
+	public void everyFileBelongsToExactlyOneShard() {
+
+		final int count = 16;
+		final int[] perShard = new int[count + 1];
+		for (int f = 0; f < 10_000; f++) {
+			final String path = "tiddlers/Tiddler " + f + ".tid";
+			int owners = 0;
+			for (int i = 1; i <= count; i++) {
+				if (new Shard(i, count).owns(path)) {
+					owners++;
+					perShard[i]++;
+				}
+			}
+			assertEquals(1, owners, path);
+		}
+		for (int i = 1; i <= count; i++) {
+			assertTrue(perShard[i] > 10_000 / count / 2, "shard " + i + " has " + perShard[i]);
+		}
+
+		assertEquals(new Shard(3, 16).getName(), new Shard.Converter().convert("3/16").getName());
+		assertThrows(IllegalArgumentException.class, () -> new Shard(0, 4));
+	}
+
+	@Test
+	public void verifyFindsMissingShardsAndFiles(@TempDir Path out) throws Exception {
+
+		final List<String> sources = Arrays.asList("tiddlers/a.tid", "tiddlers/b.tid", "tiddlers/c.tid");
+		final Path stateDir = out.resolve(".tw2md");
+
+		final List<ShardManifest> manifests = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			manifests.add(new ShardManifest(stateDir.resolve(ShardManifest.fileName(new Shard(i + 1, 2)))));
+		}
+		for (String source : sources) {
+			final String output = source.substring("tiddlers/".length()).replace(".tid", ".md");
+			Files.createDirectories(out);
+			Files.writeString(out.resolve(output), "");
+			manifests.get(Shard.shardOf(source, 2) - 1).record(source, ShardManifest.CONVERTED, output);
+		}
+		for (int i = 0; i < 2; i++) {
+			manifests.get(i).save();
+		}
+
+		assertEquals(List.of(), ShardManifest.verify(sources, stateDir, 2, out, stateDir.resolve("sources.tsv")));
+
+		final List<String> withExtra = new ArrayList<>(sources);
+		withExtra.add("tiddlers/d.tid");
+		assertEquals(List.of("Not converted by any shard: tiddlers/d.tid"),
+						ShardManifest.verify(withExtra, stateDir, 2, out, stateDir.resolve("sources.tsv")));
+
+		Files.delete(stateDir.resolve(ShardManifest.fileName(new Shard(2, 2))));
+		assertFalse(ShardManifest.verify(sources, stateDir, 2, out, stateDir.resolve("sources.tsv")).isEmpty());
+	}
+
+	@Test
+	public void resumedShardsKeepTheirRecords(@TempDir Path dir) throws Exception {
+
+		final Path tiddlers = Files.createDirectories(dir.resolve("wiki/tiddlers"));
+		for (int i = 0; i < 20; i++) {
+			Files.writeString(tiddlers.resolve("Note" + i + ".tid"), "title: Note" + i + "\ntype: text/vnd.tiddlywiki\n\n" + i);
+		}
+		final String wiki = dir.resolve("wiki").toString();
+		final String out = dir.resolve("vault").toString();
+
+		for (int i = 1; i <= 2; i++) {
+			assertEquals(0, new CommandLine(new Main()).execute("--progress=NONE", "--shard=" + i + "/2", wiki, out));
+		}
+		// everything is journaled so the resumed shard converts nothing, it still has to account for its sources
+		assertEquals(0, new CommandLine(new Main()).execute("--progress=NONE", "--shard=1/2", "--resume", wiki, out));
+		assertEquals(0, new CommandLine(new Main()).execute("--progress=NONE", "--shard=2/2", "--retry-failed", wiki, out));
+		assertEquals(0, new CommandLine(new Main()).execute("--progress=NONE", "--verify-shards=2", wiki, out));
+	}
+}
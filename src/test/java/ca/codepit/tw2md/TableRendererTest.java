@@ -0,0 +1,66 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class TableRendererTest {
+
+	@Test
+	public void headerSetsTheColumnsAndAlignment() {
+
+		assertEquals("" +
+										"| Name | Size | Note |  |\n" +
+										"--- | ---: | :---: | ---\n" +
+										"a | 1 | x\n" +
+										"|  | b |  | 2 |",
+						render("|!Name | !Size| !Note |",
+										"|a | 1| x |",
+										"|>| b|~|2|"));
+	}
+
+	@Test
+	public void columnsAreOnlyAlignedWhenEveryCellAgrees() {
+
+		assertEquals("A | B | C\n--- | ---: | ---\n1 | 2 | 3", render("| A | B| C |", "|1 | 2|3|"));
+	}
+
+	@Test
+	public void captionAndClassRowsAreNotTableRows() {
+
+		assertEquals("Caption\n\nA | B\n--- | ---\n1 | 2", render("|Caption|c", "|tableclass|k", "|A|B|", "|1|2|"));
+		assertEquals("A | B\n--- | ---\n1 | 2\n\nCaption", render("|A|B|", "|Caption|c", "|1|2|"));
+		assertEquals("A | B\n--- | ---\nheader | footer", render("|A|B|", "|header|footer|f"));
+	}
+
+	@Test
+	public void linksAndTransclusionsKeepTheirPipes() {
+
+		final List<String> cells = new ArrayList<>();
+		assertEquals(4, TableRenderer.split("[[a|b]]|{{c||d}}|[[unclosed|x", cells));
+		assertEquals(Arrays.asList("[[a|b]]", "{{c||d}}", "[[unclosed", "x"), cells);
+	}
+
+	@Test
+	public void escapedPipesAreNotCellSeparators() {
+
+		final List<String> cells = new ArrayList<>();
+		assertEquals(2, TableRenderer.split("a \\| b|c", cells));
+		assertEquals(Arrays.asList("a \\| b", "c"), cells);
+		assertEquals("x\\|y | z\n--- | ---", render("|x\\|y|z|"));
+	}
+
+	private static String render(String... lines) {
+
+		final StringBuilder sb = new StringBuilder();
+		TableRenderer.render(Arrays.asList(lines), cell -> cell, sb, "\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,194 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import picocli.CommandLine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class TarStreamTest {
+
+	private static final String TIDDLER = "title: Archived\ntype: text/vnd.tiddlywiki\n\n! Hello ''archive''\n";
+
+	private static final String LONG_NAME = "tiddlers/" + "A very long tiddler title ".repeat(6).trim() + ".tid";
+
+	@Test
+	public void readsEntriesWithLongNames() throws IOException {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTar(bytes);
+
+		try (TarStream tar = new TarStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			TarStream.Entry entry = tar.next();
+			assertEquals("wiki/tiddlers/Archived.tid", entry.getName());
+			assertTrue(entry.isFile());
+			// skip the content
+			entry = tar.next();
+			assertEquals("wiki/" + LONG_NAME, entry.getName());
+			assertEquals(TIDDLER, new String(tar.readAll(), StandardCharsets.UTF_8));
+			assertEquals("wiki/files/note.txt", tar.next().getName());
+			assertNull(tar.next());
+		}
+	}
+
+	@Test
+	public void convertsTarAndZipArchivesLikeDirectories(@TempDir Path dir) throws IOException {
+
+		final Path tgz = dir.resolve("wiki.tar.gz");
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tgz))) {
+			writeTar(out);
+		}
+		final Path zip = dir.resolve("wiki.zip");
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+			for (String name : new String[]{"tiddlers/Archived.tid", LONG_NAME}) {
+				out.putNextEntry(new ZipEntry(name));
+				out.write(TIDDLER.getBytes(StandardCharsets.UTF_8));
+			}
+			out.putNextEntry(new ZipEntry("files/note.txt"));
+			out.write("note".getBytes(StandardCharsets.UTF_8));
+		}
+
+		for (Path archive : new Path[]{tgz, zip}) {
+			final Path out = dir.resolve(archive.getFileName() + ".out");
+			assertEquals(0, new CommandLine(new Main()).execute("--progress=NONE", "--threads=2",
+							"--tiddlywiki-assets-path=files", "--assets-path=assets", archive.toString(), out.toString()));
+			assertTrue(Files.readString(out.resolve("Archived.md")).contains("# Hello **archive**"), archive.toString());
+			assertTrue(Files.exists(out.resolve(LONG_NAME.substring("tiddlers/".length()).replace(".tid", ".md"))));
+			assertEquals("note", Files.readString(out.resolve("assets/note.txt")));
+		}
+	}
+
+	@Test
+	public void largeBinaryTiddlersAreStreamedFromTheArchive(@TempDir Path dir) throws IOException {
+
+		final byte[] video = new byte[2 * 1024 * 1024];
+		new Random(2).nextBytes(video);
+		final String text = "title: Long\ntype: text/vnd.tiddlywiki\n\n" + "''some'' text\n".repeat(100_000);
+		final Path tar = dir.resolve("wiki.tar");
+		try (OutputStream out = Files.newOutputStream(tar)) {
+			writeEntry(out, "wiki/tiddlers/clip.mp4.tid", '0', ("title: clip.mp4\ntype: video/mp4\n\n" +
+							Base64.getMimeEncoder().encodeToString(video)).getBytes(StandardCharsets.UTF_8));
+			writeEntry(out, "wiki/tiddlers/Long.tid", '0', text.getBytes(StandardCharsets.UTF_8));
+			writeEntry(out, "wiki/tiddlers/Archived.tid", '0', TIDDLER.getBytes(StandardCharsets.UTF_8));
+			out.write(new byte[1024]);
+		}
+
+		final Path out = dir.resolve("vault");
+		assertEquals(0, new CommandLine(new Main()).execute("--progress=NONE", "--threads=2", "--memory-budget=1",
+						tar.toString(), out.toString()));
+		assertArrayEquals(video, Files.readAllBytes(out.resolve("clip.mp4")));
+		assertTrue(Files.readString(out.resolve("Long.md")).startsWith("**some** text"));
+		assertTrue(Files.readString(out.resolve("Archived.md")).contains("# Hello **archive**"));
+	}
+
+	@Test
+	public void entriesOutsideTheVaultAreSkipped(@TempDir Path dir) throws IOException {
+
+		final Path tar = dir.resolve("wiki.tar");
+		try (OutputStream out = Files.newOutputStream(tar)) {
+			writeEntry(out, "wiki/tiddlers/Archived.tid", '0', TIDDLER.getBytes(StandardCharsets.UTF_8));
+			writeEntry(out, "wiki/files/../../../escaped.txt", '0', "escaped".getBytes(StandardCharsets.UTF_8));
+			writeEntry(out, "wiki/files/../../escaped.tid", '0', TIDDLER.getBytes(StandardCharsets.UTF_8));
+			writeEntry(out, "/wiki/files/absolute.txt", '0', "absolute".getBytes(StandardCharsets.UTF_8));
+			writeEntry(out, "wiki/files/./sub//note.txt", '0', "note".getBytes(StandardCharsets.UTF_8));
+			out.write(new byte[1024]);
+		}
+
+		final Path out = dir.resolve("a/b/vault");
+		assertEquals(0, new CommandLine(new Main()).execute("--progress=NONE", "--tiddlywiki-assets-path=files",
+						"--assets-path=assets", tar.toString(), out.toString()));
+		assertTrue(Files.exists(out.resolve("Archived.md")));
+		assertEquals("note", Files.readString(out.resolve("assets/sub/note.txt")));
+		assertFalse(Files.exists(dir.resolve("escaped.txt")));
+		assertFalse(Files.exists(dir.resolve("a/escaped.txt")));
+		assertFalse(Files.exists(out.resolve("assets/absolute.txt")));
+
+		final OutputNames names = new OutputNames(out);
+		assertThrows(IllegalArgumentException.class, () -> names.claim(out.resolve("assets/../../escaped.txt"), "x"));
+	}
+
+	@Test
+	public void assetsMovedByTheirSidecarAreOnlyRewrittenWhenChanged(@TempDir Path dir) throws IOException {
+
+		final Path tar = dir.resolve("wiki.tar");
+		try (OutputStream out = Files.newOutputStream(tar)) {
+			// the asset comes before its sidecar so it is saved to the asset directory and then moved
+			writeEntry(out, "wiki/tiddlers/photo.jpg", '0', "jpeg".getBytes(StandardCharsets.UTF_8));
+			writeEntry(out, "wiki/tiddlers/photo.jpg.meta", '0',
+							"tags: Photos\ntitle: photo.jpg\ntype: image/jpeg\n".getBytes(StandardCharsets.UTF_8));
+			out.write(new byte[1024]);
+		}
+
+		final Path out = dir.resolve("vault");
+		final Path photo = out.resolve("Pictures/photo.jpg");
+		final FileTime old = FileTime.fromMillis(1_000_000_000_000L);
+		for (int run = 0; run < 2; run++) {
+			assertEquals(0, new CommandLine(new Main()).execute("--progress=NONE", "--write-mode=CHANGED",
+							"--assets-path=files", "--map-tag=Photos=Pictures", tar.toString(), out.toString()));
+			assertEquals("jpeg", Files.readString(photo));
+			assertFalse(Files.exists(out.resolve("files/photo.jpg")));
+			if (run == 0) {
+				Files.setLastModifiedTime(photo, old);
+			}
+		}
+		assertEquals(old, Files.getLastModifiedTime(photo));
+	}
+
+	/**
+	 * a wiki directory with a ustar entry, a GNU long name entry and an asset
+	 */
+	private static void writeTar(OutputStream out) throws IOException {
+
+		final byte[] tiddler = TIDDLER.getBytes(StandardCharsets.UTF_8);
+		writeEntry(out, "wiki/tiddlers/Archived.tid", '0', tiddler);
+		writeEntry(out, "././@LongLink", 'L', ("wiki/" + LONG_NAME + "\0").getBytes(StandardCharsets.UTF_8));
+		writeEntry(out, "wiki/tiddlers/truncated", '0', tiddler);
+		writeEntry(out, "wiki/files/note.txt", '0', "note".getBytes(StandardCharsets.UTF_8));
+		out.write(new byte[1024]);
+	}
+
+	static void writeEntry(OutputStream out, String name, char type, byte[] data) throws IOException {
+
+		final byte[] header = new byte[512];
+		put(header, 0, name);
+		put(header, 100, "0000644");
+		put(header, 124, String.format("%011o", data.length));
+		put(header, 136, "00000000000");
+		header[156] = (byte) type;
+		put(header, 257, "ustar");
+		put(header, 263, "00");
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		long sum = 0;
+		for (byte b : header) {
+			sum += b & 0xff;
+		}
+		put(header, 148, String.format("%06o", sum));
+		out.write(header);
+		out.write(data);
+		out.write(new byte[(512 - data.length % 512) % 512]);
+	}
+
+	private static void put(byte[] header, int offset, String value) {
+
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+}
@@ -0,0 +1,99 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * @author evan
+ */
+class TiddlerTest {
+
+	private static final int CORPUS_SIZE = 10_000;
+
+	/**
+	 * constructing one of these tiddlers allocates ~2350 bytes, most of it the StringBuilder the text is encoded
+	 * through, which is garbage straight away
+	 */
+	private static final long MAX_BYTES_PER_TIDDLER = 2600;
+
+	private static final String[] TAGS = {"Journal", "[[Work Notes]] Project", "Ideas", "Recipes Cooking", "Reference"};
+
+	@Test
+	public void headersAndTextRoundTrip() {
+
+		final Map<String, String> headers = new HashMap<>();
+		headers.put("title", "A Tiddler");
+		headers.put("type", "text/vnd.tiddlywiki");
+		headers.put("tags", "Journal [[Work Notes]]");
+		headers.put("created", "20200101120000000");
+		headers.put("creator", "evan");
+		final List<String> body = Arrays.asList("first", "", "ünïcödé", "");
+
+		final Tiddler t = new Tiddler(headers, body);
+		assertEquals(headers, t.getHeaders());
+		assertEquals("evan", t.getHeader("creator"));
+		assertNull(t.getHeader("modified"));
+		assertEquals(body, t.getBody());
+		assertEquals("first\n\nünïcödé\n\n".getBytes(StandardCharsets.UTF_8).length, t.getTextLength());
+		assertTrue(t.getCreatedTime().isPresent());
+		assertFalse(t.getLastUpdatedTime().isPresent());
+
+		assertEquals(Collections.emptyList(), new Tiddler(headers, new ArrayList<>()).getBody());
+		assertEquals(Collections.singletonList(""), new Tiddler(headers, Collections.singletonList("")).getBody());
+		assertEquals(Arrays.asList("a", "b"), Tiddler.withText(headers, "a\r\nb\n").getBody());
+		assertSame(t.getHeader("type"), Tiddler.withText(headers, null).getHeader("type"));
+	}
+
+	@Test
+	public void retainedTiddlersAreCompact() {
+
+		final com.sun.management.ThreadMXBean threads =
+						(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported(), "the JVM does not count allocated bytes");
+		threads.setThreadAllocatedMemoryEnabled(true);
+		final long thread = Thread.currentThread().getId();
+
+		final List<Tiddler> retained = new ArrayList<>(CORPUS_SIZE);
+		long allocated = 0;
+		for (int i = 0; i < CORPUS_SIZE; i++) {
+			// new strings each time, the way they come out of a parser
+			final Map<String, String> headers = new HashMap<>();
+			headers.put(new String("title"), "Tiddler number " + i);
+			headers.put(new String("type"), new String("text/vnd.tiddlywiki"));
+			headers.put(new String("tags"), new String(TAGS[i % TAGS.length]));
+			headers.put(new String("created"), String.format(Locale.ROOT, "20200101%09d", i));
+			headers.put(new String("modified"), String.format(Locale.ROOT, "20210101%09d", i));
+			headers.put(new String("creator"), new String("evan"));
+			final List<String> body = new ArrayList<>();
+			for (int l = 0; l < 8; l++) {
+				body.add("Line " + l + " of tiddler " + i + " with some ''bold'' text and a [[Link]]");
+			}
+			final long start = threads.getThreadAllocatedBytes(thread);
+			retained.add(new Tiddler(headers, body));
+			allocated += threads.getThreadAllocatedBytes(thread) - start;
+		}
+		final long perTiddler = allocated / CORPUS_SIZE;
+		assertTrue(perTiddler < MAX_BYTES_PER_TIDDLER, perTiddler + " bytes per tiddler");
+
+		// what is kept is strings and arrays, no maps, lists or parsed timestamps
+		for (Field field : Tiddler.class.getDeclaredFields()) {
+			if (!Modifier.isStatic(field.getModifiers())) {
+				assertTrue(field.getType() == String.class || field.getType() == String[].class ||
+								field.getType() == byte[].class, field.toString());
+			}
+		}
+		// and values most tiddlers have in common are shared
+		final Tiddler first = retained.get(0);
+		final Tiddler other = retained.get(TAGS.length);
+		assertSame(first.getHeader("type"), other.getHeader("type"));
+		assertSame(first.getHeader("tags"), other.getHeader("tags"));
+	}
+}
@@ -0,0 +1,104 @@
+package ca.codepit.tw2md;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author evan
+ */
+class TransclusionsTest {
+
+	private static final Pattern TRANSCLUSION = Pattern.compile("\\{\\{([^}]*)}}");
+
+	private final Map<String, Tiddler> wiki = new HashMap<>();
+
+	private final AtomicInteger renders = new AtomicInteger();
+
+	@Test
+	public void eachTargetIsRenderedOnce() {
+
+		add("Template", "shared");
+		add("Page", "{{Template}} and {{Template}}");
+		final Transclusions transclusions = new Transclusions(wiki::get, 1024);
+
+		for (int i = 0; i < 100; i++) {
+			assertEquals("shared", transclusions.expand(wiki.get("Page"), "Template", t -> render(transclusions, t)));
+		}
+		assertEquals(1, renders.get());
+		assertEquals(100, transclusions.getInlined());
+		assertEquals(1, transclusions.getRendered());
+		assertNull(transclusions.expand(wiki.get("Page"), "Missing", t -> render(transclusions, t)));
+	}
+
+	@Test
+	public void cyclesAndDeepTransclusionsAreCutShort() {
+
+		add("A", "a {{B}}");
+		add("B", "b {{A}}");
+		for (int i = 0; i < 20; i++) {
+			add("D" + i, i + " {{D" + (i + 1) + "}}");
+		}
+		final Transclusions transclusions = new Transclusions(wiki::get, 1024);
+
+		// the cycle is cut where it comes back to the tiddler being converted
+		assertEquals("a ![[B]]", transclusions.expand(wiki.get("B"), "A", t -> render(transclusions, t)));
+		assertEquals("b ![[A]]", transclusions.expand(wiki.get("A"), "B", t -> render(transclusions, t)));
+		assertNull(transclusions.expand(wiki.get("A"), "A", t -> render(transclusions, t)));
+
+		final String deep = transclusions.expand(wiki.get("D0"), "D1", t -> render(transclusions, t));
+		assertTrue(deep.startsWith("1 2 3 4 5 6 7 8 ![[D9]]"), deep);
+
+		// cut short expansions depend on where they started so none were kept
+		renders.set(0);
+		transclusions.expand(wiki.get("D0"), "D1", t -> render(transclusions, t));
+		assertEquals(Transclusions.MAX_DEPTH, renders.get());
+	}
+
+	@Test
+	public void cacheIsBoundedByCharacters() {
+
+		for (int i = 0; i < 10; i++) {
+			add("T" + i, "0123456789");
+		}
+		add("Page", "");
+		final Transclusions transclusions = new Transclusions(wiki::get, 30);
+
+		for (int i = 0; i < 10; i++) {
+			transclusions.expand(wiki.get("Page"), "T" + i, t -> render(transclusions, t));
+		}
+		renders.set(0);
+		// the last three fit, the rest were dropped
+		for (int i = 9; i >= 0; i--) {
+			transclusions.expand(wiki.get("Page"), "T" + i, t -> render(transclusions, t));
+		}
+		assertEquals(7, renders.get());
+	}
+
+	private void add(String title, String text) {
+
+		final Map<String, String> headers = new HashMap<>();
+		headers.put("title", title);
+		wiki.put(title, Tiddler.withText(headers, text));
+	}
+
+	/**
+	 * the text with its transclusions expanded, or embedded when they can't be
+	 */
+	private String render(Transclusions transclusions, Tiddler t) {
+
+		renders.incrementAndGet();
+		final Function<Tiddler, String> render = inner -> render(transclusions, inner);
+		final Matcher m = TRANSCLUSION.matcher(String.join("\n", t.getBody()));
+		return m.replaceAll(r -> {
+			final String md = transclusions.expand(t, r.group(1), render);
+			return Matcher.quoteReplacement(md == null ? "![[" + r.group(1) + "]]" : md);
+		});
+	}
+}